@@ -4,12 +4,16 @@ package wavtools;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /* IMA-style 4-bit ADPCM Codec. */
 public class AdpcmSampleData implements SampleData {
 	private static final String VERSION = "20241129 (c) mumart@gmail.com";
 
-	private static final int BUF_SAMPLES = 1 << 16;
 	private static final int FP_SHIFT = 8, FP_ONE = 1 << FP_SHIFT;
 	
 	private static final int MIN_STEP = FP_ONE >> 1;
@@ -24,64 +28,415 @@ public class AdpcmSampleData implements SampleData {
 		-8,-5,-4,-3,-3,-2,-1, 0, 0, 1, 2, 3, 3, 4, 5, 8
 	};
 
-	private byte[] inputBuf;
+	/* Maximum number of paths retained by the search encoder. */
+	public static final int MAX_SEARCH_WIDTH = 64;
+
+	/* Codes either side of the greedy choice that are considered by the search encoder. */
+	private static final int SEARCH_RADIUS = 1;
+
 	private int[] preds, steps;
 	private InputStream inputStream;
-	private int numChannels, sampleRate, samplesRemaining;
+	private int numChannels, sampleRate, samplesRemaining, blockSamples;
+	private long samplePosition;
 
 	/* Encode the contents of specified SampleData to ADPCM and write to the specified OutputStream. */
 	public static void encode( SampleData sampleData, OutputStream outputStream ) throws Exception {
+		encode( sampleData, outputStream, 0 );
+	}
+
+	/* Encode the contents of specified SampleData to ADPCM and write to the specified OutputStream.
+	   If blockSamples is non-zero, the predictor is reset every blockSamples samples, which must be even.
+	   The independent blocks are encoded in parallel, and the stream must be decoded with the same block size,
+	   which is stored in the header written by writeHeader(). */
+	public static void encode( SampleData sampleData, OutputStream outputStream, int blockSamples ) throws Exception {
+		encode( sampleData, outputStream, blockSamples, 1 );
+	}
+
+	/* Encode the contents of specified SampleData to ADPCM and write to the specified OutputStream.
+	   If searchWidth is greater than 1, the codes are chosen by a trellis search retaining up to searchWidth
+	   candidate paths, which improves the signal to noise ratio at a cost in speed. The stream format is unchanged.
+	   The search is performed in parallel for each channel, and each block if blockSamples is non-zero. */
+	public static void encode( SampleData sampleData, OutputStream outputStream, int blockSamples, int searchWidth ) throws Exception {
+		if( blockSamples < 0 || ( blockSamples & 1 ) != 0 ) {
+			throw new IllegalArgumentException( "Invalid block size." );
+		}
+		if( searchWidth < 1 || searchWidth > MAX_SEARCH_WIDTH ) {
+			throw new IllegalArgumentException( "Invalid search width." );
+		}
 		int numChannels = sampleData.getNumChannels();
-		short[] inputBuf = new short[ BUF_SAMPLES * numChannels ];
-		byte[] outputBuf = new byte[ BUF_SAMPLES * numChannels / 2 ];
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] inputBuf = BufferPool.getShorts( bufSamples * numChannels );
+		byte[] outputBuf = BufferPool.getBytes( bufSamples * numChannels / 2 );
 		int[] preds = new int[ numChannels ];
 		int[] steps = new int[ numChannels ];
-		int count = 0, remain = 0;
-		while( sampleData.getSamplesRemaining() > 0 ) {
-			System.arraycopy( inputBuf, count * numChannels, inputBuf, 0, remain * numChannels );
-			count = remain + sampleData.getSamples( inputBuf, remain, BUF_SAMPLES - remain );
-			remain = count & 1;
-			count = count & -2;
-			for( int channel = 0; channel < numChannels; channel++ ) {
-				int pred = preds[ channel ];
-				int step = steps[ channel ];
-				int bufferIdx = channel;
-				int bufferEnd = count * numChannels + channel;
-				while( bufferIdx < bufferEnd ) {
+		short[][] staging = null;
+		if( blockSamples < 1 && ChannelExecutor.isParallel( numChannels ) ) {
+			staging = BufferPool.getShorts( numChannels, bufSamples );
+		}
+		try {
+			int count = 0, remain = 0;
+			long position = 0;
+			while( sampleData.getSamplesRemaining() > 0 ) {
+				System.arraycopy( inputBuf, count * numChannels, inputBuf, 0, remain * numChannels );
+				count = remain + sampleData.getSamples( inputBuf, remain, bufSamples - remain );
+				remain = count & 1;
+				count = count & -2;
+				processBlocks( inputBuf, 0, count, numChannels, position, blockSamples, preds, steps, staging, false, searchWidth );
+				position += count;
+				int inputIdx = 0, outputIdx = 0;
+				int outputEnd = count * numChannels / 2;
+				while( outputIdx < outputEnd ) {
+					outputBuf[ outputIdx++ ] = ( byte ) ( ( inputBuf[ inputIdx ] << 4 ) | ( inputBuf[ inputIdx + 1 ] & 0xF ) );
+					inputIdx += 2;
+				}
+				outputStream.write( outputBuf, 0, outputEnd );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( outputBuf );
+			BufferPool.release( staging );
+		}
+	}
+
+	/* Encode the samples of one channel in place, replacing them with 4-bit codes. */
+	static void encodeChannel( short[] buffer, int bufferIdx, int bufferEnd, int stride, int[] preds, int[] steps, int channel ) {
+		int pred = preds[ channel ];
+		int step = steps[ channel ];
+		while( bufferIdx < bufferEnd ) {
+			if( step < MIN_STEP ) step = MIN_STEP;
+			if( step > MAX_STEP ) step = MAX_STEP;
+			int delta = ( buffer[ bufferIdx ] << FP_SHIFT ) - pred;
+			int code = ( 2 * delta + 15 * step ) / step;
+			code = ( code & 1 ) + ( code >> 1 );
+			if( code < 0 ) code = 0;
+			if( code > 15 ) code = 15;
+			buffer[ bufferIdx ] = ( short ) code;
+			pred = pred + ( ( ( ( code << 1 ) - 15 ) * step ) >> 1 );
+			pred = pred + BIAS[ code ] * step;
+			step = ( step * STEP[ code ] ) >> FP_SHIFT;
+			bufferIdx += stride;
+		}
+		preds[ channel ] = pred;
+		steps[ channel ] = step;
+	}
+
+	/* Encode the samples of one channel in place, choosing the codes with a trellis search.
+	   At each sample every retained path is extended with the greedy code and its neighbours.
+	   Paths that reach the same predictor state are merged, and the searchWidth paths with the lowest
+	   squared error in the decoded output are retained. The best path is traced back at the end of the range. */
+	static void searchChannel( short[] buffer, int bufferIdx, int bufferEnd, int stride, int[] preds, int[] steps, int channel, int searchWidth ) {
+		int numSamples = ( bufferEnd - bufferIdx + stride - 1 ) / stride;
+		if( numSamples < 1 ) {
+			return;
+		}
+		byte[] codes = BufferPool.getBytes( numSamples * searchWidth );
+		byte[] parents = BufferPool.getBytes( numSamples * searchWidth );
+		try {
+			int maxCandidates = searchWidth * ( SEARCH_RADIUS * 2 + 1 );
+			int[] pathPreds = new int[ searchWidth ], pathSteps = new int[ searchWidth ];
+			long[] pathErrors = new long[ searchWidth ];
+			int[] candPreds = new int[ maxCandidates ], candSteps = new int[ maxCandidates ], candChoices = new int[ maxCandidates ];
+			long[] candErrors = new long[ maxCandidates ];
+			int[] order = new int[ maxCandidates ];
+			// Open-addressed table of candidate indices by state, invalidated by stamping with the sample index.
+			int hashBits = 34 - Integer.numberOfLeadingZeros( maxCandidates );
+			int[] hashIdx = new int[ 1 << hashBits ], hashStamp = new int[ 1 << hashBits ];
+			pathPreds[ 0 ] = preds[ channel ];
+			pathSteps[ 0 ] = steps[ channel ];
+			int numPaths = 1;
+			for( int sample = 0, idx = bufferIdx; sample < numSamples; sample++, idx += stride ) {
+				int amp = buffer[ idx ];
+				int numCandidates = 0;
+				for( int path = 0; path < numPaths; path++ ) {
+					int step = pathSteps[ path ];
 					if( step < MIN_STEP ) step = MIN_STEP;
 					if( step > MAX_STEP ) step = MAX_STEP;
-					int delta = ( inputBuf[ bufferIdx ] << FP_SHIFT ) - pred;
-					int code = ( 2 * delta + 15 * step ) / step;
-					code = ( code & 1 ) + ( code >> 1 );
+					int delta = ( amp << FP_SHIFT ) - pathPreds[ path ];
+					int greedy = ( 2 * delta + 15 * step ) / step;
+					greedy = ( greedy & 1 ) + ( greedy >> 1 );
+					if( greedy < 0 ) greedy = 0;
+					if( greedy > 15 ) greedy = 15;
+					int code = greedy - SEARCH_RADIUS, end = greedy + SEARCH_RADIUS;
 					if( code < 0 ) code = 0;
-					if( code > 15 ) code = 15;
-					inputBuf[ bufferIdx ] = ( short ) code;
-					pred = pred + ( ( ( ( code << 1 ) - 15 ) * step ) >> 1 );
-					pred = pred + BIAS[ code ] * step;
-					step = ( step * STEP[ code ] ) >> FP_SHIFT;
-					bufferIdx += numChannels;
+					if( end > 15 ) end = 15;
+					for( ; code <= end; code++ ) {
+						int pred = pathPreds[ path ] + ( ( ( ( code << 1 ) - 15 ) * step ) >> 1 );
+						int out = pred >> FP_SHIFT;
+						if( out < -32768 ) out = -32768;
+						if( out > 32767 ) out = 32767;
+						long error = pathErrors[ path ] + ( long ) ( amp - out ) * ( amp - out );
+						pred = pred + BIAS[ code ] * step;
+						int nextStep = ( step * STEP[ code ] ) >> FP_SHIFT;
+						// Merge with an existing candidate in the same state.
+						int hash = ( ( pred * 0x9E3779B1 ) ^ nextStep ) * 0x85EBCA6B >>> ( 32 - hashBits );
+						while( hashStamp[ hash ] == sample + 1 ) {
+							int cand = hashIdx[ hash ];
+							if( candPreds[ cand ] == pred && candSteps[ cand ] == nextStep ) {
+								break;
+							}
+							hash = ( hash + 1 ) & ( ( 1 << hashBits ) - 1 );
+						}
+						int cand = numCandidates;
+						if( hashStamp[ hash ] == sample + 1 ) {
+							cand = hashIdx[ hash ];
+							if( error >= candErrors[ cand ] ) {
+								continue;
+							}
+						} else {
+							hashStamp[ hash ] = sample + 1;
+							hashIdx[ hash ] = cand;
+							order[ cand ] = cand;
+							numCandidates++;
+						}
+						candPreds[ cand ] = pred;
+						candSteps[ cand ] = nextStep;
+						candErrors[ cand ] = error;
+						candChoices[ cand ] = ( path << 4 ) | code;
+					}
+				}
+				numPaths = numCandidates < searchWidth ? numCandidates : searchWidth;
+				if( numCandidates > numPaths ) {
+					select( order, candErrors, numCandidates, numPaths );
+				}
+				int choiceIdx = sample * searchWidth;
+				for( int path = 0; path < numPaths; path++ ) {
+					int cand = order[ path ];
+					pathPreds[ path ] = candPreds[ cand ];
+					pathSteps[ path ] = candSteps[ cand ];
+					pathErrors[ path ] = candErrors[ cand ];
+					codes[ choiceIdx + path ] = ( byte ) ( candChoices[ cand ] & 0xF );
+					parents[ choiceIdx + path ] = ( byte ) ( candChoices[ cand ] >> 4 );
+				}
+			}
+			int best = 0;
+			for( int path = 1; path < numPaths; path++ ) {
+				if( pathErrors[ path ] < pathErrors[ best ] ) {
+					best = path;
+				}
+			}
+			preds[ channel ] = pathPreds[ best ];
+			steps[ channel ] = pathSteps[ best ];
+			for( int sample = numSamples - 1; sample >= 0; sample-- ) {
+				int choiceIdx = sample * searchWidth + best;
+				buffer[ bufferIdx + sample * stride ] = codes[ choiceIdx ];
+				best = parents[ choiceIdx ];
+			}
+		} finally {
+			BufferPool.release( codes );
+			BufferPool.release( parents );
+		}
+	}
+
+	/* Partially sort the first count entries of order so that the first k index the lowest keys. */
+	private static void select( int[] order, long[] keys, int count, int k ) {
+		int left = 0, right = count - 1;
+		while( left < right ) {
+			long pivot = keys[ order[ ( left + right ) >>> 1 ] ];
+			int i = left, j = right;
+			while( i <= j ) {
+				while( keys[ order[ i ] ] < pivot ) i++;
+				while( keys[ order[ j ] ] > pivot ) j--;
+				if( i <= j ) {
+					int swap = order[ i ]; order[ i ] = order[ j ]; order[ j ] = swap;
+					i++;
+					j--;
+				}
+			}
+			if( k - 1 <= j ) {
+				right = j;
+			} else if( k - 1 >= i ) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/* Decode the 4-bit codes of one channel in place, replacing them with 16-bit samples. */
+	static void decodeChannel( short[] buffer, int bufferIdx, int bufferEnd, int stride, int[] preds, int[] steps, int channel ) {
+		int pred = preds[ channel ];
+		int step = steps[ channel ];
+		while( bufferIdx < bufferEnd ) {
+			if( step < MIN_STEP ) step = MIN_STEP;
+			if( step > MAX_STEP ) step = MAX_STEP;
+			int code = buffer[ bufferIdx ];
+			pred = pred + ( ( ( ( code << 1 ) - 15 ) * step ) >> 1 );
+			int out = pred >> FP_SHIFT;
+			if( out < -32768 ) {
+				buffer[ bufferIdx ] = -32768;
+			} else if ( out > 32767 ) {
+				buffer[ bufferIdx ] =  32767;
+			} else {
+				buffer[ bufferIdx ] = ( short ) out;
+			}
+			pred = pred + BIAS[ code ] * step;
+			step = ( step * STEP[ code ] ) >> FP_SHIFT;
+			bufferIdx += stride;
+		}
+		preds[ channel ] = pred;
+		steps[ channel ] = step;
+	}
+
+	/* Encode or decode count samples from the specified offset of an interleaved buffer, in place.
+	   The predictor state is reset at multiples of blockSamples from the start of the stream.
+	   When the range spans more than one block, the blocks are processed in parallel.
+	   Otherwise channels are processed in parallel if enabled by ChannelExecutor, using the staging buffers.
+	   When searching, each channel of each block is always processed in parallel. */
+	private static void processBlocks( final short[] buffer, int offset, int count, final int numChannels, long position,
+			int blockSamples, final int[] preds, final int[] steps, short[][] staging, final boolean decode, final int searchWidth ) throws IOException {
+		if( blockSamples < 1 && searchWidth < 2 ) {
+			try {
+				ChannelExecutor.processChannels( buffer, offset, count, numChannels, staging, new ChannelExecutor.ChannelKernel() {
+					public void process( short[] buffer, int start, int end, int stride, int channel ) {
+						if( decode ) {
+							decodeChannel( buffer, start, end, stride, preds, steps, channel );
+						} else {
+							encodeChannel( buffer, start, end, stride, preds, steps, channel );
+						}
+					}
+				} );
+			} catch( RuntimeException e ) {
+				throw e;
+			} catch( Exception e ) {
+				throw new IOException( e );
+			}
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		int[] segmentPreds = preds, segmentSteps = steps;
+		int segmentIdx = offset, end = offset + count;
+		while( segmentIdx < end ) {
+			// Without blocks, the whole range is a single segment continuing from the current state.
+			int blockOffset = blockSamples > 0 ? ( int ) ( ( position + segmentIdx - offset ) % blockSamples ) : 1;
+			final int segmentStart = segmentIdx;
+			segmentIdx = blockSamples > 0 ? segmentIdx + blockSamples - blockOffset : end;
+			if( segmentIdx > end ) {
+				segmentIdx = end;
+			}
+			final int segmentEnd = segmentIdx;
+			// Each segment has its own state, the state of the final segment is retained.
+			segmentPreds = new int[ numChannels ];
+			segmentSteps = new int[ numChannels ];
+			if( blockOffset > 0 ) {
+				System.arraycopy( preds, 0, segmentPreds, 0, numChannels );
+				System.arraycopy( steps, 0, segmentSteps, 0, numChannels );
+			}
+			final int[] taskPreds = segmentPreds, taskSteps = segmentSteps;
+			if( searchWidth > 1 ) {
+				// Each channel writes to its own elements of the buffer.
+				for( int channel = 0; channel < numChannels; channel++ ) {
+					final int chan = channel;
+					tasks.add( new Callable<Void>() {
+						public Void call() {
+							searchChannel( buffer, segmentStart * numChannels + chan, segmentEnd * numChannels + chan,
+								numChannels, taskPreds, taskSteps, chan, searchWidth );
+							return null;
+						}
+					} );
 				}
-				preds[ channel ] = pred;
-				steps[ channel ] = step;
+			} else {
+				tasks.add( new Callable<Void>() {
+					public Void call() {
+						processSegment( buffer, segmentStart, segmentEnd, numChannels, taskPreds, taskSteps, decode );
+						return null;
+					}
+				} );
+			}
+		}
+		if( tasks.size() == 1 ) {
+			try {
+				tasks.get( 0 ).call();
+			} catch( RuntimeException e ) {
+				throw e;
+			} catch( Exception e ) {
+				throw new IOException( e );
+			}
+		} else {
+			for( Future<Void> future : ForkJoinPool.commonPool().invokeAll( tasks ) ) {
+				try {
+					future.get();
+				} catch( Exception e ) {
+					throw new IOException( e );
+				}
+			}
+		}
+		System.arraycopy( segmentPreds, 0, preds, 0, numChannels );
+		System.arraycopy( segmentSteps, 0, steps, 0, numChannels );
+	}
+
+	private static void processSegment( short[] buffer, int start, int end, int numChannels, int[] preds, int[] steps, boolean decode ) {
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			int bufferIdx = start * numChannels + channel;
+			int bufferEnd = end * numChannels + channel;
+			if( decode ) {
+				decodeChannel( buffer, bufferIdx, bufferEnd, numChannels, preds, steps, channel );
+			} else {
+				encodeChannel( buffer, bufferIdx, bufferEnd, numChannels, preds, steps, channel );
 			}
-			int inputIdx = 0, outputIdx = 0;
-			int outputEnd = count * numChannels / 2;
-			while( outputIdx < outputEnd ) {
-				outputBuf[ outputIdx++ ] = ( byte ) ( ( inputBuf[ inputIdx ] << 4 ) | ( inputBuf[ inputIdx + 1 ] & 0xF ) );
-				inputIdx += 2;
+		}
+	}
+
+	/* Write the header of the file format of main(), which is the number of channels as one byte,
+	   and the sample rate as 3 big-endian bytes. If blockSamples is non-zero, bit 7 of the first byte is set,
+	   and the block size follows as 4 big-endian bytes, so that the stream is decoded with the same block size. */
+	public static void writeHeader( OutputStream outputStream, int numChannels, int sampleRate, int blockSamples ) throws IOException {
+		if( numChannels < 1 || numChannels > 127 || sampleRate < 0 || sampleRate > 0xFFFFFF ) {
+			throw new IllegalArgumentException( "Unsupported format." );
+		}
+		if( blockSamples < 0 || ( blockSamples & 1 ) != 0 ) {
+			throw new IllegalArgumentException( "Invalid block size." );
+		}
+		outputStream.write( numChannels | ( blockSamples > 0 ? 0x80 : 0 ) );
+		outputStream.write( sampleRate >> 16 );
+		outputStream.write( sampleRate >> 8 );
+		outputStream.write( sampleRate );
+		if( blockSamples > 0 ) {
+			outputStream.write( blockSamples >> 24 );
+			outputStream.write( blockSamples >> 16 );
+			outputStream.write( blockSamples >> 8 );
+			outputStream.write( blockSamples );
+		}
+	}
+
+	/* Read the header written by writeHeader() and prepare to decode the ADPCM audio that follows it,
+	   where streamLength is the length of the whole stream, including the header. */
+	public static AdpcmSampleData readHeader( InputStream inputStream, long streamLength ) throws IOException {
+		byte[] header = new byte[ 8 ];
+		if( readFully( inputStream, header, 4 ) < 4 ) {
+			throw new IllegalArgumentException( "Invalid header." );
+		}
+		int numChannels = header[ 0 ] & 0x7F, headerBytes = 4, blockSamples = 0;
+		int sampleRate = ( ( header[ 1 ] & 0xFF ) << 16 ) | ( ( header[ 2 ] & 0xFF ) << 8 ) | ( header[ 3 ] & 0xFF );
+		if( ( header[ 0 ] & 0x80 ) != 0 ) {
+			headerBytes = 8;
+			if( readFully( inputStream, header, 4 ) < 4 ) {
+				throw new IllegalArgumentException( "Invalid header." );
 			}
-			outputStream.write( outputBuf, 0, outputEnd );
+			blockSamples = ( header[ 0 ] << 24 ) | ( ( header[ 1 ] & 0xFF ) << 16 ) | ( ( header[ 2 ] & 0xFF ) << 8 ) | ( header[ 3 ] & 0xFF );
+		}
+		if( numChannels < 1 || blockSamples < 0 || ( blockSamples & 1 ) != 0 ) {
+			throw new IllegalArgumentException( "Invalid header." );
 		}
+		long numSamples = ( streamLength - headerBytes ) * 2 / numChannels;
+		return new AdpcmSampleData( inputStream, numChannels, sampleRate, ( int ) Math.min( numSamples, Integer.MAX_VALUE ), blockSamples );
 	}
 
 	/* Prepare to decode ADPCM audio from the specified InputStream. */
 	public AdpcmSampleData( InputStream inputStream, int numChannels, int sampleRate, int numSamples ) {
+		this( inputStream, numChannels, sampleRate, numSamples, 0 );
+	}
+
+	/* Prepare to decode ADPCM audio encoded with the specified block size from the specified InputStream. */
+	public AdpcmSampleData( InputStream inputStream, int numChannels, int sampleRate, int numSamples, int blockSamples ) {
+		if( blockSamples < 0 || ( blockSamples & 1 ) != 0 ) {
+			throw new IllegalArgumentException( "Invalid block size." );
+		}
 		this.inputStream = inputStream;
 		this.numChannels = numChannels;
 		this.sampleRate = sampleRate;
+		this.blockSamples = blockSamples;
 		// Ensure numSamples is even, as getSamples() will not return less than two samples.
 		this.samplesRemaining = numSamples & -2;
-		inputBuf = new byte[ BUF_SAMPLES * numChannels / 2 ];
 		preds = new int[ numChannels ];
 		steps = new int[ numChannels ];
 	}
@@ -104,42 +459,29 @@ public class AdpcmSampleData implements SampleData {
 		if( count > samplesRemaining ) {
 			count = samplesRemaining;
 		}
-		if( count > BUF_SAMPLES ) {
-			count = BUF_SAMPLES;
+		if( count > BufferPool.getBufferSamples() ) {
+			count = BufferPool.getBufferSamples();
 		}
-		count = readFully( inputStream, inputBuf, ( count / 2 ) * numChannels ) * 2 / numChannels;
-		int outputIdx = offset * numChannels;
-		int inputIdx = 0, inputEnd = count * numChannels / 2;
-		while( inputIdx < inputEnd ) {
-			int a = inputBuf[ inputIdx++ ] & 0xFF;
-			outputBuf[ outputIdx++ ] = ( short ) ( a >> 4 );
-			outputBuf[ outputIdx++ ] = ( short ) ( a & 0xF );
+		byte[] inputBuf = BufferPool.getBytes( ( count / 2 ) * numChannels );
+		short[][] staging = null;
+		if( blockSamples < 1 && ChannelExecutor.isParallel( numChannels ) ) {
+			staging = BufferPool.getShorts( numChannels, count );
 		}
-		for( int channel = 0; channel < numChannels; channel++ ) {
-			int pred = preds[ channel ];
-			int step = steps[ channel ];
-			int bufferIdx = offset * numChannels + channel;
-			int bufferEnd = ( offset + count ) * numChannels + channel;
-			while( bufferIdx < bufferEnd ) {
-				if( step < MIN_STEP ) step = MIN_STEP;
-				if( step > MAX_STEP ) step = MAX_STEP;
-				int code = outputBuf[ bufferIdx ];
-				pred = pred + ( ( ( ( code << 1 ) - 15 ) * step ) >> 1 );
-				int out = pred >> FP_SHIFT;
-				if( out < -32768 ) {
-					outputBuf[ bufferIdx ] = -32768;
-				} else if ( out > 32767 ) {
-					outputBuf[ bufferIdx ] =  32767;
-				} else {
-					outputBuf[ bufferIdx ] = ( short ) out;
-				}
-				pred = pred + BIAS[ code ] * step;
-				step = ( step * STEP[ code ] ) >> FP_SHIFT;
-				bufferIdx += numChannels;
+		try {
+			count = readFully( inputStream, inputBuf, ( count / 2 ) * numChannels ) * 2 / numChannels;
+			int outputIdx = offset * numChannels;
+			int inputIdx = 0, inputEnd = count * numChannels / 2;
+			while( inputIdx < inputEnd ) {
+				int a = inputBuf[ inputIdx++ ] & 0xFF;
+				outputBuf[ outputIdx++ ] = ( short ) ( a >> 4 );
+				outputBuf[ outputIdx++ ] = ( short ) ( a & 0xF );
 			}
-			preds[ channel ] = pred;
-			steps[ channel ] = step;
+			processBlocks( outputBuf, offset, count, numChannels, samplePosition, blockSamples, preds, steps, staging, true, 1 );
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( staging );
 		}
+		samplePosition += count;
 		samplesRemaining -= count;
 		return count;
 	}
@@ -154,31 +496,29 @@ public class AdpcmSampleData implements SampleData {
 	}
 
 	public static void main( String[] args ) throws Exception {
-		if( args.length != 2 ) {
+		int blockSamples = 0, idx = 0;
+		if( args.length > 1 && "-block".equals( args[ 0 ] ) ) {
+			blockSamples = Integer.parseInt( args[ 1 ] );
+			idx = 2;
+		}
+		if( args.length - idx != 2 && args.length - idx != 3 ) {
 			System.err.println( "4-bit ADPCM codec. Version " + VERSION );
-			System.err.println( "  Encode: java " + AdpcmSampleData.class.getName() + " input.wav output.adpcm" );
+			System.err.println( "  Encode: java " + AdpcmSampleData.class.getName() + " [-block samples] input.wav output.adpcm [search-width]" );
 			System.err.println( "  Decode: java " + AdpcmSampleData.class.getName() + " input.adpcm output.wav" );
+			System.err.println( "  The block size, if any, is stored in the header." );
 			System.exit( 0 );
 		}
-		java.io.File inputFile = new java.io.File( args[ 0 ] );
+		java.io.File inputFile = new java.io.File( args[ idx ] );
 		java.io.FileInputStream inputStream = new java.io.FileInputStream( inputFile );
-		java.io.FileOutputStream outputStream = new java.io.FileOutputStream( args[ 1 ] ); 
+		java.io.FileOutputStream outputStream = new java.io.FileOutputStream( args[ idx + 1 ] ); 
 		if( inputFile.getName().toLowerCase().endsWith( "wav" ) ) {
 			// Encode.
 			SampleData sampleData = new WavSampleData( inputStream );
-			outputStream.write( ( byte ) sampleData.getNumChannels() );
-			int sampleRate = sampleData.getSampleRate();
-			outputStream.write( ( byte ) ( sampleData.getSampleRate() >> 16 ) );
-			outputStream.write( ( byte ) ( sampleData.getSampleRate() >> 8 ) );
-			outputStream.write( ( byte ) ( sampleData.getSampleRate() ) );
-			AdpcmSampleData.encode( sampleData, outputStream );
+			writeHeader( outputStream, sampleData.getNumChannels(), sampleData.getSampleRate(), blockSamples );
+			AdpcmSampleData.encode( sampleData, outputStream, blockSamples, args.length - idx > 2 ? Integer.parseInt( args[ idx + 2 ] ) : 1 );
 		} else {
 			// Decode.
-			int numChannels = inputStream.read();
-			int sampleRate = ( inputStream.read() << 16 ) | ( ( inputStream.read() & 0xFF ) << 8 ) | ( inputStream.read() & 0xFF );
-			int numSamples = ( ( int ) inputFile.length() - 4 ) * 2 / numChannels;
-			SampleData sampleData = new AdpcmSampleData( inputStream, numChannels, sampleRate, numSamples );
-			WavSampleData.writeWav( sampleData, outputStream );
+			WavSampleData.writeWav( readHeader( inputStream, inputFile.length() ), outputStream );
 		}
 		outputStream.close();
 	}
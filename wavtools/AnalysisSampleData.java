@@ -0,0 +1,387 @@
+
+package wavtools;
+
+/*
+	Pass-through SampleData that analyses the levels of the audio read through it, so that
+	a chain can be measured while it is being encoded, without a separate decode.
+	Per channel, the sample peak, true peak, RMS level, DC offset and number of clipped samples
+	( at -32768 or 32767 ) are measured. Levels are in sample units, where full scale is 32768.
+	The integrated loudness is measured according to EBU R128 ( ITU-R BS.1770-4 ), with K-weighting,
+	400ms blocks overlapping by 75%, and absolute and relative gating. Each channel has a weight
+	of 1, except for 6-channel ( 5.1 ) audio, where the LFE channel is excluded and the surround
+	channels are weighted by 1.41. The true peak is measured by interpolating 4 times oversampled
+	audio with a 48-tap polyphase filter.
+	If a BlockListener is specified, a summary of each block of blockSamples samples is delivered
+	as it is read, for waveform display. The final block may be shorter, and is delivered when
+	the input has no more samples remaining.
+*/
+public class AnalysisSampleData implements SampleData {
+	private static final int OVERSAMPLE = 4, TRUE_PEAK_TAPS = 12, TRUE_PEAK_GROUP = 16;
+	private static final double ABSOLUTE_GATE_LUFS = -70, RELATIVE_GATE_LU = -10;
+
+	/* Interpolation filter for the 3 phases between each input sample, applied to the 12 most recent samples. */
+	private static final float[] TRUE_PEAK_FILTER = truePeakFilter();
+
+	/* The largest sum of the absolute coefficients of a phase, which limits the interpolated values. */
+	private static final float TRUE_PEAK_GAIN = truePeakGain();
+
+	/* Receives a summary of each block. The arrays have an element for each channel, and are reused for the next block. */
+	public interface BlockListener {
+		public void block( long position, int length, short[] min, short[] max, float[] rms );
+	}
+
+	private SampleData input;
+	private int numChannels, sampleRate;
+	private long samplesRead;
+	private int[] peak;
+	private long[] clips;
+	private double[] sum, sumSquares;
+	private float[] truePeak, history;
+
+	/* K-weighting high-shelf and high-pass biquads, and their state for each channel. */
+	private double shelfB0, shelfB1, shelfB2, shelfA1, shelfA2, highPassA1, highPassA2;
+	private double[] filterState;
+	private float[] weights;
+
+	/* Weighted K-filtered energy of each 100ms step, and the mean-square of each gating block. */
+	private int stepSamples, stepPosition, numSteps, numBlocks;
+	private double stepEnergy;
+	private double[] stepEnergies = new double[ 4 ], blockEnergies = new double[ 64 ];
+
+	private BlockListener listener;
+	private int blockSamples, blockPosition;
+	private short[] blockMin, blockMax;
+	private float[] blockRms;
+	private double[] blockSquares;
+
+	public AnalysisSampleData( SampleData input ) {
+		this( input, 0, null );
+	}
+
+	/* Analyse the input, and deliver a summary of every blockSamples samples to the listener, if not null. */
+	public AnalysisSampleData( SampleData input, int blockSamples, BlockListener listener ) {
+		if( listener != null && blockSamples < 1 ) {
+			throw new IllegalArgumentException( "Invalid block length." );
+		}
+		this.input = input;
+		this.listener = listener;
+		this.blockSamples = blockSamples;
+		numChannels = input.getNumChannels();
+		sampleRate = input.getSampleRate();
+		peak = new int[ numChannels ];
+		clips = new long[ numChannels ];
+		sum = new double[ numChannels ];
+		sumSquares = new double[ numChannels ];
+		truePeak = new float[ numChannels ];
+		history = new float[ numChannels * ( TRUE_PEAK_TAPS - 1 + TRUE_PEAK_GROUP ) ];
+		blockMin = new short[ numChannels ];
+		blockMax = new short[ numChannels ];
+		blockRms = new float[ numChannels ];
+		blockSquares = new double[ numChannels ];
+		resetBlock();
+		weights = new float[ numChannels ];
+		java.util.Arrays.fill( weights, 1 );
+		if( numChannels == 6 ) {
+			weights[ 3 ] = 0;
+			weights[ 4 ] = weights[ 5 ] = 1.41f;
+		}
+		stepSamples = ( sampleRate + 5 ) / 10;
+		// K-weighting filter coefficients for the sample rate, as in BS.1770.
+		double k = Math.tan( Math.PI * 1681.974450955533 / sampleRate );
+		double q = 0.7071752369554196, vh = Math.pow( 10, 3.999843853973347 / 20 ), vb = Math.pow( vh, 0.4996667741545416 );
+		double a0 = 1 + k / q + k * k;
+		shelfB0 = ( vh + vb * k / q + k * k ) / a0;
+		shelfB1 = 2 * ( k * k - vh ) / a0;
+		shelfB2 = ( vh - vb * k / q + k * k ) / a0;
+		shelfA1 = 2 * ( k * k - 1 ) / a0;
+		shelfA2 = ( 1 - k / q + k * k ) / a0;
+		k = Math.tan( Math.PI * 38.13547087602444 / sampleRate );
+		q = 0.5003270373238773;
+		a0 = 1 + k / q + k * k;
+		highPassA1 = 2 * ( k * k - 1 ) / a0;
+		highPassA2 = ( 1 - k / q + k * k ) / a0;
+		filterState = new double[ numChannels * 4 ];
+	}
+
+	/* Windowed-sinc coefficients for fractional positions of 1/4, 2/4 and 3/4, each normalized for unity gain at DC. */
+	private static float[] truePeakFilter() {
+		float[] filter = new float[ ( OVERSAMPLE - 1 ) * TRUE_PEAK_TAPS ];
+		for( int phase = 1; phase < OVERSAMPLE; phase++ ) {
+			double[] row = new double[ TRUE_PEAK_TAPS ];
+			double rowSum = 0;
+			for( int tap = 0; tap < TRUE_PEAK_TAPS; tap++ ) {
+				// Tap 0 is the oldest sample, and the interpolated position follows tap 5.
+				double x = tap - ( TRUE_PEAK_TAPS / 2 - 1 ) - ( double ) phase / OVERSAMPLE;
+				double w = Math.cos( Math.PI * x / ( TRUE_PEAK_TAPS + 1 ) );
+				row[ tap ] = Math.sin( Math.PI * x ) / ( Math.PI * x ) * w * w;
+				rowSum += row[ tap ];
+			}
+			for( int tap = 0; tap < TRUE_PEAK_TAPS; tap++ ) {
+				filter[ ( phase - 1 ) * TRUE_PEAK_TAPS + tap ] = ( float ) ( row[ tap ] / rowSum );
+			}
+		}
+		return filter;
+	}
+
+	private static float truePeakGain() {
+		float gain = 0;
+		for( int phase = 0; phase < TRUE_PEAK_FILTER.length; phase += TRUE_PEAK_TAPS ) {
+			float sum = 0;
+			for( int tap = 0; tap < TRUE_PEAK_TAPS; tap++ ) {
+				sum += Math.abs( TRUE_PEAK_FILTER[ phase + tap ] );
+			}
+			gain = sum > gain ? sum : gain;
+		}
+		// Allow for rounding.
+		return gain * 1.001f;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return input.getSamplesRemaining();
+	}
+
+	public int getSamples( short[] buffer, int offset, int count ) throws Exception {
+		count = input.getSamples( buffer, offset, count );
+		int idx = offset, end = offset + ( count > 0 ? count : 0 );
+		while( idx < end ) {
+			int length = end - idx;
+			if( length > stepSamples - stepPosition ) {
+				length = stepSamples - stepPosition;
+			}
+			if( listener != null && length > blockSamples - blockPosition ) {
+				length = blockSamples - blockPosition;
+			}
+			for( int chn = 0; chn < numChannels; chn++ ) {
+				analyse( buffer, idx * numChannels + chn, length, chn );
+				truePeak[ chn ] = truePeak( buffer, idx * numChannels + chn, length, chn, truePeak[ chn ] );
+			}
+			idx += length;
+			samplesRead += length;
+			stepPosition += length;
+			if( stepPosition >= stepSamples ) {
+				endStep();
+			}
+			blockPosition += length;
+			if( listener != null && blockPosition >= blockSamples ) {
+				endBlock();
+			}
+		}
+		if( listener != null && blockPosition > 0 && input.getSamplesRemaining() <= 0 ) {
+			endBlock();
+		}
+		return count;
+	}
+
+	/* Analyse length samples of one channel, starting at the specified buffer index. */
+	private void analyse( short[] buffer, int idx, int length, int chn ) {
+		int end = idx + length * numChannels;
+		int peak = this.peak[ chn ], min = blockMin[ chn ], max = blockMax[ chn ];
+		long clips = 0, sum = 0;
+		double squares = 0, energy = 0;
+		double b0 = shelfB0, b1 = shelfB1, b2 = shelfB2, a1 = shelfA1, a2 = shelfA2, hpA1 = highPassA1, hpA2 = highPassA2;
+		int stateIdx = chn * 4;
+		double s1 = filterState[ stateIdx ], s2 = filterState[ stateIdx + 1 ], s3 = filterState[ stateIdx + 2 ], s4 = filterState[ stateIdx + 3 ];
+		for( ; idx < end; idx += numChannels ) {
+			int amp = buffer[ idx ];
+			if( amp < min ) {
+				min = amp;
+			}
+			if( amp > max ) {
+				max = amp;
+			}
+			if( amp == 32767 || amp == -32768 ) {
+				clips++;
+			}
+			sum += amp;
+			double x = amp;
+			squares += x * x;
+			// K-weighting, as two transposed direct-form II biquads.
+			double y = b0 * x + s1;
+			s1 = b1 * x - a1 * y + s2;
+			s2 = b2 * x - a2 * y;
+			double z = y + s3;
+			s3 = -2 * y - hpA1 * z + s4;
+			s4 = y - hpA2 * z;
+			energy += z * z;
+		}
+		peak = -min > peak ? -min : peak;
+		this.peak[ chn ] = max > peak ? max : peak;
+		this.clips[ chn ] += clips;
+		this.sum[ chn ] += sum;
+		sumSquares[ chn ] += squares;
+		blockMin[ chn ] = ( short ) min;
+		blockMax[ chn ] = ( short ) max;
+		blockSquares[ chn ] += squares;
+		stepEnergy += energy * weights[ chn ];
+		filterState[ stateIdx ] = s1;
+		filterState[ stateIdx + 1 ] = s2;
+		filterState[ stateIdx + 2 ] = s3;
+		filterState[ stateIdx + 3 ] = s4;
+	}
+
+	/* Return the largest of peak and the absolute values interpolated between length samples of one channel.
+	   The samples are filtered in groups, appended to the end of the channel's history.
+	   Groups that cannot exceed the peak are not interpolated. */
+	private float truePeak( short[] buffer, int idx, int length, int chn, float peak ) {
+		float[] history = this.history, filter = TRUE_PEAK_FILTER;
+		int keep = TRUE_PEAK_TAPS - 1, base = chn * ( keep + TRUE_PEAK_GROUP );
+		while( length > 0 ) {
+			int count = length < TRUE_PEAK_GROUP ? length : TRUE_PEAK_GROUP;
+			float max = 0;
+			for( int tap = base, end = base + keep; tap < end; tap++ ) {
+				max = Math.max( max, Math.abs( history[ tap ] ) );
+			}
+			for( int tap = base + keep, end = tap + count; tap < end; tap++, idx += numChannels ) {
+				float amp = buffer[ idx ];
+				history[ tap ] = amp;
+				max = Math.max( max, Math.abs( amp ) );
+			}
+			if( max * TRUE_PEAK_GAIN > peak ) {
+				for( int start = base, end = base + count; start < end; start++ ) {
+					for( int phase = 0; phase < filter.length; phase += TRUE_PEAK_TAPS ) {
+						float interpolated = 0;
+						for( int tap = 0; tap < TRUE_PEAK_TAPS; tap++ ) {
+							interpolated += history[ start + tap ] * filter[ phase + tap ];
+						}
+						peak = Math.max( peak, Math.abs( interpolated ) );
+					}
+				}
+			}
+			System.arraycopy( history, base + count, history, base, keep );
+			length -= count;
+		}
+		return peak;
+	}
+
+	/* Record the energy of a 100ms step, and of the 400ms gating block ending with it. */
+	private void endStep() {
+		stepEnergies[ numSteps & 3 ] = stepEnergy;
+		numSteps++;
+		stepEnergy = 0;
+		stepPosition = 0;
+		if( numSteps >= 4 ) {
+			if( numBlocks >= blockEnergies.length ) {
+				blockEnergies = java.util.Arrays.copyOf( blockEnergies, numBlocks * 2 );
+			}
+			double blockEnergy = stepEnergies[ 0 ] + stepEnergies[ 1 ] + stepEnergies[ 2 ] + stepEnergies[ 3 ];
+			blockEnergies[ numBlocks++ ] = blockEnergy / ( 4.0 * stepSamples * 32768.0 * 32768.0 );
+		}
+	}
+
+	private void endBlock() {
+		for( int chn = 0; chn < numChannels; chn++ ) {
+			blockRms[ chn ] = ( float ) Math.sqrt( blockSquares[ chn ] / blockPosition );
+		}
+		listener.block( samplesRead - blockPosition, blockPosition, blockMin, blockMax, blockRms );
+		resetBlock();
+	}
+
+	private void resetBlock() {
+		blockPosition = 0;
+		java.util.Arrays.fill( blockMin, Short.MAX_VALUE );
+		java.util.Arrays.fill( blockMax, Short.MIN_VALUE );
+		java.util.Arrays.fill( blockSquares, 0 );
+	}
+
+	/* Return the number of samples analysed so far. */
+	public long getSamplesAnalysed() {
+		return samplesRead;
+	}
+
+	/* Return the largest absolute sample value of the specified channel. */
+	public int getPeak( int channel ) {
+		return peak[ channel ];
+	}
+
+	/* Return the largest absolute value of the specified channel when oversampled, which is at least the sample peak. */
+	public double getTruePeak( int channel ) {
+		return truePeak[ channel ] > peak[ channel ] ? truePeak[ channel ] : peak[ channel ];
+	}
+
+	public double getRms( int channel ) {
+		return samplesRead > 0 ? Math.sqrt( sumSquares[ channel ] / samplesRead ) : 0;
+	}
+
+	/* Return the mean sample value of the specified channel. */
+	public double getDcOffset( int channel ) {
+		return samplesRead > 0 ? sum[ channel ] / samplesRead : 0;
+	}
+
+	/* Return the number of samples of the specified channel at the limits of the sample range. */
+	public long getClipCount( int channel ) {
+		return clips[ channel ];
+	}
+
+	/* Return the gated integrated loudness in LUFS, or negative infinity if there are no blocks above the gates. */
+	public double getIntegratedLoudness() {
+		double absoluteGate = Math.pow( 10, ( ABSOLUTE_GATE_LUFS + 0.691 ) / 10 );
+		double energy = 0;
+		int count = 0;
+		for( int idx = 0; idx < numBlocks; idx++ ) {
+			if( blockEnergies[ idx ] > absoluteGate ) {
+				energy += blockEnergies[ idx ];
+				count++;
+			}
+		}
+		if( count < 1 ) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		double relativeGate = energy / count * Math.pow( 10, RELATIVE_GATE_LU / 10 );
+		energy = 0;
+		count = 0;
+		for( int idx = 0; idx < numBlocks; idx++ ) {
+			if( blockEnergies[ idx ] > absoluteGate && blockEnergies[ idx ] > relativeGate ) {
+				energy += blockEnergies[ idx ];
+				count++;
+			}
+		}
+		return -0.691 + 10 * Math.log10( energy / count );
+	}
+
+	/* Convert a level in sample units to decibels relative to full scale. */
+	public static double toDecibels( double level ) {
+		return 20 * Math.log10( level / 32768 );
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 1 && args.length != 2 ) {
+			System.err.println( "Level and loudness analyser." );
+			System.err.println( "Usage: java " + AnalysisSampleData.class.getName() + " input.wav [blockSamples]" );
+			System.err.println( "  If blockSamples is specified, the minimum and maximum of each block are also printed." );
+			System.exit( 0 );
+		}
+		BlockListener listener = null;
+		if( args.length > 1 ) {
+			listener = new BlockListener() {
+				public void block( long position, int length, short[] min, short[] max, float[] rms ) {
+					StringBuilder line = new StringBuilder( String.valueOf( position ) );
+					for( int chn = 0; chn < min.length; chn++ ) {
+						line.append( ' ' ).append( min[ chn ] ).append( ' ' ).append( max[ chn ] );
+					}
+					System.out.println( line );
+				}
+			};
+		}
+		try( java.io.InputStream inputStream = new java.io.FileInputStream( args[ 0 ] ) ) {
+			SampleData sampleData = new WavSampleData( new java.io.BufferedInputStream( inputStream ) );
+			AnalysisSampleData analysis = new AnalysisSampleData( sampleData, args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 0, listener );
+			short[] buffer = new short[ BufferPool.getBufferSamples() * analysis.getNumChannels() ];
+			while( analysis.getSamplesRemaining() > 0 && analysis.getSamples( buffer, 0, BufferPool.getBufferSamples() ) > 0 ) {
+			}
+			for( int chn = 0; chn < analysis.getNumChannels(); chn++ ) {
+				System.out.println( String.format( "Channel %d: peak %.2f dBFS, true peak %.2f dBTP, RMS %.2f dBFS, DC offset %.2f, %d clipped",
+					chn, toDecibels( analysis.getPeak( chn ) ), toDecibels( analysis.getTruePeak( chn ) ), toDecibels( analysis.getRms( chn ) ),
+					analysis.getDcOffset( chn ), analysis.getClipCount( chn ) ) );
+			}
+			System.out.println( String.format( "Integrated loudness %.1f LUFS", analysis.getIntegratedLoudness() ) );
+		}
+	}
+}
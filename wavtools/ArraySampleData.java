@@ -2,7 +2,7 @@
 package wavtools;
 
 /* An in-memory SampleData implementation. */
-public class ArraySampleData implements SampleData {
+public class ArraySampleData implements SeekableSampleData {
 	private short[] inputBuf;
 	private int numChannels, sampleRate, numSamples, inputOffset;
 
@@ -17,17 +17,52 @@ public class ArraySampleData implements SampleData {
 		this.numChannels = sampleData.getNumChannels();
 		this.sampleRate = sampleData.getSampleRate();
 		this.numSamples = sampleData.getSamplesRemaining();
+		if( numSamples == Integer.MAX_VALUE ) {
+			// Unknown length, the array grows as required.
+			readUnknownLength( sampleData );
+			return;
+		}
 		this.inputBuf = new short[ numSamples * numChannels ];
 		int offset = 0;
 		while( sampleData.getSamplesRemaining() > 0 ) {
 			offset += sampleData.getSamples( inputBuf, offset, numSamples - offset );
 		}
 	}
+
+	private void readUnknownLength( SampleData sampleData ) throws Exception {
+		inputBuf = new short[ BufferPool.getBufferSamples() * numChannels ];
+		numSamples = 0;
+		while( sampleData.getSamplesRemaining() > 0 ) {
+			if( numSamples == inputBuf.length / numChannels ) {
+				if( inputBuf.length > ( Integer.MAX_VALUE - 8 ) / 2 ) {
+					throw new IllegalArgumentException( "Input too long." );
+				}
+				inputBuf = java.util.Arrays.copyOf( inputBuf, inputBuf.length * 2 );
+			}
+			int count = sampleData.getSamples( inputBuf, numSamples, inputBuf.length / numChannels - numSamples );
+			if( count < 1 ) {
+				break;
+			}
+			numSamples += count;
+		}
+		inputBuf = java.util.Arrays.copyOf( inputBuf, numSamples * numChannels );
+	}
 	
 	public void setOffset( int offset ) {
 		inputOffset = offset;
 	}
 
+	public void seek( int offset ) {
+		if( offset < 0 || offset > numSamples ) {
+			throw new IllegalArgumentException( "Offset out of range: " + offset );
+		}
+		inputOffset = offset;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
 	public short[] getArray() {
 		return inputBuf;
 	}
@@ -0,0 +1,326 @@
+
+package wavtools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+	Applies a codec or filter to every file in a directory tree or manifest,
+	using a pool of worker threads within a single JVM.
+	The codecs encode WAV files, or decode files in their own format to WAV,
+	in the same way as their command-line tools.
+*/
+public class BatchTranscoder {
+	private static final int IO_BUF_BYTES = 1 << 16;
+
+	private String codec;
+	private String[] filters;
+
+	private long totalSamples, totalBytes;
+	private int numFiles, numErrors;
+
+	/* The chain is a comma-separated list of filters ( "quantize" or "dnr[=db]" ),
+	   optionally ending with a codec ( "adpcm", "compressed", "eightbit" or "lossless" ). */
+	public BatchTranscoder( String chain ) {
+		String[] ops = chain.split( "," );
+		int numFilters = ops.length;
+		switch( ops[ numFilters - 1 ] ) {
+			case "adpcm": case "compressed": case "eightbit": case "lossless":
+				codec = ops[ --numFilters ];
+				break;
+		}
+		filters = new String[ numFilters ];
+		for( int idx = 0; idx < numFilters; idx++ ) {
+			if( !ops[ idx ].equals( "quantize" ) && !ops[ idx ].equals( "dnr" ) && !ops[ idx ].startsWith( "dnr=" ) ) {
+				throw new IllegalArgumentException( "Unknown operation: " + ops[ idx ] );
+			}
+			filters[ idx ] = ops[ idx ];
+		}
+	}
+
+	/* Return the name of the output file for the specified input file. */
+	public String getOutputName( String inputName ) {
+		String baseName = inputName.lastIndexOf( '.' ) > 0 ? inputName.substring( 0, inputName.lastIndexOf( '.' ) ) : inputName;
+		if( isWav( inputName ) && codec != null ) {
+			return baseName + ( codec.equals( "adpcm" ) ? ".adpcm" : codec.equals( "lossless" ) ? ".lsl" : ".pcm" );
+		}
+		return baseName + ".wav";
+	}
+
+	/* Process a single file, returning the number of samples processed.
+	   WAV files are filtered and then encoded with the codec, if any.
+	   Other files are decoded with the codec, filtered, and written as WAV.
+	   If processing fails, the partial output file is deleted. */
+	public int transcode( File inputFile, File outputFile ) throws Exception {
+		if( outputFile.getCanonicalFile().equals( inputFile.getCanonicalFile() ) ) {
+			throw new IllegalArgumentException( "Output would overwrite the input file: " + outputFile.getPath() );
+		}
+		try {
+			return process( inputFile, outputFile );
+		} catch( Exception e ) {
+			outputFile.delete();
+			throw e;
+		}
+	}
+
+	private int process( File inputFile, File outputFile ) throws Exception {
+		try( InputStream inputStream = new BufferedInputStream( new FileInputStream( inputFile ), IO_BUF_BYTES ) ) {
+			try( OutputStream outputStream = new BufferedOutputStream( new FileOutputStream( outputFile ), IO_BUF_BYTES ) ) {
+				if( isWav( inputFile.getName() ) ) {
+					SampleData sampleData = new WavSampleData( inputStream );
+					int numSamples = sampleData.getSamplesRemaining();
+					sampleData = filter( sampleData, "wav-read" );
+					if( codec == null ) {
+						WavSampleData.writeWav( sampleData, outputStream );
+						return numSamples;
+					}
+					if( codec.equals( "lossless" ) ) {
+						// The lossless format has its own header.
+						LosslessSampleData.encode( sampleData, outputStream );
+						return numSamples;
+					}
+					switch( codec ) {
+						case "adpcm":
+							AdpcmSampleData.writeHeader( outputStream, sampleData.getNumChannels(), sampleData.getSampleRate(), 0 );
+							AdpcmSampleData.encode( sampleData, outputStream );
+							break;
+						case "compressed":
+							writeHeader( outputStream, sampleData.getNumChannels(), sampleData.getSampleRate() );
+							CompressedSampleData.encode( sampleData, outputStream );
+							break;
+						case "eightbit":
+							writeHeader( outputStream, sampleData.getNumChannels(), sampleData.getSampleRate() );
+							EightBitSampleData.encode( sampleData, outputStream );
+							break;
+					}
+					return numSamples;
+				}
+				if( codec == null ) {
+					throw new IllegalArgumentException( "Not a WAV file." );
+				}
+				if( codec.equals( "lossless" ) || codec.equals( "adpcm" ) ) {
+					// These formats have their own header readers.
+					SampleData sampleData = codec.equals( "lossless" ) ? new LosslessSampleData( inputStream )
+						: AdpcmSampleData.readHeader( inputStream, inputFile.length() );
+					int numSamples = sampleData.getSamplesRemaining();
+					WavSampleData.writeWav( filter( sampleData, codec + "-decode" ), outputStream );
+					return numSamples;
+				}
+				int numChannels = inputStream.read();
+				int sampleRate = ( inputStream.read() << 16 ) | ( ( inputStream.read() & 0xFF ) << 8 ) | ( inputStream.read() & 0xFF );
+				if( numChannels < 1 || sampleRate < 0 ) {
+					throw new IllegalArgumentException( "Invalid header." );
+				}
+				long dataLength = inputFile.length() - 4;
+				SampleData sampleData;
+				switch( codec ) {
+					case "compressed":
+						sampleData = new CompressedSampleData( inputStream, numChannels, sampleRate, ( int ) ( dataLength / numChannels ) );
+						break;
+					default:
+						sampleData = new EightBitSampleData( inputStream, numChannels, sampleRate, ( int ) ( dataLength / numChannels ) );
+						break;
+				}
+				int numSamples = sampleData.getSamplesRemaining();
+				WavSampleData.writeWav( filter( sampleData, codec + "-decode" ), outputStream );
+				return numSamples;
+			}
+		}
+	}
+
+	/* Write the 4-byte header of the compressed and 8-bit formats, as written by their command-line tools.
+	   The number of channels is stored in one byte, and the sample rate in three. */
+	private static void writeHeader( OutputStream outputStream, int numChannels, int sampleRate ) throws IOException {
+		if( numChannels < 1 || numChannels > 255 || sampleRate < 0 || sampleRate > 0xFFFFFF ) {
+			throw new IllegalArgumentException( "Unsupported format." );
+		}
+		outputStream.write( numChannels );
+		outputStream.write( sampleRate >> 16 );
+		outputStream.write( sampleRate >> 8 );
+		outputStream.write( sampleRate );
+	}
+
+	/* Apply the filters to the named source. Each stage is metered if enabled by MetricsRegistry. */
+	private SampleData filter( SampleData sampleData, String source ) {
+		sampleData = MeteredSampleData.wrap( sampleData, source );
+		for( String filter : filters ) {
+			if( filter.equals( "quantize" ) ) {
+				sampleData = new QuantizedSampleData( sampleData );
+			} else {
+				sampleData = new NoiseReduction( sampleData, filter.length() > 4 ? Integer.parseInt( filter.substring( 4 ) ) : 54 );
+			}
+			sampleData = MeteredSampleData.wrap( sampleData, filter );
+		}
+		return sampleData;
+	}
+
+	/* Process each input file into the corresponding output file using the specified number of threads.
+	   Per-file timing is printed as each file completes, followed by the overall throughput.
+	   Nothing is processed if any output file is also an input file, or is the output of more than one input. */
+	public void run( List<File> inputFiles, List<File> outputFiles, int numThreads ) throws Exception {
+		checkOutputs( inputFiles, outputFiles );
+		ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			long startTime = System.nanoTime();
+			for( int idx = 0; idx < inputFiles.size(); idx++ ) {
+				final File inputFile = inputFiles.get( idx );
+				final File outputFile = outputFiles.get( idx );
+				futures.add( executor.submit( new Runnable() {
+					public void run() {
+						long fileStart = System.nanoTime();
+						try {
+							File parent = outputFile.getParentFile();
+							if( parent != null ) {
+								parent.mkdirs();
+							}
+							int numSamples = transcode( inputFile, outputFile );
+							long time = System.nanoTime() - fileStart;
+							completed( inputFile, numSamples, time );
+						} catch( Exception e ) {
+							failed( inputFile, e );
+						}
+					}
+				} ) );
+			}
+			for( Future<?> future : futures ) {
+				future.get();
+			}
+			double seconds = ( System.nanoTime() - startTime ) / 1e9;
+			System.out.println( String.format( "%d files, %d errors, %d samples in %.3fs, %.2f Msamples/s, %.2f MB/s",
+				numFiles, numErrors, totalSamples, seconds, totalSamples / seconds / 1e6, totalBytes / seconds / ( 1 << 20 ) ) );
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private synchronized void completed( File inputFile, int numSamples, long nanos ) {
+		numFiles++;
+		totalSamples += numSamples;
+		totalBytes += inputFile.length();
+		System.out.println( String.format( "%s %d samples %.3fms %.2f Msamples/s", inputFile.getPath(), numSamples, nanos / 1e6, numSamples * 1e3 / nanos ) );
+	}
+
+	private synchronized void failed( File inputFile, Exception e ) {
+		numErrors++;
+		System.err.println( inputFile.getPath() + " failed: " + e );
+	}
+
+	/* Return the number of files that could not be processed. */
+	public synchronized int getNumErrors() {
+		return numErrors;
+	}
+
+	private static boolean isWav( String fileName ) {
+		return fileName.toLowerCase().endsWith( "wav" );
+	}
+
+	private static void checkOutputs( List<File> inputFiles, List<File> outputFiles ) throws IOException {
+		if( inputFiles.size() != outputFiles.size() ) {
+			throw new IllegalArgumentException( "Number of input and output files differ." );
+		}
+		Set<File> inputs = new HashSet<File>();
+		for( File inputFile : inputFiles ) {
+			inputs.add( inputFile.getCanonicalFile() );
+		}
+		Set<File> outputs = new HashSet<File>();
+		for( File outputFile : outputFiles ) {
+			File canonical = outputFile.getCanonicalFile();
+			if( inputs.contains( canonical ) ) {
+				throw new IllegalArgumentException( "Output would overwrite an input file: " + outputFile.getPath() );
+			}
+			if( !outputs.add( canonical ) ) {
+				throw new IllegalArgumentException( "Output file of more than one input: " + outputFile.getPath() );
+			}
+		}
+	}
+
+	/* Add the files of the input directory tree to inputFiles, and the corresponding files
+	   of the same relative path within the output directory to outputFiles. */
+	public void addDirectory( File inputDir, File outputDir, List<File> inputFiles, List<File> outputFiles ) {
+		File[] files = inputDir.listFiles();
+		if( files != null ) {
+			Arrays.sort( files );
+			for( File file : files ) {
+				if( file.isDirectory() ) {
+					addDirectory( file, new File( outputDir, file.getName() ), inputFiles, outputFiles );
+				} else if( file.isFile() ) {
+					inputFiles.add( file );
+					outputFiles.add( new File( outputDir, getOutputName( file.getName() ) ) );
+				}
+			}
+		}
+	}
+
+	/* Add the files listed in the manifest, one per line, to inputFiles, and the corresponding files
+	   within the output directory to outputFiles. Relative paths are kept within the output directory,
+	   and absolute paths ( or relative paths outside the current directory ) are kept without their root. */
+	public void addManifest( File manifest, File outputDir, List<File> inputFiles, List<File> outputFiles ) throws IOException {
+		for( String line : Files.readAllLines( manifest.toPath(), StandardCharsets.UTF_8 ) ) {
+			if( line.trim().length() > 0 ) {
+				File inputFile = new File( line.trim() );
+				Path path = inputFile.toPath().normalize();
+				if( path.isAbsolute() || path.startsWith( ".." ) ) {
+					path = path.toAbsolutePath().normalize();
+					path = path.getRoot().relativize( path );
+				}
+				Path parent = path.getParent();
+				inputFiles.add( inputFile );
+				outputFiles.add( new File( parent != null ? new File( outputDir, parent.toString() ) : outputDir, getOutputName( inputFile.getName() ) ) );
+			}
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		int numThreads = Runtime.getRuntime().availableProcessors(), idx = 0;
+		if( args.length > 1 && "-threads".equals( args[ 0 ] ) ) {
+			numThreads = Integer.parseInt( args[ 1 ] );
+			idx = 2;
+		}
+		if( args.length > idx && "-metrics".equals( args[ idx ] ) ) {
+			MetricsRegistry.setEnabled( true );
+			idx++;
+		}
+		if( args.length - idx != 3 ) {
+			System.err.println( "Batch transcoder.\nUsage: java " + BatchTranscoder.class.getName()
+				+ " [-threads n] [-metrics] chain input-dir|@manifest output-dir" );
+			System.err.println( "  The chain is a comma-separated list of filters ( quantize, dnr[=db] ),\n  optionally ending with a codec ( adpcm, compressed, eightbit, lossless )." );
+			System.exit( 0 );
+		}
+		BatchTranscoder transcoder = new BatchTranscoder( args[ idx ] );
+		String input = args[ idx + 1 ];
+		File outputDir = new File( args[ idx + 2 ] );
+		List<File> inputFiles = new ArrayList<File>();
+		List<File> outputFiles = new ArrayList<File>();
+		if( input.startsWith( "@" ) ) {
+			// Manifest of one input file per line.
+			transcoder.addManifest( new File( input.substring( 1 ) ), outputDir, inputFiles, outputFiles );
+		} else {
+			transcoder.addDirectory( new File( input ), outputDir, inputFiles, outputFiles );
+		}
+		transcoder.run( inputFiles, outputFiles, numThreads );
+		if( MetricsRegistry.isEnabled() ) {
+			System.out.print( MetricsRegistry.dump() );
+		}
+		if( transcoder.getNumErrors() > 0 ) {
+			System.exit( 1 );
+		}
+	}
+}
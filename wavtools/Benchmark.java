@@ -0,0 +1,376 @@
+
+package wavtools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/* Throughput and allocation benchmarks for the codecs and filters.
+   Usage: java wavtools.Benchmark [name-filter] */
+public class Benchmark {
+	private static final int NUM_SAMPLES = 1 << 18;
+	private static final int SAMPLE_RATE = 44100;
+	private static final long WARMUP_NANOS = 1000000000L, MEASURE_NANOS = 2000000000L;
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		public void write( int b ) {}
+		public void write( byte[] b, int off, int len ) {}
+	};
+
+	private static final String[] CASES = {
+		"wav-read-8", "wav-read-16", "wav-read-24", "wav-write",
+		"adpcm-encode", "adpcm-decode", "adpcm-decode-cached", "adpcm-decode-cached-offheap", "compressed-encode", "compressed-encode-cbrt", "compressed-encode-parallel", "compressed-decode",
+		"lossless-encode", "lossless-decode", "lossless-quantized-encode",
+		"eightbit-encode", "eightbit-encode-parallel", "eightbit-decode", "quantized", "quantized-metered", "quantized-deep", "quantized-deep-large", "noise-reduction", "noise-reduction-fast", "noise-reduction-float", "downmix", "downmix-matrix", "timeline", "analysis", "overview",
+		"resample-low", "resample-medium", "resample-high"
+	};
+
+	private static final int[] CHANNELS = { 1, 2, 8 };
+
+	private static final int[] SEARCH_WIDTHS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	private short[] samples, outputBuf;
+	private byte[] wav8, wav16, wav24, adpcm, compressed, eightBit, lossless;
+	private int numChannels;
+	private java.io.File wavFile, encodedFile;
+	private DecodeCache cache = new DecodeCache( 1 << 26 ), offHeapCache = new DecodeCache( 1 << 26, true );
+
+	public Benchmark( int numChannels ) throws Exception {
+		this.numChannels = numChannels;
+		samples = testSignal( NUM_SAMPLES, numChannels );
+		wav8 = pcmWav( samples, numChannels, 1 );
+		wav16 = pcmWav( samples, numChannels, 2 );
+		wav24 = pcmWav( samples, numChannels, 3 );
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( input(), outputStream );
+		adpcm = outputStream.toByteArray();
+		outputStream = new ByteArrayOutputStream();
+		CompressedSampleData.encode( input(), outputStream );
+		compressed = outputStream.toByteArray();
+		outputStream = new ByteArrayOutputStream();
+		EightBitSampleData.encode( input(), outputStream );
+		eightBit = outputStream.toByteArray();
+		outputStream = new ByteArrayOutputStream();
+		LosslessSampleData.encode( input(), outputStream );
+		lossless = outputStream.toByteArray();
+	}
+
+	/* Run one operation over the whole test signal. */
+	public void run( String name ) throws Exception {
+		switch( name ) {
+			case "wav-read-8":
+				drain( new WavSampleData( new ByteArrayInputStream( wav8 ) ) );
+				break;
+			case "wav-read-16":
+				drain( new WavSampleData( new ByteArrayInputStream( wav16 ) ) );
+				break;
+			case "wav-read-24":
+				drain( new WavSampleData( new ByteArrayInputStream( wav24 ) ) );
+				break;
+			case "wav-write":
+				WavSampleData.writeWav( input(), NULL_OUTPUT );
+				break;
+			case "adpcm-encode":
+				AdpcmSampleData.encode( input(), NULL_OUTPUT );
+				break;
+			case "adpcm-decode":
+				drain( new AdpcmSampleData( new ByteArrayInputStream( adpcm ), numChannels, SAMPLE_RATE, NUM_SAMPLES ) );
+				break;
+			case "adpcm-decode-cached":
+				drain( cache.get( "adpcm", adpcmDecoder() ) );
+				break;
+			case "adpcm-decode-cached-offheap":
+				drain( offHeapCache.get( "adpcm", adpcmDecoder() ) );
+				break;
+			case "compressed-encode":
+				CompressedSampleData.encode( input(), NULL_OUTPUT );
+				break;
+			case "compressed-encode-cbrt":
+				CompressedSampleData.encode( input(), NULL_OUTPUT, false );
+				break;
+			case "compressed-encode-parallel":
+				encodeParallel( ParallelEncoder.COMPRESSED );
+				break;
+			case "compressed-decode":
+				drain( new CompressedSampleData( new ByteArrayInputStream( compressed ), numChannels, SAMPLE_RATE, NUM_SAMPLES ) );
+				break;
+			case "lossless-encode":
+				LosslessSampleData.encode( input(), NULL_OUTPUT );
+				break;
+			case "lossless-decode":
+				drain( new LosslessSampleData( new ByteArrayInputStream( lossless ) ) );
+				break;
+			case "lossless-quantized-encode":
+				LosslessSampleData.encode( new QuantizedSampleData( input() ), NULL_OUTPUT );
+				break;
+			case "eightbit-encode":
+				EightBitSampleData.encode( input(), NULL_OUTPUT );
+				break;
+			case "eightbit-encode-parallel":
+				encodeParallel( ParallelEncoder.EIGHT_BIT );
+				break;
+			case "eightbit-decode":
+				drain( new EightBitSampleData( new ByteArrayInputStream( eightBit ), numChannels, SAMPLE_RATE, NUM_SAMPLES ) );
+				break;
+			case "quantized":
+				drain( new QuantizedSampleData( input() ) );
+				break;
+			case "quantized-metered":
+				// Metering of both stages, to be compared with "quantized".
+				MetricsRegistry.setEnabled( true );
+				try {
+					drain( new MeteredSampleData( new QuantizedSampleData( new MeteredSampleData( input(), "source" ) ), "quantized" ) );
+				} finally {
+					MetricsRegistry.setEnabled( false );
+				}
+				break;
+			case "quantized-deep":
+				drain( deepChain( false ) );
+				break;
+			case "quantized-deep-large":
+				drain( deepChain( true ) );
+				break;
+			case "noise-reduction":
+				drain( new NoiseReduction( input(), 54 ) );
+				break;
+			case "noise-reduction-fast":
+				drain( new NoiseReduction( input(), 54, true ) );
+				break;
+			case "noise-reduction-float":
+				drain( new ShortSampleDataAdapter( new FloatNoiseReduction( new FloatSampleDataAdapter( input() ), 54 ) ) );
+				break;
+			case "downmix":
+				drain( ChannelMatrixSampleData.downmix( input() ) );
+				break;
+			case "downmix-matrix":
+				// Unequal gains, which use the general matrix.
+				float[][] matrix = new float[ 1 ][ numChannels ];
+				java.util.Arrays.fill( matrix[ 0 ], 0.9f / numChannels );
+				drain( new ChannelMatrixSampleData( input(), matrix ) );
+				break;
+			case "analysis":
+				drain( new AnalysisSampleData( input() ) );
+				break;
+			case "timeline":
+				drain( timeline() );
+				break;
+			case "overview":
+				WaveformOverview.write( new TimelineSampleData.Source() {
+					public SampleData open() {
+						return input();
+					}
+				}, new ByteArrayOutputStream(), 256 );
+				break;
+			case "resample-low":
+				drain( new ResampledSampleData( input(), 48000, ResampledSampleData.QUALITY_LOW ) );
+				break;
+			case "resample-medium":
+				drain( new ResampledSampleData( input(), 48000, ResampledSampleData.QUALITY_MEDIUM ) );
+				break;
+			case "resample-high":
+				drain( new ResampledSampleData( input(), 48000, ResampledSampleData.QUALITY_HIGH ) );
+				break;
+			default:
+				throw new IllegalArgumentException( "Unknown benchmark: " + name );
+		}
+	}
+
+	private DecodeCache.Decoder adpcmDecoder() {
+		return new DecodeCache.Decoder() {
+			public SampleData decode() {
+				return new AdpcmSampleData( new ByteArrayInputStream( adpcm ), numChannels, SAMPLE_RATE, NUM_SAMPLES );
+			}
+		};
+	}
+
+	/* Encode a temporary WAV file of the test signal into a temporary output file. */
+	private void encodeParallel( int codec ) throws Exception {
+		if( wavFile == null ) {
+			wavFile = java.io.File.createTempFile( "benchmark", ".wav" );
+			wavFile.deleteOnExit();
+			encodedFile = java.io.File.createTempFile( "benchmark", ".pcm" );
+			encodedFile.deleteOnExit();
+			java.nio.file.Files.write( wavFile.toPath(), wav16 );
+		}
+		ParallelEncoder.encode( wavFile, encodedFile, codec );
+	}
+
+	/* Return a fresh SampleData over the test signal. */
+	private SampleData input() {
+		return new ArraySampleData( samples, numChannels, SAMPLE_RATE, NUM_SAMPLES );
+	}
+
+	/* The test signal spliced from 64 crops in reverse order, each source opened when reached. */
+	private SampleData timeline() throws Exception {
+		TimelineSampleData timeline = new TimelineSampleData( numChannels, SAMPLE_RATE );
+		TimelineSampleData.Source source = new TimelineSampleData.Source() {
+			public SampleData open() {
+				return input();
+			}
+		};
+		for( int idx = 63; idx >= 0; idx-- ) {
+			timeline.append( source, idx * ( NUM_SAMPLES / 64 ), NUM_SAMPLES / 64 );
+		}
+		return timeline;
+	}
+
+	/* Three quantizers, each at a lower precision than the last, reading a WAV file. */
+	private SampleData deepChain( boolean largeBlocks ) throws Exception {
+		SampleData sampleData = new WavSampleData( new ByteArrayInputStream( wav16 ) );
+		for( int precision = 7; precision >= 5; precision-- ) {
+			sampleData = new QuantizedSampleData( sampleData, precision, largeBlocks );
+		}
+		return sampleData;
+	}
+
+	private void drain( SampleData sampleData ) throws Exception {
+		if( outputBuf == null ) {
+			outputBuf = new short[ 4096 * numChannels ];
+		}
+		while( sampleData.getSamplesRemaining() > 0 ) {
+			sampleData.getSamples( outputBuf, 0, 4096 );
+		}
+	}
+
+	/* Run the named benchmark and print samples per second, megabytes of 16-bit PCM per second,
+	   and bytes allocated per operation (if supported by the JVM). */
+	public void measure( String name ) throws Exception {
+		long end = System.nanoTime() + WARMUP_NANOS;
+		while( System.nanoTime() < end ) {
+			run( name );
+		}
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		int ops = 0;
+		long time = 0;
+		while( time < MEASURE_NANOS ) {
+			run( name );
+			ops++;
+			time = System.nanoTime() - start;
+		}
+		allocated = allocatedBytes() - allocated;
+		double samplesPerSec = ( double ) NUM_SAMPLES * ops * 1e9 / time;
+		double megabytesPerSec = samplesPerSec * numChannels * 2 / ( 1 << 20 );
+		System.out.println( String.format( "%-20s %2d ch %10.2f Msamples/s %10.2f MB/s %12s bytes/op",
+			name, numChannels, samplesPerSec / 1e6, megabytesPerSec, allocated < 0 ? "n/a" : String.valueOf( allocated / ops ) ) );
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threadBean = java.lang.management.ManagementFactory.getThreadMXBean();
+		if( threadBean instanceof com.sun.management.ThreadMXBean ) {
+			return ( ( com.sun.management.ThreadMXBean ) threadBean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+		return -1;
+	}
+
+	/* Print the signal to noise ratio and encoding throughput of the ADPCM search encoder for each search width. */
+	public static void adpcmSearchTable( int numChannels ) throws Exception {
+		short[] samples = testSignal( NUM_SAMPLES, numChannels );
+		System.out.println( String.format( "adpcm-search %d ch: width     SNR dB  Msamples/s", numChannels ) );
+		for( int searchWidth : SEARCH_WIDTHS ) {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			AdpcmSampleData.encode( new ArraySampleData( samples, numChannels, SAMPLE_RATE, NUM_SAMPLES ), outputStream, 0, searchWidth );
+			short[] decoded = new ArraySampleData( new AdpcmSampleData( new ByteArrayInputStream(
+				outputStream.toByteArray() ), numChannels, SAMPLE_RATE, NUM_SAMPLES ) ).getArray();
+			double signal = 0, noise = 0;
+			for( int idx = 0; idx < samples.length; idx++ ) {
+				signal += ( double ) samples[ idx ] * samples[ idx ];
+				noise += ( double ) ( samples[ idx ] - decoded[ idx ] ) * ( samples[ idx ] - decoded[ idx ] );
+			}
+			long end = System.nanoTime() + WARMUP_NANOS;
+			while( System.nanoTime() < end ) {
+				AdpcmSampleData.encode( new ArraySampleData( samples, numChannels, SAMPLE_RATE, NUM_SAMPLES ), NULL_OUTPUT, 0, searchWidth );
+			}
+			long start = System.nanoTime(), time = 0;
+			int ops = 0;
+			while( time < MEASURE_NANOS ) {
+				AdpcmSampleData.encode( new ArraySampleData( samples, numChannels, SAMPLE_RATE, NUM_SAMPLES ), NULL_OUTPUT, 0, searchWidth );
+				ops++;
+				time = System.nanoTime() - start;
+			}
+			System.out.println( String.format( "%26d %10.2f %11.2f", searchWidth, 10 * Math.log10( signal / noise ), ( double ) NUM_SAMPLES * ops * 1e3 / time ) );
+		}
+	}
+
+	/* A deterministic test signal consisting of a sine wave with added noise. */
+	public static short[] testSignal( int numSamples, int numChannels ) {
+		short[] samples = new short[ numSamples * numChannels ];
+		int rand = 1;
+		for( int idx = 0; idx < samples.length; idx++ ) {
+			rand = rand * 1103515245 + 12345;
+			int amp = ( int ) ( Math.sin( ( idx / numChannels ) * ( 0.01 + 0.003 * ( idx % numChannels ) ) ) * 16384 ) + ( rand >> 20 );
+			samples[ idx ] = ( short ) amp;
+		}
+		return samples;
+	}
+
+	/* Return a WAV file of the specified samples with the specified number of bytes per sample. */
+	private static byte[] pcmWav( short[] samples, int numChannels, int bytesPerSample ) throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		WavSampleData.writeWav( new ArraySampleData( samples, numChannels, SAMPLE_RATE, samples.length / numChannels ), outputStream );
+		byte[] wav16 = outputStream.toByteArray();
+		if( bytesPerSample == 2 ) {
+			return wav16;
+		}
+		byte[] wav = new byte[ 44 + samples.length * bytesPerSample ];
+		System.arraycopy( wav16, 0, wav, 0, 44 );
+		setInt( wav, 4, 36 + samples.length * bytesPerSample );
+		setInt( wav, 28, SAMPLE_RATE * numChannels * bytesPerSample );
+		wav[ 32 ] = ( byte ) ( numChannels * bytesPerSample );
+		wav[ 34 ] = ( byte ) ( bytesPerSample * 8 );
+		setInt( wav, 40, samples.length * bytesPerSample );
+		for( int idx = 0; idx < samples.length; idx++ ) {
+			int amp = samples[ idx ];
+			if( bytesPerSample == 1 ) {
+				wav[ 44 + idx ] = ( byte ) ( ( amp >> 8 ) + 128 );
+			} else {
+				wav[ 44 + idx * 3 ] = 0;
+				wav[ 44 + idx * 3 + 1 ] = ( byte ) amp;
+				wav[ 44 + idx * 3 + 2 ] = ( byte ) ( amp >> 8 );
+			}
+		}
+		return wav;
+	}
+
+	private static void setInt( byte[] buf, int offset, int value ) {
+		buf[ offset ] = ( byte ) value;
+		buf[ offset + 1 ] = ( byte ) ( value >> 8 );
+		buf[ offset + 2 ] = ( byte ) ( value >> 16 );
+		buf[ offset + 3 ] = ( byte ) ( value >> 24 );
+	}
+
+	public static void main( String[] args ) throws Exception {
+		String filter = args.length > 0 ? args[ 0 ] : "";
+		if( "resample".contains( filter ) || filter.startsWith( "resample" ) ) {
+			// Filter delay of the resampler, which is the minimum latency of a live stream.
+			String[] qualities = { "low", "medium", "high" };
+			for( int quality = 0; quality < qualities.length; quality++ ) {
+				int latency = new ResampledSampleData( new ArraySampleData( new short[ 0 ], 1, SAMPLE_RATE, 0 ), 48000, quality ).getLatency();
+				System.out.println( String.format( "resample-%-11s latency %d samples, %.2f ms", qualities[ quality ], latency, latency * 1000.0 / SAMPLE_RATE ) );
+			}
+		}
+		if( "lossless".contains( filter ) || filter.startsWith( "lossless" ) ) {
+			// Compressed size as a proportion of 16-bit PCM.
+			for( int numChannels : CHANNELS ) {
+				Benchmark benchmark = new Benchmark( numChannels );
+				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+				LosslessSampleData.encode( new QuantizedSampleData( benchmark.input() ), outputStream );
+				System.out.println( String.format( "lossless %d ch ratio %.3f, quantized %.3f", numChannels,
+					benchmark.lossless.length / ( NUM_SAMPLES * numChannels * 2.0 ), outputStream.size() / ( NUM_SAMPLES * numChannels * 2.0 ) ) );
+			}
+		}
+		if( "adpcm-search".contains( filter ) || filter.startsWith( "adpcm-search" ) ) {
+			for( int numChannels : CHANNELS ) {
+				adpcmSearchTable( numChannels );
+			}
+		}
+		for( int numChannels : CHANNELS ) {
+			Benchmark benchmark = new Benchmark( numChannels );
+			for( String name : CASES ) {
+				if( name.contains( filter ) ) {
+					benchmark.measure( name );
+				}
+			}
+		}
+	}
+}
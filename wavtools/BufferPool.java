@@ -0,0 +1,167 @@
+
+package wavtools;
+
+import java.util.ArrayDeque;
+
+/*
+	Thread-local pool of sample, byte and integer buffers.
+	Codecs and filters borrow their working buffers for the duration of a call and release
+	them afterwards, so that repeated conversions on the same thread do not allocate.
+	Buffers are pooled in power-of-two size classes, and a borrowed buffer may be longer
+	than requested. Buffers may be released on a different thread from which they were borrowed.
+*/
+public final class BufferPool {
+	private static final int MAX_FREE = 4;
+
+	private static volatile int bufferSamples = Integer.getInteger( "wavtools.bufferSamples", 1 << 16 );
+
+	private static final ThreadLocal<BufferPool> POOL = new ThreadLocal<BufferPool>() {
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private final ArrayDeque<short[]>[] shorts = new ArrayDeque[ 32 ];
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private final ArrayDeque<byte[]>[] bytes = new ArrayDeque[ 32 ];
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private final ArrayDeque<float[]>[] floats = new ArrayDeque[ 32 ];
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private final ArrayDeque<int[]>[] ints = new ArrayDeque[ 32 ];
+
+	private BufferPool() {
+	}
+
+	/* Return the number of samples per channel that codecs process in each call. */
+	public static int getBufferSamples() {
+		return bufferSamples;
+	}
+
+	/* Set the number of samples per channel that codecs process in each call, which must be even and at least 64.
+	   The default is 65536, or the value of the system property wavtools.bufferSamples.
+	   This should not be called while any processing is in progress. */
+	public static void setBufferSamples( int samples ) {
+		if( samples < 64 || ( samples & 1 ) != 0 ) {
+			throw new IllegalArgumentException( "Invalid buffer size." );
+		}
+		bufferSamples = samples;
+	}
+
+	/* Borrow a sample buffer of at least the specified length. */
+	public static short[] getShorts( int length ) {
+		short[] buf = get( POOL.get().shorts, length );
+		return buf != null ? buf : new short[ sizeClassLength( length ) ];
+	}
+
+	/* Borrow a byte buffer of at least the specified length. */
+	public static byte[] getBytes( int length ) {
+		byte[] buf = get( POOL.get().bytes, length );
+		return buf != null ? buf : new byte[ sizeClassLength( length ) ];
+	}
+
+	/* Borrow a floating-point sample buffer of at least the specified length. */
+	public static float[] getFloats( int length ) {
+		float[] buf = get( POOL.get().floats, length );
+		return buf != null ? buf : new float[ sizeClassLength( length ) ];
+	}
+
+	/* Borrow an integer buffer of at least the specified length. */
+	public static int[] getInts( int length ) {
+		int[] buf = get( POOL.get().ints, length );
+		return buf != null ? buf : new int[ sizeClassLength( length ) ];
+	}
+
+	/* Borrow numBuffers sample buffers of at least the specified length. */
+	public static short[][] getShorts( int numBuffers, int length ) {
+		short[][] bufs = new short[ numBuffers ][];
+		for( int idx = 0; idx < numBuffers; idx++ ) {
+			bufs[ idx ] = getShorts( length );
+		}
+		return bufs;
+	}
+
+	/* Borrow numBuffers byte buffers of at least the specified length. */
+	public static byte[][] getBytes( int numBuffers, int length ) {
+		byte[][] bufs = new byte[ numBuffers ][];
+		for( int idx = 0; idx < numBuffers; idx++ ) {
+			bufs[ idx ] = getBytes( length );
+		}
+		return bufs;
+	}
+
+	/* Return a sample buffer to the pool of the current thread. Null is ignored. */
+	public static void release( short[] buf ) {
+		if( buf != null ) {
+			put( POOL.get().shorts, buf, buf.length );
+		}
+	}
+
+	/* Return a byte buffer to the pool of the current thread. Null is ignored. */
+	public static void release( byte[] buf ) {
+		if( buf != null ) {
+			put( POOL.get().bytes, buf, buf.length );
+		}
+	}
+
+	/* Return a floating-point sample buffer to the pool of the current thread. Null is ignored. */
+	public static void release( float[] buf ) {
+		if( buf != null ) {
+			put( POOL.get().floats, buf, buf.length );
+		}
+	}
+
+	/* Return an integer buffer to the pool of the current thread. Null is ignored. */
+	public static void release( int[] buf ) {
+		if( buf != null ) {
+			put( POOL.get().ints, buf, buf.length );
+		}
+	}
+
+	/* Return each of the specified sample buffers to the pool. Null is ignored. */
+	public static void release( short[][] bufs ) {
+		if( bufs != null ) {
+			for( short[] buf : bufs ) {
+				release( buf );
+			}
+		}
+	}
+
+	/* Return each of the specified byte buffers to the pool. Null is ignored. */
+	public static void release( byte[][] bufs ) {
+		if( bufs != null ) {
+			for( byte[] buf : bufs ) {
+				release( buf );
+			}
+		}
+	}
+
+	private static <T> T get( ArrayDeque<T>[] freeLists, int length ) {
+		ArrayDeque<T> freeList = freeLists[ sizeClass( length ) ];
+		return freeList != null ? freeList.pollLast() : null;
+	}
+
+	private static <T> void put( ArrayDeque<T>[] freeLists, T buf, int length ) {
+		// Only buffers allocated by the pool have a power-of-two length.
+		if( length > 0 && ( length & ( length - 1 ) ) == 0 ) {
+			int sizeClass = sizeClass( length );
+			if( freeLists[ sizeClass ] == null ) {
+				freeLists[ sizeClass ] = new ArrayDeque<T>( MAX_FREE );
+			}
+			if( freeLists[ sizeClass ].size() < MAX_FREE ) {
+				freeLists[ sizeClass ].addLast( buf );
+			}
+		}
+	}
+
+	private static int sizeClass( int length ) {
+		return length > 1 ? 32 - Integer.numberOfLeadingZeros( length - 1 ) : 0;
+	}
+
+	private static int sizeClassLength( int length ) {
+		if( length < 0 || length > 1 << 30 ) {
+			throw new IllegalArgumentException( "Invalid buffer length: " + length );
+		}
+		return 1 << sizeClass( length );
+	}
+}
@@ -0,0 +1,148 @@
+
+package wavtools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+	Opt-in channel-parallel execution for codecs and filters with independent per-channel state.
+	When enabled, interleaved audio is copied into per-channel staging buffers, each channel
+	is processed on a shared thread pool, and the results are interleaved again.
+	Parallel and serial execution produce identical output.
+*/
+public final class ChannelExecutor {
+	/* Process the samples of one channel in place, from start to end in steps of stride. */
+	public interface ChannelKernel {
+		public void process( short[] buffer, int start, int end, int stride, int channel ) throws Exception;
+	}
+
+	/* Encode the samples of one channel from input into output at the same indices. */
+	public interface ChannelEncoder {
+		public void encode( short[] input, byte[] output, int start, int end, int stride, int channel ) throws Exception;
+	}
+
+	private static volatile ForkJoinPool pool;
+
+	private ChannelExecutor() {
+	}
+
+	/* Enable channel-parallel execution using the specified number of threads, or disable it if threads is 0.
+	   This should not be called while any processing is in progress. */
+	public static synchronized void setParallelism( int threads ) {
+		if( threads < 0 ) {
+			throw new IllegalArgumentException( "Invalid number of threads." );
+		}
+		if( pool != null ) {
+			pool.shutdown();
+		}
+		pool = threads > 0 ? new ForkJoinPool( threads ) : null;
+	}
+
+	/* Return true if work on the specified number of channels will be executed in parallel. */
+	public static boolean isParallel( int numChannels ) {
+		return numChannels > 1 && pool != null;
+	}
+
+	/* Apply the kernel to count samples of each channel of the interleaved buffer, starting at offset.
+	   The channels are processed serially unless parallel execution is enabled and the
+	   staging buffers have at least numChannels arrays of at least count samples. */
+	public static void processChannels( final short[] buffer, final int offset, final int count, final int numChannels,
+			final short[][] staging, final ChannelKernel kernel ) throws Exception {
+		ForkJoinPool pool = ChannelExecutor.pool;
+		if( pool == null || !fits( staging, numChannels, count ) ) {
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				kernel.process( buffer, offset * numChannels + channel, ( offset + count ) * numChannels + channel, numChannels, channel );
+			}
+			return;
+		}
+		deinterleave( buffer, offset, count, numChannels, staging );
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>( numChannels );
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			final int chan = channel;
+			tasks.add( new Callable<Void>() {
+				public Void call() throws Exception {
+					kernel.process( staging[ chan ], 0, count, 1, chan );
+					return null;
+				}
+			} );
+		}
+		invokeAll( pool, tasks );
+		interleave( staging, count, numChannels, buffer, offset );
+	}
+
+	/* Apply the encoder to the first count samples of each channel of the interleaved input buffer.
+	   The staging buffers are used as for processChannels(). */
+	public static void encodeChannels( final short[] input, final byte[] output, final int count, final int numChannels,
+			final short[][] inputStaging, final byte[][] outputStaging, final ChannelEncoder encoder ) throws Exception {
+		ForkJoinPool pool = ChannelExecutor.pool;
+		if( pool == null || !fits( inputStaging, numChannels, count ) || !fits( outputStaging, numChannels, count ) ) {
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				encoder.encode( input, output, channel, count * numChannels + channel, numChannels, channel );
+			}
+			return;
+		}
+		deinterleave( input, 0, count, numChannels, inputStaging );
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>( numChannels );
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			final int chan = channel;
+			tasks.add( new Callable<Void>() {
+				public Void call() throws Exception {
+					encoder.encode( inputStaging[ chan ], outputStaging[ chan ], 0, count, 1, chan );
+					return null;
+				}
+			} );
+		}
+		invokeAll( pool, tasks );
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			byte[] channelBuf = outputStaging[ channel ];
+			for( int idx = 0, outputIdx = channel; idx < count; idx++, outputIdx += numChannels ) {
+				output[ outputIdx ] = channelBuf[ idx ];
+			}
+		}
+	}
+
+	/* Copy count samples from the specified offset of an interleaved buffer into separate channel buffers. */
+	public static void deinterleave( short[] input, int offset, int count, int numChannels, short[][] output ) {
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			short[] channelBuf = output[ channel ];
+			for( int idx = 0, inputIdx = offset * numChannels + channel; idx < count; idx++, inputIdx += numChannels ) {
+				channelBuf[ idx ] = input[ inputIdx ];
+			}
+		}
+	}
+
+	/* Copy count samples from separate channel buffers into an interleaved buffer at the specified offset. */
+	public static void interleave( short[][] input, int count, int numChannels, short[] output, int offset ) {
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			short[] channelBuf = input[ channel ];
+			for( int idx = 0, outputIdx = offset * numChannels + channel; idx < count; idx++, outputIdx += numChannels ) {
+				output[ outputIdx ] = channelBuf[ idx ];
+			}
+		}
+	}
+
+	private static boolean fits( short[][] staging, int numChannels, int count ) {
+		return numChannels > 1 && staging != null && staging.length >= numChannels && staging[ 0 ].length >= count;
+	}
+
+	private static boolean fits( byte[][] staging, int numChannels, int count ) {
+		return numChannels > 1 && staging != null && staging.length >= numChannels && staging[ 0 ].length >= count;
+	}
+
+	private static void invokeAll( ForkJoinPool pool, List<Callable<Void>> tasks ) throws Exception {
+		for( Future<Void> future : pool.invokeAll( tasks ) ) {
+			try {
+				future.get();
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof Exception ) {
+					throw ( Exception ) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+
+package wavtools;
+
+/*
+	Remixes the channels of the input through a matrix of gains, in a single streaming pass.
+	Output channel o is the sum over input channels i of input[ i ] * matrix[ o ][ i ],
+	rounded to the nearest integer and clipped. The gains are applied in fixed-point, with
+	15 fractional bits for rows whose absolute gains sum to at most 1, and fewer for louder
+	rows so that the sums cannot overflow. Matrices that only route channels ( each output
+	channel copying a single input channel, as in extraction, reordering, or mono-to-stereo )
+	and the stereo-to-mono average have fast paths, which produce the same output as the general matrix.
+*/
+public class ChannelMatrixSampleData implements SampleData {
+	private static final int MATRIX = 0, ROUTE = 1, STEREO_TO_MONO = 2;
+
+	private SampleData input;
+	private int inputChannels, outputChannels, mode;
+	private int[] gains, shifts, routes;
+
+	/* The matrix has a row for each output channel, and a column for each input channel. */
+	public ChannelMatrixSampleData( SampleData input, float[][] matrix ) {
+		inputChannels = input.getNumChannels();
+		outputChannels = matrix.length;
+		if( outputChannels < 1 ) {
+			throw new IllegalArgumentException( "Invalid number of output channels." );
+		}
+		this.input = input;
+		gains = new int[ outputChannels * inputChannels ];
+		shifts = new int[ outputChannels ];
+		routes = new int[ outputChannels ];
+		mode = ROUTE;
+		for( int out = 0; out < outputChannels; out++ ) {
+			if( matrix[ out ].length != inputChannels ) {
+				throw new IllegalArgumentException( "Matrix row " + out + " does not have " + inputChannels + " columns." );
+			}
+			shifts[ out ] = shift( matrix[ out ] );
+			int ones = 0;
+			for( int in = 0; in < inputChannels; in++ ) {
+				float gain = matrix[ out ][ in ];
+				gains[ out * inputChannels + in ] = ( int ) Math.round( gain * ( double ) ( 1 << shifts[ out ] ) );
+				if( gain == 1 ) {
+					routes[ out ] = in;
+					ones++;
+				} else if( gain != 0 ) {
+					ones = 2;
+				}
+			}
+			if( ones != 1 ) {
+				mode = MATRIX;
+			}
+		}
+		if( outputChannels == 1 && inputChannels == 2 && matrix[ 0 ][ 0 ] == 0.5f && matrix[ 0 ][ 1 ] == 0.5f ) {
+			mode = STEREO_TO_MONO;
+		}
+	}
+
+	/* Return the number of fractional bits for the gains of a row, such that the sum of a frame cannot overflow. */
+	private static int shift( float[] row ) {
+		for( int shift = 15; shift >= 0; shift-- ) {
+			long max = shift > 0 ? 1L << ( shift - 1 ) : 0;
+			for( float gain : row ) {
+				max += Math.round( Math.abs( gain ) * ( double ) ( 1 << shift ) ) * 32768L;
+			}
+			if( max <= Integer.MAX_VALUE ) {
+				return shift;
+			}
+		}
+		throw new IllegalArgumentException( "Gain too large." );
+	}
+
+	/* Return the average of the input channels. */
+	public static ChannelMatrixSampleData downmix( SampleData input ) {
+		float[][] matrix = new float[ 1 ][ input.getNumChannels() ];
+		java.util.Arrays.fill( matrix[ 0 ], 1f / input.getNumChannels() );
+		return new ChannelMatrixSampleData( input, matrix );
+	}
+
+	/* Return numChannels copies of a mono input. */
+	public static ChannelMatrixSampleData upmix( SampleData input, int numChannels ) {
+		if( input.getNumChannels() != 1 ) {
+			throw new IllegalArgumentException( "Input is not mono." );
+		}
+		float[][] matrix = new float[ numChannels ][ 1 ];
+		for( float[] row : matrix ) {
+			row[ 0 ] = 1;
+		}
+		return new ChannelMatrixSampleData( input, matrix );
+	}
+
+	/* Return the specified channels of the input, in the specified order. */
+	public static ChannelMatrixSampleData extract( SampleData input, int... channels ) {
+		float[][] matrix = new float[ channels.length ][ input.getNumChannels() ];
+		for( int out = 0; out < channels.length; out++ ) {
+			if( channels[ out ] < 0 || channels[ out ] >= input.getNumChannels() ) {
+				throw new IllegalArgumentException( "Invalid channel: " + channels[ out ] );
+			}
+			matrix[ out ][ channels[ out ] ] = 1;
+		}
+		return new ChannelMatrixSampleData( input, matrix );
+	}
+
+	public int getNumChannels() {
+		return outputChannels;
+	}
+
+	public int getSampleRate() {
+		return input.getSampleRate();
+	}
+
+	public int getSamplesRemaining() {
+		return input.getSamplesRemaining();
+	}
+
+	public int getSamples( short[] outputBuf, int offset, int count ) throws Exception {
+		int bufSamples = BufferPool.getBufferSamples();
+		if( count > bufSamples ) {
+			count = bufSamples;
+		}
+		short[] inputBuf = BufferPool.getShorts( count * inputChannels );
+		try {
+			count = input.getSamples( inputBuf, 0, count );
+			int outputIdx = offset * outputChannels, inputEnd = count * inputChannels;
+			switch( mode ) {
+				case STEREO_TO_MONO:
+					for( int inputIdx = 0; inputIdx < inputEnd; inputIdx += 2 ) {
+						outputBuf[ outputIdx++ ] = ( short ) ( ( inputBuf[ inputIdx ] + inputBuf[ inputIdx + 1 ] + 1 ) >> 1 );
+					}
+					break;
+				case ROUTE:
+					for( int out = 0; out < outputChannels; out++ ) {
+						for( int inputIdx = routes[ out ], idx = outputIdx + out; inputIdx < inputEnd; inputIdx += inputChannels, idx += outputChannels ) {
+							outputBuf[ idx ] = inputBuf[ inputIdx ];
+						}
+					}
+					break;
+				default:
+					mix( inputBuf, count, outputBuf, outputIdx );
+					break;
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+		}
+		return count;
+	}
+
+	/* Mix each output channel over the whole block, accumulating the input channels with non-zero gains in turn. */
+	private void mix( short[] inputBuf, int count, short[] outputBuf, int outputIdx ) {
+		int[] sums = BufferPool.getInts( count );
+		try {
+			for( int out = 0; out < outputChannels; out++ ) {
+				// Start from the rounding offset.
+				java.util.Arrays.fill( sums, 0, count, shifts[ out ] > 0 ? 1 << ( shifts[ out ] - 1 ) : 0 );
+				for( int in = 0; in < inputChannels; in++ ) {
+					int gain = gains[ out * inputChannels + in ];
+					if( gain != 0 ) {
+						accumulate( inputBuf, in, inputChannels, gain, sums, count );
+					}
+				}
+				round( sums, count, shifts[ out ], outputBuf, outputIdx + out, outputChannels );
+			}
+		} finally {
+			BufferPool.release( sums );
+		}
+	}
+
+	private static void accumulate( short[] inputBuf, int inputIdx, int stride, int gain, int[] sums, int count ) {
+		for( int idx = 0; idx < count; idx++, inputIdx += stride ) {
+			sums[ idx ] += inputBuf[ inputIdx ] * gain;
+		}
+	}
+
+	private static void round( int[] sums, int count, int shift, short[] outputBuf, int outputIdx, int stride ) {
+		for( int idx = 0; idx < count; idx++, outputIdx += stride ) {
+			int amp = sums[ idx ] >> shift;
+			if( amp < -32768 ) {
+				amp = -32768;
+			}
+			if( amp > 32767 ) {
+				amp = 32767;
+			}
+			outputBuf[ outputIdx ] = ( short ) amp;
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 3 ) {
+			System.err.println( "Channel remixer." );
+			System.err.println( "Usage: java " + ChannelMatrixSampleData.class.getName() + " input.wav output.wav mono|stereo|channel,channel..." );
+			System.exit( 0 );
+		}
+		try( java.io.InputStream inputStream = new java.io.FileInputStream( args[ 0 ] ) ) {
+			try( java.io.OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 1 ] ) ) ) {
+				SampleData sampleData = new WavSampleData( new java.io.BufferedInputStream( inputStream ) );
+				if( "mono".equals( args[ 2 ] ) ) {
+					sampleData = downmix( sampleData );
+				} else if( "stereo".equals( args[ 2 ] ) ) {
+					sampleData = sampleData.getNumChannels() == 1 ? upmix( sampleData, 2 ) : extract( sampleData, 0, 1 );
+				} else {
+					String[] names = args[ 2 ].split( "," );
+					int[] channels = new int[ names.length ];
+					for( int idx = 0; idx < names.length; idx++ ) {
+						channels[ idx ] = Integer.parseInt( names[ idx ] );
+					}
+					sampleData = extract( sampleData, channels );
+				}
+				WavSampleData.writeWav( sampleData, outputStream );
+			}
+		}
+	}
+}
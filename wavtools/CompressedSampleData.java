@@ -9,13 +9,22 @@ import java.io.IOException;
 public class CompressedSampleData implements SampleData {
 	private static final String VERSION = "20241202 (c) mumart@gmail.com";
 
-	private static final int BUF_SAMPLES = 1 << 16;
-
-	private byte[] inputBuf;
 	private int[] channelState;
 	private InputStream inputStream;
 	private int numChannels, sampleRate, samplesRemaining;
 
+	/* Differences within +/-TABLE_RANGE are encoded using a table of cbrt( diff << 5 ). */
+	private static final int TABLE_RANGE = 1 << 16;
+
+	private static class CbrtTable {
+		static final short[] TABLE = new short[ TABLE_RANGE * 2 ];
+		static {
+			for( int diff = -TABLE_RANGE; diff < TABLE_RANGE; diff++ ) {
+				TABLE[ diff + TABLE_RANGE ] = ( short ) cbrt( diff << 5 );
+			}
+		}
+	}
+
 	public static int cbrt( int x ) {
 		// Approximate cube-root of x. Halley's Method.
 		int y = ( x >> 31 ) ^ 0xF;
@@ -28,27 +37,61 @@ public class CompressedSampleData implements SampleData {
 
 	/* Encode the contents of specified SampleData and write to the specified OutputStream. */
 	public static void encode( SampleData sampleData, OutputStream outputStream ) throws Exception {
+		encode( sampleData, outputStream, true );
+	}
+
+	/* Encode using the cube-root table, or cbrt() for every sample. The output is identical. */
+	static void encode( SampleData sampleData, OutputStream outputStream, final boolean useTable ) throws Exception {
 		int numChannels = sampleData.getNumChannels();
-		int[] channelState = new int[ numChannels ];
-		short[] inputBuf = new short[ BUF_SAMPLES * numChannels ];
-		byte[] outputBuf = new byte[ BUF_SAMPLES * numChannels ];
-		int count = 0;
-		while( sampleData.getSamplesRemaining() > 0 ) {
-			count = sampleData.getSamples( inputBuf, 0, BUF_SAMPLES );
-			for( int channel = 0; channel < numChannels; channel++ ) {
-				int out = channelState[ channel ];
-				int bufferIdx = channel;
-				int bufferEnd = count * numChannels + channel;
-				while( bufferIdx < bufferEnd ) {
-					int in = cbrt( ( inputBuf[ bufferIdx ] - out ) << 5 );
-					outputBuf[ bufferIdx ] = ( byte ) in;
-					out += ( in * in * in ) >> 5;
-					bufferIdx += numChannels;
-				}
-				channelState[ channel ] = out;
+		final int[] channelState = new int[ numChannels ];
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] inputBuf = BufferPool.getShorts( bufSamples * numChannels );
+		byte[] outputBuf = BufferPool.getBytes( bufSamples * numChannels );
+		short[][] inputStaging = null;
+		byte[][] outputStaging = null;
+		if( ChannelExecutor.isParallel( numChannels ) ) {
+			inputStaging = BufferPool.getShorts( numChannels, bufSamples );
+			outputStaging = BufferPool.getBytes( numChannels, bufSamples );
+		}
+		ChannelExecutor.ChannelEncoder encoder = new ChannelExecutor.ChannelEncoder() {
+			public void encode( short[] input, byte[] output, int bufferIdx, int bufferEnd, int stride, int channel ) {
+				channelState[ channel ] = encodeChannel( input, output, bufferIdx, bufferEnd, stride, channelState[ channel ], useTable );
+			}
+		};
+		try {
+			while( sampleData.getSamplesRemaining() > 0 ) {
+				int count = sampleData.getSamples( inputBuf, 0, bufSamples );
+				ChannelExecutor.encodeChannels( inputBuf, outputBuf, count, numChannels, inputStaging, outputStaging, encoder );
+				outputStream.write( outputBuf, 0, count * numChannels );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( outputBuf );
+			BufferPool.release( inputStaging );
+			BufferPool.release( outputStaging );
+		}
+	}
+
+	/* Encode one channel, returning the new state. */
+	static int encodeChannel( short[] input, byte[] output, int bufferIdx, int bufferEnd, int stride, int out, boolean useTable ) {
+		if( useTable ) {
+			short[] table = CbrtTable.TABLE;
+			while( bufferIdx < bufferEnd ) {
+				int diff = input[ bufferIdx ] - out;
+				int in = diff >= -TABLE_RANGE && diff < TABLE_RANGE ? table[ diff + TABLE_RANGE ] : cbrt( diff << 5 );
+				output[ bufferIdx ] = ( byte ) in;
+				out += ( in * in * in ) >> 5;
+				bufferIdx += stride;
+			}
+		} else {
+			while( bufferIdx < bufferEnd ) {
+				int in = cbrt( ( input[ bufferIdx ] - out ) << 5 );
+				output[ bufferIdx ] = ( byte ) in;
+				out += ( in * in * in ) >> 5;
+				bufferIdx += stride;
 			}
-			outputStream.write( outputBuf, 0, count * numChannels );
 		}
+		return out;
 	}
 
 	/* Prepare to decode compressed audio from the specified InputStream. */
@@ -57,7 +100,6 @@ public class CompressedSampleData implements SampleData {
 		this.numChannels = numChannels;
 		this.sampleRate = sampleRate;
 		this.samplesRemaining = numSamples;
-		inputBuf = new byte[ BUF_SAMPLES * numChannels ];
 		channelState = new int[ numChannels ];
 	}
 
@@ -78,29 +120,34 @@ public class CompressedSampleData implements SampleData {
 		if( count > samplesRemaining ) {
 			count = samplesRemaining;
 		}
-		if( count > BUF_SAMPLES ) {
-			count = BUF_SAMPLES;
+		if( count > BufferPool.getBufferSamples() ) {
+			count = BufferPool.getBufferSamples();
 		}
-		count = readFully( inputStream, inputBuf, count * numChannels ) / numChannels;
-		for( int channel = 0; channel < numChannels; channel++ ) {
-			int out = channelState[ channel ];
-			int inputIdx = channel;
-			int inputEnd = count * numChannels + channel;
-			int outputIdx = offset * numChannels + channel;
-			while( inputIdx < inputEnd ) {
-				int in = inputBuf[ inputIdx ];
-				out += ( in * in * in ) >> 5;
-				if( out < -32768 ) {
-					outputBuf[ outputIdx ] = -32768;
-				} else if( out > 32767 ) {
-					outputBuf[ outputIdx ] = 32767;
-				} else {
-					outputBuf[ outputIdx ] = ( short ) out;
+		byte[] inputBuf = BufferPool.getBytes( count * numChannels );
+		try {
+			count = readFully( inputStream, inputBuf, count * numChannels ) / numChannels;
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				int out = channelState[ channel ];
+				int inputIdx = channel;
+				int inputEnd = count * numChannels + channel;
+				int outputIdx = offset * numChannels + channel;
+				while( inputIdx < inputEnd ) {
+					int in = inputBuf[ inputIdx ];
+					out += ( in * in * in ) >> 5;
+					if( out < -32768 ) {
+						outputBuf[ outputIdx ] = -32768;
+					} else if( out > 32767 ) {
+						outputBuf[ outputIdx ] = 32767;
+					} else {
+						outputBuf[ outputIdx ] = ( short ) out;
+					}
+					outputIdx += numChannels;
+					inputIdx += numChannels;
 				}
-				outputIdx += numChannels;
-				inputIdx += numChannels;
+				channelState[ channel ] = out;
 			}
-			channelState[ channel ] = out;
+		} finally {
+			BufferPool.release( inputBuf );
 		}
 		samplesRemaining -= count;
 		return count;
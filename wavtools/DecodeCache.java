@@ -0,0 +1,269 @@
+
+package wavtools;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+	Thread-safe cache of decoded clips, bounded by the number of bytes of PCM it holds.
+	Clips are identified by a key supplied by the caller, such as a file path or content hash,
+	and are evicted in least-recently-used order. Each call to get() returns a new read view
+	of the cached samples, so any number of threads may read the same clip without copying it.
+	Concurrent requests for a clip that is not cached wait for a single decode.
+	Clips may optionally be stored off-heap in direct buffers, to reduce garbage-collection pressure.
+*/
+public class DecodeCache {
+	/* Supplies the SampleData to be decoded into the cache. */
+	public interface Decoder {
+		public SampleData decode() throws Exception;
+	}
+
+	private static class Clip {
+		private int numChannels, sampleRate, numSamples;
+		private short[] samples;
+		private ShortBuffer direct;
+
+		public long getBytes() {
+			return ( long ) numSamples * numChannels * 2;
+		}
+
+		public SampleData view() {
+			if( direct != null ) {
+				return new DirectSampleData( direct.duplicate(), numChannels, sampleRate );
+			}
+			return new ArraySampleData( samples, numChannels, sampleRate, numSamples );
+		}
+	}
+
+	/* Read view of a clip stored in a direct buffer. */
+	private static class DirectSampleData implements SampleData {
+		private ShortBuffer buffer;
+		private int numChannels, sampleRate;
+
+		public DirectSampleData( ShortBuffer buffer, int numChannels, int sampleRate ) {
+			this.buffer = buffer;
+			this.numChannels = numChannels;
+			this.sampleRate = sampleRate;
+		}
+
+		public int getNumChannels() {
+			return numChannels;
+		}
+
+		public int getSampleRate() {
+			return sampleRate;
+		}
+
+		public int getSamplesRemaining() {
+			return buffer.remaining() / numChannels;
+		}
+
+		public int getSamples( short[] outputBuf, int offset, int count ) {
+			if( count > getSamplesRemaining() ) {
+				count = getSamplesRemaining();
+			}
+			buffer.get( outputBuf, offset * numChannels, count * numChannels );
+			return count;
+		}
+	}
+
+	private final long capacityBytes;
+	private final boolean offHeap;
+	private final LinkedHashMap<String, Clip> clips = new LinkedHashMap<String, Clip>( 16, 0.75f, true );
+	private final Map<String, FutureTask<Clip>> loading = new HashMap<String, FutureTask<Clip>>();
+	private long sizeBytes;
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+	public DecodeCache( long capacityBytes ) {
+		this( capacityBytes, false );
+	}
+
+	/* Cache up to capacityBytes of decoded samples, in direct buffers if offHeap is true.
+	   Clips larger than the capacity are decoded but not cached. */
+	public DecodeCache( long capacityBytes, boolean offHeap ) {
+		if( capacityBytes < 0 ) {
+			throw new IllegalArgumentException( "Invalid capacity." );
+		}
+		this.capacityBytes = capacityBytes;
+		this.offHeap = offHeap;
+	}
+
+	/* Return a key for the specified file, which changes if the file is modified. */
+	public static String fileKey( File file ) {
+		return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+	}
+
+	/* Return a key derived from the SHA-256 hash of the specified encoded data. */
+	public static String contentKey( byte[] data ) throws Exception {
+		StringBuilder key = new StringBuilder( "sha256:" );
+		for( byte b : MessageDigest.getInstance( "SHA-256" ).digest( data ) ) {
+			key.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+		}
+		return key.toString();
+	}
+
+	/* Return a view of the clip with the specified key, decoding it with the decoder if it is not cached.
+	   Views of heap clips share the cached array, which must not be modified. */
+	public SampleData get( String key, final Decoder decoder ) throws Exception {
+		FutureTask<Clip> task;
+		boolean decode = false;
+		synchronized( this ) {
+			Clip clip = clips.get( key );
+			if( clip != null ) {
+				hits.increment();
+				return clip.view();
+			}
+			task = loading.get( key );
+			if( task == null ) {
+				task = new FutureTask<Clip>( new Callable<Clip>() {
+					public Clip call() throws Exception {
+						return decode( decoder.decode() );
+					}
+				} );
+				loading.put( key, task );
+				decode = true;
+			}
+		}
+		if( decode ) {
+			misses.increment();
+			task.run();
+			synchronized( this ) {
+				// The clip is not cached if it was invalidated during the decode.
+				if( loading.get( key ) == task ) {
+					loading.remove( key );
+					try {
+						put( key, task.get() );
+					} catch( ExecutionException e ) {
+						// Failures are not cached, and are thrown below.
+					}
+				}
+			}
+		} else {
+			// Another thread is decoding the clip.
+			hits.increment();
+		}
+		try {
+			return task.get().view();
+		} catch( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if( cause instanceof Exception ) {
+				throw ( Exception ) cause;
+			}
+			throw ( Error ) cause;
+		}
+	}
+
+	private Clip decode( SampleData sampleData ) throws Exception {
+		Clip clip = new Clip();
+		clip.numChannels = sampleData.getNumChannels();
+		clip.sampleRate = sampleData.getSampleRate();
+		if( !offHeap || sampleData.getSamplesRemaining() == Integer.MAX_VALUE ) {
+			// Inputs of unknown length are read into a growing array.
+			clip.samples = new ArraySampleData( sampleData ).getArray();
+			clip.numSamples = clip.samples.length / clip.numChannels;
+			return clip;
+		}
+		clip.numSamples = sampleData.getSamplesRemaining();
+		clip.direct = ByteBuffer.allocateDirect( clip.numSamples * clip.numChannels * 2 ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] buf = BufferPool.getShorts( bufSamples * clip.numChannels );
+		try {
+			while( clip.direct.hasRemaining() && sampleData.getSamplesRemaining() > 0 ) {
+				int length = clip.direct.remaining() / clip.numChannels;
+				int count = sampleData.getSamples( buf, 0, length < bufSamples ? length : bufSamples );
+				clip.direct.put( buf, 0, count * clip.numChannels );
+			}
+		} finally {
+			BufferPool.release( buf );
+		}
+		clip.direct.flip();
+		clip.numSamples = clip.direct.limit() / clip.numChannels;
+		return clip;
+	}
+
+	private void put( String key, Clip clip ) {
+		if( clip.getBytes() > capacityBytes ) {
+			return;
+		}
+		Clip replaced = clips.put( key, clip );
+		if( replaced != null ) {
+			sizeBytes -= replaced.getBytes();
+		}
+		sizeBytes += clip.getBytes();
+		Iterator<Clip> iterator = clips.values().iterator();
+		while( sizeBytes > capacityBytes ) {
+			Clip eldest = iterator.next();
+			iterator.remove();
+			sizeBytes -= eldest.getBytes();
+			evictions.increment();
+		}
+	}
+
+	/* Return true if the clip with the specified key is cached, without affecting the eviction order. */
+	public synchronized boolean contains( String key ) {
+		return clips.containsKey( key );
+	}
+
+	/* Remove the clip with the specified key, if cached. Views already returned remain valid.
+	   If the clip is being decoded, the result is returned to the waiting requests but not cached,
+	   and later requests decode it again. */
+	public synchronized void invalidate( String key ) {
+		loading.remove( key );
+		Clip clip = clips.remove( key );
+		if( clip != null ) {
+			sizeBytes -= clip.getBytes();
+		}
+	}
+
+	/* Remove all clips, including those being decoded, as for invalidate(). */
+	public synchronized void clear() {
+		loading.clear();
+		clips.clear();
+		sizeBytes = 0;
+	}
+
+	public long getCapacityBytes() {
+		return capacityBytes;
+	}
+
+	/* Return the number of bytes of samples currently cached. */
+	public synchronized long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	/* Return the number of clips currently cached. */
+	public synchronized int getSize() {
+		return clips.size();
+	}
+
+	/* Return the number of requests that did not require a decode. */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/* Return the number of requests that decoded a clip. */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/* Return the number of clips removed to make room for others. */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public String toString() {
+		return String.format( "%d clips, %d/%d bytes, %d hits, %d misses, %d evictions",
+			getSize(), getSizeBytes(), capacityBytes, getHits(), getMisses(), getEvictions() );
+	}
+}
@@ -9,48 +9,64 @@ import java.io.IOException;
 public class EightBitSampleData implements SampleData {
 	private static final String VERSION = "20140201 (c) mumart@gmail.com";
 
-	private static final int BUF_SAMPLES = 1 << 16;
-
-	private byte[] inputBuf;
 	private InputStream inputStream;
 	private int numChannels, sampleRate, samplesRemaining;
 
 	/* Encode the contents of specified SampleData and write to the specified OutputStream. */
 	public static void encode( SampleData sampleData, OutputStream outputStream ) throws Exception {
 		int numChannels = sampleData.getNumChannels();
-		short[] inputBuf = new short[ BUF_SAMPLES * numChannels ];
-		byte[] outputBuf = new byte[ BUF_SAMPLES * numChannels ];
-		int count = 0;
-		while( sampleData.getSamplesRemaining() > 0 ) {
-			count = sampleData.getSamples( inputBuf, 0, BUF_SAMPLES );
-			for( int channel = 0; channel < numChannels; channel++ ) {
-				int in = 0, out = 0, rand = 0, s1 = 0, s2 = 0, s3 = 0;
-				int bufferIdx = channel;
-				int bufferEnd = count * numChannels + channel;
-				while( bufferIdx < bufferEnd ) {
-					// Convert to unsigned for proper integer rounding.
-					in = inputBuf[ bufferIdx ] + 32768;
-					// TPDF dither.
-					rand = ( rand * 65 + 17 ) & 0x7FFFFFFF;
-					int dither = rand >> 25;
-					rand = ( rand * 65 + 17 ) & 0x7FFFFFFF;
-					dither -= rand >> 25;
-					// "F-weighted" 3-tap noise shaping. Works well around 32khz.
-					in = in - ( s1 * 13 -s2 * 8 + s3 ) / 8 + dither;
-					s3 = s2;
-					s2 = s1;
-					// Rounding and quantization.
-					out = ( in + ( in & 0x80 ) ) >> 8;
-					// Clipping.
-					if( out < 0 ) out = 0;
-					if( out > 255 ) out = 255;
-					// Feedback.
-					s1 = ( out << 8 ) - in;
-					outputBuf[ bufferIdx ] = ( byte ) ( out - 128 );
-					bufferIdx += numChannels;					
-				}
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] inputBuf = BufferPool.getShorts( bufSamples * numChannels );
+		byte[] outputBuf = BufferPool.getBytes( bufSamples * numChannels );
+		short[][] inputStaging = null;
+		byte[][] outputStaging = null;
+		if( ChannelExecutor.isParallel( numChannels ) ) {
+			inputStaging = BufferPool.getShorts( numChannels, bufSamples );
+			outputStaging = BufferPool.getBytes( numChannels, bufSamples );
+		}
+		ChannelExecutor.ChannelEncoder encoder = new ChannelExecutor.ChannelEncoder() {
+			public void encode( short[] input, byte[] output, int bufferIdx, int bufferEnd, int stride, int channel ) {
+				encodeChannel( input, output, bufferIdx, bufferEnd, stride );
+			}
+		};
+		try {
+			while( sampleData.getSamplesRemaining() > 0 ) {
+				int count = sampleData.getSamples( inputBuf, 0, bufSamples );
+				ChannelExecutor.encodeChannels( inputBuf, outputBuf, count, numChannels, inputStaging, outputStaging, encoder );
+				outputStream.write( outputBuf, 0, count * numChannels );
 			}
-			outputStream.write( outputBuf, 0, count * numChannels );
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( outputBuf );
+			BufferPool.release( inputStaging );
+			BufferPool.release( outputStaging );
+		}
+	}
+
+	/* Encode one channel. The dither and noise-shaping state starts from zero at each call. */
+	static void encodeChannel( short[] inputBuf, byte[] outputBuf, int bufferIdx, int bufferEnd, int stride ) {
+		int in = 0, out = 0, rand = 0, s1 = 0, s2 = 0, s3 = 0;
+		while( bufferIdx < bufferEnd ) {
+			// Convert to unsigned for proper integer rounding.
+			in = inputBuf[ bufferIdx ] + 32768;
+			// TPDF dither.
+			rand = ( rand * 65 + 17 ) & 0x7FFFFFFF;
+			int dither = rand >> 25;
+			rand = ( rand * 65 + 17 ) & 0x7FFFFFFF;
+			dither -= rand >> 25;
+			// "F-weighted" 3-tap noise shaping. Works well around 32khz.
+			in = in - ( s1 * 13 -s2 * 8 + s3 ) / 8 + dither;
+			s3 = s2;
+			s2 = s1;
+			// Rounding and quantization.
+			out = ( in + ( in & 0x80 ) ) >> 8;
+			// Clipping.
+			if( out < 0 ) out = 0;
+			if( out > 255 ) out = 255;
+			// Feedback.
+			s1 = ( out << 8 ) - in;
+			outputBuf[ bufferIdx ] = ( byte ) ( out - 128 );
+			bufferIdx += stride;
 		}
 	}
 
@@ -60,7 +76,6 @@ public class EightBitSampleData implements SampleData {
 		this.numChannels = numChannels;
 		this.sampleRate = sampleRate;
 		this.samplesRemaining = numSamples;
-		inputBuf = new byte[ BUF_SAMPLES * numChannels ];
 	}
 
 	public int getNumChannels() {
@@ -80,19 +95,24 @@ public class EightBitSampleData implements SampleData {
 		if( count > samplesRemaining ) {
 			count = samplesRemaining;
 		}
-		if( count > BUF_SAMPLES ) {
-			count = BUF_SAMPLES;
+		if( count > BufferPool.getBufferSamples() ) {
+			count = BufferPool.getBufferSamples();
 		}
-		count = readFully( inputStream, inputBuf, count * numChannels ) / numChannels;
-		for( int channel = 0; channel < numChannels; channel++ ) {
-			int inputIdx = channel;
-			int inputEnd = count * numChannels + channel;
-			int outputIdx = offset * numChannels + channel;
-			while( inputIdx < inputEnd ) {
-				outputBuf[ outputIdx ] = ( short ) ( inputBuf[ inputIdx ] << 8 );
-				outputIdx += numChannels;
-				inputIdx += numChannels;
+		byte[] inputBuf = BufferPool.getBytes( count * numChannels );
+		try {
+			count = readFully( inputStream, inputBuf, count * numChannels ) / numChannels;
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				int inputIdx = channel;
+				int inputEnd = count * numChannels + channel;
+				int outputIdx = offset * numChannels + channel;
+				while( inputIdx < inputEnd ) {
+					outputBuf[ outputIdx ] = ( short ) ( inputBuf[ inputIdx ] << 8 );
+					outputIdx += numChannels;
+					inputIdx += numChannels;
+				}
 			}
+		} finally {
+			BufferPool.release( inputBuf );
 		}
 		samplesRemaining -= count;
 		return count;
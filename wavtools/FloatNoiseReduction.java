@@ -0,0 +1,70 @@
+
+package wavtools;
+
+/**
+	The noise-reduction algorithm of NoiseReduction, applied to FloatSampleData.
+	The filter is identical, but the output is neither quantized nor clipped,
+	so a chain of floating-point stages keeps the full precision and headroom
+	of its intermediate results, and is only quantized at the end, for example by ShortSampleDataAdapter.
+*/
+public class FloatNoiseReduction implements FloatSampleData {
+	private FloatSampleData input;
+
+	private float floor, attack, release, fcMin, fc, hpX, hpY, lpY[];
+
+	/**
+		Constructor.
+		@param input the input audio, normally in the range -1 to 1.
+		@param dynamicRange the dynamic range in db (typically 54, lower values increase noise reduction).
+	*/
+	public FloatNoiseReduction( FloatSampleData input, int dynamicRange ) {
+		this.input = input;
+		lpY = new float[ input.getNumChannels() ];
+		floor = ( float ) ( Math.pow( 10, dynamicRange / -20.0 ) * input.getNumChannels() );
+		attack = ( float ) Math.pow( 2, 1000 / ( input.getSampleRate() * NoiseReduction.ATTACK_MS_PER_OCTAVE ) );
+		release = ( float ) Math.pow( 2, -1000 / ( input.getSampleRate() * NoiseReduction.RELEASE_MS_PER_OCTAVE ) );
+		fcMin = fc = ( float ) ( 2.0 * Math.PI * NoiseReduction.FC_MIN_HZ / input.getSampleRate() );
+	}
+
+	public int getNumChannels() {
+		return input.getNumChannels();
+	}
+
+	public int getSampleRate() {
+		return input.getSampleRate();
+	}
+
+	public int getSamplesRemaining() {
+		return input.getSamplesRemaining();
+	}
+
+	public int getSamples( float[] buffer, int offset, int count ) throws Exception {
+		int numChannels = input.getNumChannels();
+		count = input.getSamples( buffer, offset, count );
+		int end = offset + count;
+		while( offset < end ) {
+			float ctrl = 0, alpha = fc / ( fc + 1 );
+			for( int chn = 0; chn < numChannels; chn++ ) {
+				int idx = offset * numChannels + chn;
+				ctrl += buffer[ idx ];
+				lpY[ chn ] += alpha * ( buffer[ idx ] - lpY[ chn ] );
+				buffer[ idx ] = lpY[ chn ];
+			}
+			hpY = ( hpY + ctrl - hpX ) / ( fc + 1 );
+			hpX = ctrl;
+			if( hpY > floor || -hpY > floor ) {
+				fc *= attack;
+				if( fc > NoiseReduction.FC_MAX ) {
+					fc = NoiseReduction.FC_MAX;
+				}
+			} else {
+				fc *= release;
+				if( fc < fcMin ) {
+					fc = fcMin;
+				}
+			}
+			offset++;
+		}
+		return count;
+	}
+}
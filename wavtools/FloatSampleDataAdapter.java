@@ -0,0 +1,43 @@
+
+package wavtools;
+
+/* Presents a 16-bit SampleData as FloatSampleData, scaling samples to the range -1 to 1. */
+public class FloatSampleDataAdapter implements FloatSampleData {
+	private static final int BUF_SAMPLES = 1 << 12;
+	private static final float SCALE = 1f / 32768;
+
+	private SampleData input;
+
+	public FloatSampleDataAdapter( SampleData input ) {
+		this.input = input;
+	}
+
+	public int getNumChannels() {
+		return input.getNumChannels();
+	}
+
+	public int getSampleRate() {
+		return input.getSampleRate();
+	}
+
+	public int getSamplesRemaining() {
+		return input.getSamplesRemaining();
+	}
+
+	public int getSamples( float[] outputBuf, int offset, int count ) throws Exception {
+		if( count > BUF_SAMPLES ) {
+			count = BUF_SAMPLES;
+		}
+		short[] inputBuf = BufferPool.getShorts( count * input.getNumChannels() );
+		try {
+			count = input.getSamples( inputBuf, 0, count );
+			int numChannels = input.getNumChannels();
+			for( int inputIdx = 0, outputIdx = offset * numChannels, end = count * numChannels; inputIdx < end; inputIdx++ ) {
+				outputBuf[ outputIdx++ ] = inputBuf[ inputIdx ] * SCALE;
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+		}
+		return count;
+	}
+}
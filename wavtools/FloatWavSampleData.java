@@ -0,0 +1,238 @@
+
+package wavtools;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/* WAV reader and writer for floating-point audio.
+   Supports 8, 16, 24 and 32-bit integer and 32 or 64-bit floating-point samples,
+   in both the basic and extensible formats. */
+public class FloatWavSampleData implements FloatSampleData {
+	public static final int FORMAT_PCM = 1, FORMAT_FLOAT = 3, FORMAT_EXTENSIBLE = 0xFFFE;
+
+	private static final String PCM_ID = "\u0001\u0000\u0000\u0000\u0000\u0000\u0010\u0000\u0080\u0000\u0000\u00AA\u0000\u0038\u009B\u0071";
+	private static final String FLOAT_ID = "\u0003\u0000\u0000\u0000\u0000\u0000\u0010\u0000\u0080\u0000\u0000\u00AA\u0000\u0038\u009B\u0071";
+
+	private WavHeader header;
+	private InputStream inputStream;
+	private int numChannels, sampleRate, bytesPerSample, format, samplesRemaining;
+
+	/* Write the contents of the specified FloatSampleData instance to the specified OutputStream as a WAV file.
+	   Integer samples may be 16, 24 or 32 bits, floating-point samples must be 32 bits.
+	   The extensible format is used for more than 2 channels. */
+	public static void writeWav( FloatSampleData sampleData, OutputStream outputStream, int bitsPerSample, boolean floatingPoint ) throws Exception {
+		if( floatingPoint ? bitsPerSample != 32 : ( bitsPerSample != 16 && bitsPerSample != 24 && bitsPerSample != 32 ) ) {
+			throw new IllegalArgumentException( "Unsupported sample format." );
+		}
+		int numChannels = sampleData.getNumChannels();
+		int sampleRate = sampleData.getSampleRate();
+		int numSamples = sampleData.getSamplesRemaining();
+		int frameSize = numChannels * bitsPerSample / 8;
+		long dataLength = numSamples * ( long ) frameSize;
+		boolean extensible = numChannels > 2;
+		int formatLength = extensible ? 40 : floatingPoint ? 18 : 16;
+		int factLength = floatingPoint ? 12 : 0;
+		long riffLength = 4 + 8 + formatLength + factLength + 8 + dataLength + ( dataLength & 1 );
+		if( numSamples == Integer.MAX_VALUE || riffLength > 0xFFFFFFFFL ) {
+			// Unknown or too large, the sizes are unspecified.
+			numSamples = -1;
+			dataLength = riffLength = -1;
+		}
+		WavSampleData.writeChars( outputStream, "RIFF".toCharArray(), 4 );
+		WavSampleData.writeInt( outputStream, ( int ) riffLength ); // Wave chunk length.
+		WavSampleData.writeChars( outputStream, "WAVE".toCharArray(), 4 );
+		WavSampleData.writeChars( outputStream, "fmt ".toCharArray(), 4 );
+		WavSampleData.writeInt( outputStream, formatLength ); // Format chunk length.
+		WavSampleData.writeShort( outputStream, extensible ? FORMAT_EXTENSIBLE : floatingPoint ? FORMAT_FLOAT : FORMAT_PCM );
+		WavSampleData.writeShort( outputStream, numChannels );
+		WavSampleData.writeInt( outputStream, sampleRate );
+		WavSampleData.writeInt( outputStream, sampleRate * frameSize ); // Bytes per sec.
+		WavSampleData.writeShort( outputStream, frameSize );
+		WavSampleData.writeShort( outputStream, bitsPerSample );
+		if( formatLength > 16 ) {
+			WavSampleData.writeShort( outputStream, formatLength - 18 ); // Extension length.
+		}
+		if( extensible ) {
+			WavSampleData.writeShort( outputStream, bitsPerSample ); // Valid bits.
+			WavSampleData.writeInt( outputStream, 0 ); // Channel mask.
+			WavSampleData.writeChars( outputStream, ( floatingPoint ? FLOAT_ID : PCM_ID ).toCharArray(), 16 );
+		}
+		if( floatingPoint ) {
+			WavSampleData.writeChars( outputStream, "fact".toCharArray(), 4 );
+			WavSampleData.writeInt( outputStream, 4 );
+			WavSampleData.writeInt( outputStream, numSamples );
+		}
+		WavSampleData.writeChars( outputStream, "data".toCharArray(), 4 );
+		WavSampleData.writeInt( outputStream, ( int ) dataLength );
+		// Write data.
+		int bufSamples = BufferPool.getBufferSamples();
+		float[] inputBuf = BufferPool.getFloats( numChannels * bufSamples );
+		byte[] outputBytes = BufferPool.getBytes( numChannels * bufSamples * bitsPerSample / 8 );
+		long written = 0;
+		try {
+			ByteBuffer outputBuf = ByteBuffer.wrap( outputBytes ).order( ByteOrder.LITTLE_ENDIAN );
+			while( sampleData.getSamplesRemaining() > 0 ) {
+				int inputLen = sampleData.getSamples( inputBuf, 0, bufSamples ) * numChannels;
+				written += inputLen * bitsPerSample / 8;
+				outputBuf.clear();
+				if( floatingPoint ) {
+					outputBuf.asFloatBuffer().put( inputBuf, 0, inputLen );
+				} else if( bitsPerSample == 16 ) {
+					for( int inputIdx = 0; inputIdx < inputLen; inputIdx++ ) {
+						outputBuf.putShort( ShortSampleDataAdapter.toShort( inputBuf[ inputIdx ] ) );
+					}
+				} else if( bitsPerSample == 24 ) {
+					for( int inputIdx = 0; inputIdx < inputLen; inputIdx++ ) {
+						int amp = ( int ) clip( Math.round( inputBuf[ inputIdx ] * 8388608.0 ), 23 );
+						outputBuf.put( ( byte ) amp ).putShort( ( short ) ( amp >> 8 ) );
+					}
+				} else {
+					for( int inputIdx = 0; inputIdx < inputLen; inputIdx++ ) {
+						outputBuf.putInt( ( int ) clip( Math.round( inputBuf[ inputIdx ] * 2147483648.0 ), 31 ) );
+					}
+				}
+				outputStream.write( outputBuf.array(), 0, inputLen * bitsPerSample / 8 );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( outputBytes );
+		}
+		if( ( written & 1 ) != 0 ) {
+			outputStream.write( 0 );
+		}
+	}
+
+	private static long clip( long amp, int bits ) {
+		long max = ( 1L << bits ) - 1;
+		if( amp > max ) {
+			return max;
+		} else if( amp < -max - 1 ) {
+			return -max - 1;
+		}
+		return amp;
+	}
+
+	/* Prepare to decode a WAV file from the specified InputStream. */
+	public FloatWavSampleData( InputStream inputStream ) throws IOException {
+		PushbackInputStream pushbackStream = new PushbackInputStream( inputStream, WavHeader.PUSHBACK_BYTES );
+		header = new WavHeader( pushbackStream );
+		this.inputStream = pushbackStream;
+		format = header.getFormat();
+		numChannels = header.getNumChannels();
+		sampleRate = header.getSampleRate();
+		bytesPerSample = header.getBytesPerFrame();
+		int width = bytesPerSample / numChannels;
+		if( width * numChannels != bytesPerSample || !( format == FORMAT_PCM && width >= 1 && width <= 4
+			|| format == FORMAT_FLOAT && ( width == 4 || width == 8 ) ) ) {
+			throw new IllegalArgumentException( "Unsupported sample format." );
+		}
+		// An unspecified data length is read until the end of the stream.
+		samplesRemaining = header.getNumSamples() < 0 ? Integer.MAX_VALUE : header.getNumSamples();
+	}
+
+	/* Return the parsed header, including the offset and length of each chunk before the audio data. */
+	public WavHeader getHeader() {
+		return header;
+	}
+
+	/* Return the sample format, either FORMAT_PCM or FORMAT_FLOAT. */
+	public int getFormat() {
+		return format;
+	}
+
+	/* Return the number of bits per sample of the input. */
+	public int getBitsPerSample() {
+		return bytesPerSample * 8 / numChannels;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return samplesRemaining;
+	}
+
+	/* Read and convert at most count samples of audio data into the specified buffer. */
+	public int getSamples( float[] outputBuf, int offset, int count ) throws IOException {
+		if( count > samplesRemaining ) {
+			count = samplesRemaining;
+		}
+		if( count > BufferPool.getBufferSamples() ) {
+			count = BufferPool.getBufferSamples();
+		}
+		byte[] inputBuf = BufferPool.getBytes( count * bytesPerSample );
+		try {
+			ByteBuffer inputBuffer = ByteBuffer.wrap( inputBuf ).order( ByteOrder.LITTLE_ENDIAN );
+			int inputBytes = WavSampleData.readFully( inputStream, inputBuf, count * bytesPerSample );
+			if( inputBytes < count * bytesPerSample ) {
+				samplesRemaining = inputBytes / bytesPerSample;
+			}
+			count = inputBytes / bytesPerSample;
+			int inputIdx = 0, outputIdx = offset * numChannels, outputEnd = ( offset + count ) * numChannels;
+			switch( format * 16 + bytesPerSample / numChannels ) {
+				case FORMAT_PCM * 16 + 1: // 8-bit unsigned.
+					while( outputIdx < outputEnd ) {
+						outputBuf[ outputIdx++ ] = ( ( inputBuf[ inputIdx++ ] & 0xFF ) - 128 ) * ( 1f / 128 );
+					}
+					break;
+				case FORMAT_PCM * 16 + 2: // 16-bit signed little-endian.
+					while( outputIdx < outputEnd ) {
+						outputBuf[ outputIdx++ ] = inputBuffer.getShort( inputIdx ) * ( 1f / 32768 );
+						inputIdx += 2;
+					}
+					break;
+				case FORMAT_PCM * 16 + 3: // 24-bit signed little-endian.
+					while( outputIdx < outputEnd ) {
+						int amp = ( inputBuf[ inputIdx ] & 0xFF ) | ( ( inputBuf[ inputIdx + 1 ] & 0xFF ) << 8 ) | ( inputBuf[ inputIdx + 2 ] << 16 );
+						outputBuf[ outputIdx++ ] = amp * ( 1f / 8388608 );
+						inputIdx += 3;
+					}
+					break;
+				case FORMAT_PCM * 16 + 4: // 32-bit signed little-endian.
+					while( outputIdx < outputEnd ) {
+						outputBuf[ outputIdx++ ] = inputBuffer.getInt( inputIdx ) * ( 1f / 2147483648f );
+						inputIdx += 4;
+					}
+					break;
+				case FORMAT_FLOAT * 16 + 4: // 32-bit floating-point.
+					inputBuffer.clear();
+					inputBuffer.asFloatBuffer().get( outputBuf, outputIdx, outputEnd - outputIdx );
+					break;
+				case FORMAT_FLOAT * 16 + 8: // 64-bit floating-point.
+					while( outputIdx < outputEnd ) {
+						outputBuf[ outputIdx++ ] = ( float ) inputBuffer.getDouble( inputIdx );
+						inputIdx += 8;
+					}
+					break;
+			}
+			samplesRemaining -= count;
+		} finally {
+			BufferPool.release( inputBuf );
+		}
+		return count;
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 2 && args.length != 3 ) {
+			System.err.println( "Wave sample format converter.\nUsage: " + FloatWavSampleData.class.getName() + " input.wav output.wav [16|24|32|32f]" );
+			System.exit( 0 );
+		}
+		String outputFormat = args.length > 2 ? args[ 2 ] : "32f";
+		boolean floatingPoint = outputFormat.endsWith( "f" );
+		int bitsPerSample = Integer.parseInt( floatingPoint ? outputFormat.substring( 0, outputFormat.length() - 1 ) : outputFormat );
+		try( InputStream inputStream = new java.io.BufferedInputStream( new java.io.FileInputStream( args[ 0 ] ) ) ) {
+			try( OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 1 ] ) ) ) {
+				writeWav( new FloatWavSampleData( inputStream ), outputStream, bitsPerSample, floatingPoint );
+			}
+		}
+	}
+}
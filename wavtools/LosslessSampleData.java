@@ -0,0 +1,772 @@
+
+package wavtools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+	Lossless codec using fixed or linear predictors and Rice-coded residuals, similar to FLAC.
+	Low bits that are zero throughout a block of a channel, such as those discarded by
+	QuantizedSampleData, are not stored, so audio can be quantized and compressed in one pass.
+	The stream consists of a 20-byte header followed by byte-aligned frames of blockSamples samples,
+	the final frame may be shorter. Frames are encoded and decoded in parallel.
+	Header and frame lengths are little-endian.
+		"LSLC", numChannels, sampleRate, numSamples, blockSamples
+		Frames ( frameBytes, then a subframe for each channel ).
+	Subframes are bit-packed, most significant bit first, and begin with a 2-bit type:
+		0 Constant: 16-bit value.
+		1 Verbatim: 4-bit wasted bits w, then ( 16 - w )-bit samples.
+		2 Fixed: w, 3-bit order, warm-up samples, residual.
+		3 LPC: w, 5-bit order - 1, 4-bit precision - 1, 5-bit shift, coefficients, warm-up samples, residual.
+	The residual is a 4-bit partition order, then for each partition a 5-bit Rice parameter and the Rice codes.
+*/
+public class LosslessSampleData implements SampleData {
+	public static final int DEFAULT_BLOCK_SAMPLES = 4096, DEFAULT_LPC_ORDER = 8;
+
+	private static final int HEADER_BYTES = 20;
+	private static final int MAGIC = 'L' | ( 'S' << 8 ) | ( 'L' << 16 ) | ( 'C' << 24 );
+	private static final int TYPE_CONSTANT = 0, TYPE_VERBATIM = 1, TYPE_FIXED = 2, TYPE_LPC = 3;
+	private static final int MAX_FIXED_ORDER = 4, MAX_LPC_ORDER = 32, LPC_PRECISION = 12;
+	private static final int MAX_PARTITION_ORDER = 8, MIN_PARTITION_SAMPLES = 16;
+	private static final int MIN_BLOCK_SAMPLES = 16, MAX_BLOCK_SAMPLES = 1 << 16;
+
+	private InputStream inputStream;
+	private int numChannels, sampleRate, numSamples, blockSamples, samplesRemaining;
+	private short[] decodeBuf;
+	private byte[][] frames;
+	private int decodeIdx, decodeEnd;
+
+	/* Encode the contents of specified SampleData and write to the specified OutputStream. */
+	public static void encode( SampleData sampleData, OutputStream outputStream ) throws Exception {
+		encode( sampleData, outputStream, DEFAULT_BLOCK_SAMPLES, DEFAULT_LPC_ORDER );
+	}
+
+	/* Encode the contents of specified SampleData using the specified block size, from 16 to 65536 samples,
+	   and maximum LPC order, from 0 to 32. If maxLpcOrder is zero only the fixed predictors are used. */
+	public static void encode( SampleData sampleData, OutputStream outputStream, int blockSamples, final int maxLpcOrder ) throws Exception {
+		if( blockSamples < MIN_BLOCK_SAMPLES || blockSamples > MAX_BLOCK_SAMPLES ) {
+			throw new IllegalArgumentException( "Invalid block size." );
+		}
+		if( maxLpcOrder < 0 || maxLpcOrder > MAX_LPC_ORDER ) {
+			throw new IllegalArgumentException( "Invalid LPC order." );
+		}
+		if( sampleData.getSamplesRemaining() == Integer.MAX_VALUE ) {
+			// The length is written to the header before the data.
+			throw new IllegalArgumentException( "Input length unknown." );
+		}
+		final int numChannels = sampleData.getNumChannels();
+		int numSamples = sampleData.getSamplesRemaining();
+		byte[] header = new byte[ HEADER_BYTES ];
+		putInt( header, 0, MAGIC );
+		putInt( header, 4, numChannels );
+		putInt( header, 8, sampleData.getSampleRate() );
+		putInt( header, 12, numSamples );
+		putInt( header, 16, blockSamples );
+		outputStream.write( header );
+		int blocksPerBuf = blocksPerBuffer( blockSamples );
+		final short[] inputBuf = BufferPool.getShorts( blocksPerBuf * blockSamples * numChannels );
+		final byte[][] frames = BufferPool.getBytes( blocksPerBuf, maxFrameBytes( blockSamples, numChannels ) );
+		final int[] frameLengths = new int[ blocksPerBuf ];
+		try {
+			int position = 0;
+			while( position < numSamples ) {
+				int count = 0, length = numSamples - position;
+				if( length > blocksPerBuf * blockSamples ) {
+					length = blocksPerBuf * blockSamples;
+				}
+				while( count < length ) {
+					int samples = sampleData.getSamples( inputBuf, count, length - count );
+					if( samples < 1 ) {
+						throw new EOFException( "Unexpected end of input." );
+					}
+					count += samples;
+				}
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for( int block = 0; block * blockSamples < count; block++ ) {
+					final int frame = block;
+					final int start = block * blockSamples;
+					final int end = start + blockSamples < count ? start + blockSamples : count;
+					tasks.add( new Callable<Void>() {
+						public Void call() {
+							frameLengths[ frame ] = encodeFrame( inputBuf, start, end, numChannels, maxLpcOrder, frames[ frame ] );
+							return null;
+						}
+					} );
+				}
+				invokeAll( tasks );
+				for( int frame = 0; frame < tasks.size(); frame++ ) {
+					outputStream.write( frames[ frame ], 0, frameLengths[ frame ] );
+				}
+				position += count;
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( frames );
+		}
+	}
+
+	/* Encode samples start to end of the interleaved buffer, returning the length of the frame including its length prefix. */
+	private static int encodeFrame( short[] buffer, int start, int end, int numChannels, int maxLpcOrder, byte[] output ) {
+		BitWriter writer = new BitWriter( output, 4 );
+		SubframeEncoder encoder = new SubframeEncoder( end - start, maxLpcOrder );
+		try {
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				int[] samples = encoder.samples;
+				for( int idx = 0, bufferIdx = start * numChannels + channel; idx < end - start; idx++, bufferIdx += numChannels ) {
+					samples[ idx ] = buffer[ bufferIdx ];
+				}
+				encoder.encode( writer );
+			}
+		} finally {
+			encoder.release();
+		}
+		int length = writer.flush();
+		putInt( output, 0, length - 4 );
+		return length;
+	}
+
+	/* Choose and write the predictor and residual for each channel of a block.
+	   The sample and residual buffers are borrowed from the pool until release() is called. */
+	private static class SubframeEncoder {
+		private int numSamples, maxLpcOrder;
+		private int[] samples, fixedResidual, lpcResidual, fixedParams, lpcParams, coefs;
+		private long[] sums = new long[ 1 << MAX_PARTITION_ORDER ];
+		private double[] autoc, lpc, errors;
+		private float[] window;
+		private int lpcOrder, lpcShift;
+
+		public SubframeEncoder( int numSamples, int maxLpcOrder ) {
+			this.numSamples = numSamples;
+			this.maxLpcOrder = maxLpcOrder < numSamples / 2 ? maxLpcOrder : numSamples / 2;
+			samples = BufferPool.getInts( numSamples );
+			fixedResidual = BufferPool.getInts( numSamples );
+			fixedParams = new int[ ( 1 << MAX_PARTITION_ORDER ) + 1 ];
+			if( this.maxLpcOrder > 0 ) {
+				lpcResidual = BufferPool.getInts( numSamples );
+				lpcParams = new int[ ( 1 << MAX_PARTITION_ORDER ) + 1 ];
+				coefs = new int[ this.maxLpcOrder ];
+				autoc = new double[ this.maxLpcOrder + 1 ];
+				lpc = new double[ ( this.maxLpcOrder + 1 ) * ( this.maxLpcOrder + 1 ) ];
+				errors = new double[ this.maxLpcOrder + 1 ];
+				window = BufferPool.getFloats( numSamples );
+				// Welch window.
+				double centre = ( numSamples - 1 ) / 2.0, width = ( numSamples + 1 ) / 2.0;
+				for( int idx = 0; idx < numSamples; idx++ ) {
+					double x = ( idx - centre ) / width;
+					window[ idx ] = ( float ) ( 1 - x * x );
+				}
+			}
+		}
+
+		public void release() {
+			BufferPool.release( samples );
+			BufferPool.release( fixedResidual );
+			BufferPool.release( lpcResidual );
+			BufferPool.release( window );
+		}
+
+		/* Encode the contents of the samples array. */
+		public void encode( BitWriter writer ) {
+			int bits = 0;
+			boolean constant = true;
+			for( int idx = 0; idx < numSamples; idx++ ) {
+				bits |= samples[ idx ];
+				constant = constant && samples[ idx ] == samples[ 0 ];
+			}
+			if( constant ) {
+				writer.write( TYPE_CONSTANT, 2 );
+				writer.write( samples[ 0 ], 16 );
+				return;
+			}
+			int wasted = Integer.numberOfTrailingZeros( bits );
+			if( wasted > 15 ) {
+				wasted = 15;
+			}
+			if( wasted > 0 ) {
+				for( int idx = 0; idx < numSamples; idx++ ) {
+					samples[ idx ] >>= wasted;
+				}
+			}
+			int sampleBits = 16 - wasted;
+			long verbatimBits = ( long ) numSamples * sampleBits;
+			int fixedOrder = 0;
+			long fixedBits = Long.MAX_VALUE;
+			if( numSamples > MAX_FIXED_ORDER ) {
+				fixedOrder = fixedOrder();
+				fixedResidual( fixedOrder );
+				fixedBits = 3 + fixedOrder * sampleBits + residualBits( fixedResidual, fixedOrder, fixedParams );
+			}
+			long lpcBits = Long.MAX_VALUE;
+			if( maxLpcOrder > 0 && lpc( sampleBits ) ) {
+				lpcBits = 14 + lpcOrder * ( LPC_PRECISION + sampleBits ) + residualBits( lpcResidual, lpcOrder, lpcParams );
+			}
+			if( verbatimBits <= fixedBits && verbatimBits <= lpcBits ) {
+				writer.write( TYPE_VERBATIM, 2 );
+				writer.write( wasted, 4 );
+				for( int idx = 0; idx < numSamples; idx++ ) {
+					writer.write( samples[ idx ], sampleBits );
+				}
+			} else if( fixedBits <= lpcBits ) {
+				writer.write( TYPE_FIXED, 2 );
+				writer.write( wasted, 4 );
+				writer.write( fixedOrder, 3 );
+				for( int idx = 0; idx < fixedOrder; idx++ ) {
+					writer.write( samples[ idx ], sampleBits );
+				}
+				writeResidual( writer, fixedResidual, fixedOrder, fixedParams );
+			} else {
+				writer.write( TYPE_LPC, 2 );
+				writer.write( wasted, 4 );
+				writer.write( lpcOrder - 1, 5 );
+				writer.write( LPC_PRECISION - 1, 4 );
+				writer.write( lpcShift, 5 );
+				for( int idx = 0; idx < lpcOrder; idx++ ) {
+					writer.write( coefs[ idx ], LPC_PRECISION );
+				}
+				for( int idx = 0; idx < lpcOrder; idx++ ) {
+					writer.write( samples[ idx ], sampleBits );
+				}
+				writeResidual( writer, lpcResidual, lpcOrder, lpcParams );
+			}
+		}
+
+		/* Return the fixed predictor order with the smallest sum of absolute residuals. */
+		private int fixedOrder() {
+			long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+			int[] x = samples;
+			for( int idx = MAX_FIXED_ORDER; idx < numSamples; idx++ ) {
+				int r0 = x[ idx ];
+				int r1 = r0 - x[ idx - 1 ];
+				int r2 = r1 - ( x[ idx - 1 ] - x[ idx - 2 ] );
+				int r3 = r2 - ( x[ idx - 1 ] - 2 * x[ idx - 2 ] + x[ idx - 3 ] );
+				int r4 = r3 - ( x[ idx - 1 ] - 3 * x[ idx - 2 ] + 3 * x[ idx - 3 ] - x[ idx - 4 ] );
+				e0 += Math.abs( r0 );
+				e1 += Math.abs( r1 );
+				e2 += Math.abs( r2 );
+				e3 += Math.abs( r3 );
+				e4 += Math.abs( r4 );
+			}
+			long[] errors = { e0, e1, e2, e3, e4 };
+			int order = 0;
+			for( int idx = 1; idx <= MAX_FIXED_ORDER; idx++ ) {
+				if( errors[ idx ] < errors[ order ] ) {
+					order = idx;
+				}
+			}
+			return order;
+		}
+
+		private void fixedResidual( int order ) {
+			int[] x = samples;
+			for( int idx = order; idx < numSamples; idx++ ) {
+				fixedResidual[ idx ] = x[ idx ] - fixedPrediction( x, idx, order );
+			}
+		}
+
+		/* Compute the LPC coefficients and residual, returning false if no LPC predictor could be found. */
+		private boolean lpc( int sampleBits ) {
+			int[] x = samples;
+			for( int lag = 0; lag <= maxLpcOrder; lag++ ) {
+				double sum = 0;
+				for( int idx = lag; idx < numSamples; idx++ ) {
+					sum += x[ idx ] * window[ idx ] * x[ idx - lag ] * window[ idx - lag ];
+				}
+				autoc[ lag ] = sum;
+			}
+			if( autoc[ 0 ] <= 0 ) {
+				return false;
+			}
+			// Levinson-Durbin recursion, row p of lpc contains the coefficients of order p.
+			int rowLen = maxLpcOrder + 1;
+			double error = autoc[ 0 ];
+			errors[ 0 ] = error;
+			for( int order = 1; order <= maxLpcOrder; order++ ) {
+				double k = autoc[ order ];
+				for( int idx = 1; idx < order; idx++ ) {
+					k -= lpc[ ( order - 1 ) * rowLen + idx ] * autoc[ order - idx ];
+				}
+				k = error > 0 ? k / error : 0;
+				for( int idx = 1; idx < order; idx++ ) {
+					lpc[ order * rowLen + idx ] = lpc[ ( order - 1 ) * rowLen + idx ] - k * lpc[ ( order - 1 ) * rowLen + order - idx ];
+				}
+				lpc[ order * rowLen + order ] = k;
+				error *= 1 - k * k;
+				errors[ order ] = error;
+			}
+			// Choose the order with the lowest estimated size.
+			lpcOrder = 0;
+			double bestBits = Double.MAX_VALUE;
+			for( int order = 1; order <= maxLpcOrder; order++ ) {
+				double bitsPerSample = errors[ order ] > 0 ? 0.5 * Math.log( errors[ order ] / numSamples ) / Math.log( 2 ) : 0;
+				double bits = ( numSamples - order ) * ( bitsPerSample > 0 ? bitsPerSample : 0 ) + order * ( LPC_PRECISION + sampleBits );
+				if( bits < bestBits ) {
+					bestBits = bits;
+					lpcOrder = order;
+				}
+			}
+			// Quantize the coefficients, carrying the rounding error to the next coefficient.
+			double max = 0;
+			for( int idx = 1; idx <= lpcOrder; idx++ ) {
+				max = Math.max( max, Math.abs( lpc[ lpcOrder * rowLen + idx ] ) );
+			}
+			if( max <= 0 ) {
+				return false;
+			}
+			lpcShift = LPC_PRECISION - 1 - Math.getExponent( max ) - 1;
+			if( lpcShift < 0 ) {
+				return false;
+			}
+			if( lpcShift > 31 ) {
+				lpcShift = 31;
+			}
+			int cmax = ( 1 << ( LPC_PRECISION - 1 ) ) - 1;
+			double carry = 0;
+			for( int idx = 0; idx < lpcOrder; idx++ ) {
+				carry += lpc[ lpcOrder * rowLen + idx + 1 ] * ( 1 << lpcShift );
+				int coef = ( int ) Math.round( carry );
+				coef = coef > cmax ? cmax : coef < -cmax - 1 ? -cmax - 1 : coef;
+				carry -= coef;
+				coefs[ idx ] = coef;
+			}
+			for( int idx = lpcOrder; idx < numSamples; idx++ ) {
+				long residual = x[ idx ] - lpcPrediction( x, idx, coefs, lpcOrder, lpcShift );
+				if( residual < -( 1 << 30 ) || residual > ( 1 << 30 ) ) {
+					return false;
+				}
+				lpcResidual[ idx ] = ( int ) residual;
+			}
+			return true;
+		}
+
+		/* Choose the partition order and Rice parameters, stored in params, and return the size of the residual in bits. */
+		private long residualBits( int[] residual, int order, int[] params ) {
+			int maxOrder = 0;
+			while( maxOrder < MAX_PARTITION_ORDER && ( numSamples >> ( maxOrder + 1 ) ) >= MIN_PARTITION_SAMPLES ) {
+				maxOrder++;
+			}
+			// Sums of each partition at the maximum order, combined in pairs for each lower order.
+			for( int part = 0; part < 1 << maxOrder; part++ ) {
+				long sum = 0;
+				for( int idx = partitionStart( part, maxOrder, order ), end = partitionStart( part + 1, maxOrder, order ); idx < end; idx++ ) {
+					sum += ( residual[ idx ] << 1 ) ^ ( residual[ idx ] >> 31 );
+				}
+				sums[ part ] = sum;
+			}
+			int bestOrder = 0;
+			long bestBits = Long.MAX_VALUE;
+			for( int partOrder = maxOrder; partOrder >= 0; partOrder-- ) {
+				long bits = 4;
+				for( int part = 0; part < 1 << partOrder; part++ ) {
+					int count = partitionStart( part + 1, partOrder, order ) - partitionStart( part, partOrder, order );
+					int k = riceParameter( sums[ part ], count );
+					bits += 5 + ( long ) count * ( k + 1 ) + ( sums[ part ] >> k );
+				}
+				if( bits <= bestBits ) {
+					bestBits = bits;
+					bestOrder = partOrder;
+				}
+				for( int part = 0; part < 1 << partOrder >> 1; part++ ) {
+					sums[ part ] = sums[ part * 2 ] + sums[ part * 2 + 1 ];
+				}
+			}
+			// Recompute the sums for the chosen order, and the exact size.
+			params[ 0 ] = bestOrder;
+			long bits = 4;
+			for( int part = 0; part < 1 << bestOrder; part++ ) {
+				int start = partitionStart( part, bestOrder, order ), end = partitionStart( part + 1, bestOrder, order );
+				long sum = 0;
+				for( int idx = start; idx < end; idx++ ) {
+					sum += ( residual[ idx ] << 1 ) ^ ( residual[ idx ] >> 31 );
+				}
+				int k = riceParameter( sum, end - start );
+				params[ part + 1 ] = k;
+				bits += 5 + ( long ) ( end - start ) * ( k + 1 );
+				for( int idx = start; idx < end; idx++ ) {
+					bits += ( ( residual[ idx ] << 1 ) ^ ( residual[ idx ] >> 31 ) ) >>> k;
+				}
+			}
+			return bits;
+		}
+
+		private int partitionStart( int part, int partOrder, int order ) {
+			int start = ( int ) ( ( ( long ) part * numSamples ) >> partOrder );
+			return start > order ? start : order;
+		}
+
+		private void writeResidual( BitWriter writer, int[] residual, int order, int[] params ) {
+			int partOrder = params[ 0 ];
+			writer.write( partOrder, 4 );
+			for( int part = 0; part < 1 << partOrder; part++ ) {
+				int k = params[ part + 1 ];
+				writer.write( k, 5 );
+				for( int idx = partitionStart( part, partOrder, order ), end = partitionStart( part + 1, partOrder, order ); idx < end; idx++ ) {
+					int value = ( residual[ idx ] << 1 ) ^ ( residual[ idx ] >> 31 );
+					writer.writeUnary( value >>> k );
+					writer.write( value, k );
+				}
+			}
+		}
+	}
+
+	/* Return the Rice parameter for count values with the specified sum. */
+	private static int riceParameter( long sum, int count ) {
+		int k = 0;
+		while( k < 30 && ( ( long ) count << ( k + 1 ) ) < sum ) {
+			k++;
+		}
+		return k;
+	}
+
+	private static int fixedPrediction( int[] x, int idx, int order ) {
+		switch( order ) {
+			case 0: return 0;
+			case 1: return x[ idx - 1 ];
+			case 2: return 2 * x[ idx - 1 ] - x[ idx - 2 ];
+			case 3: return 3 * x[ idx - 1 ] - 3 * x[ idx - 2 ] + x[ idx - 3 ];
+			default: return 4 * x[ idx - 1 ] - 6 * x[ idx - 2 ] + 4 * x[ idx - 3 ] - x[ idx - 4 ];
+		}
+	}
+
+	private static long lpcPrediction( int[] x, int idx, int[] coefs, int order, int shift ) {
+		long sum = 0;
+		for( int coef = 0; coef < order; coef++ ) {
+			sum += ( long ) coefs[ coef ] * x[ idx - 1 - coef ];
+		}
+		return sum >> shift;
+	}
+
+	/* Prepare to decode lossless audio from the specified InputStream, reading the header. */
+	public LosslessSampleData( InputStream inputStream ) throws IOException {
+		byte[] header = new byte[ HEADER_BYTES ];
+		readFully( inputStream, header, HEADER_BYTES );
+		if( getInt( header, 0 ) != MAGIC ) {
+			throw new IllegalArgumentException( "Lossless header not found." );
+		}
+		numChannels = getInt( header, 4 );
+		sampleRate = getInt( header, 8 );
+		numSamples = getInt( header, 12 );
+		blockSamples = getInt( header, 16 );
+		if( numChannels < 1 || numSamples < 0 || blockSamples < MIN_BLOCK_SAMPLES || blockSamples > MAX_BLOCK_SAMPLES ) {
+			throw new IllegalArgumentException( "Invalid lossless header." );
+		}
+		this.inputStream = inputStream;
+		samplesRemaining = numSamples;
+	}
+
+	/* Return the total number of samples in the stream. */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return samplesRemaining;
+	}
+
+	public int getSamples( short[] outputBuf, int offset, int count ) throws Exception {
+		if( count > samplesRemaining ) {
+			count = samplesRemaining;
+		}
+		if( count < 1 ) {
+			return 0;
+		}
+		if( decodeIdx >= decodeEnd ) {
+			decodeFrames();
+		}
+		if( count > decodeEnd - decodeIdx ) {
+			count = decodeEnd - decodeIdx;
+		}
+		System.arraycopy( decodeBuf, decodeIdx * numChannels, outputBuf, offset * numChannels, count * numChannels );
+		decodeIdx += count;
+		samplesRemaining -= count;
+		return count;
+	}
+
+	/* Read and decode as many frames as fit in the buffer, in parallel. */
+	private void decodeFrames() throws Exception {
+		int blocksPerBuf = blocksPerBuffer( blockSamples );
+		if( decodeBuf == null ) {
+			decodeBuf = new short[ blocksPerBuf * blockSamples * numChannels ];
+			frames = new byte[ blocksPerBuf ][];
+		}
+		int maxFrameBytes = maxFrameBytes( blockSamples, numChannels );
+		int count = samplesRemaining < blocksPerBuf * blockSamples ? samplesRemaining : blocksPerBuf * blockSamples;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		byte[] lengthBuf = new byte[ 4 ];
+		for( int block = 0; block * blockSamples < count; block++ ) {
+			readFully( inputStream, lengthBuf, 4 );
+			final int length = getInt( lengthBuf, 0 );
+			if( length < 0 || length > maxFrameBytes ) {
+				throw new IOException( "Invalid frame length." );
+			}
+			if( frames[ block ] == null || frames[ block ].length < length ) {
+				frames[ block ] = new byte[ length ];
+			}
+			readFully( inputStream, frames[ block ], length );
+			final byte[] frame = frames[ block ];
+			final int start = block * blockSamples;
+			final int end = start + blockSamples < count ? start + blockSamples : count;
+			tasks.add( new Callable<Void>() {
+				public Void call() throws IOException {
+					decodeFrame( frame, length, decodeBuf, start, end, numChannels );
+					return null;
+				}
+			} );
+		}
+		invokeAll( tasks );
+		decodeIdx = 0;
+		decodeEnd = count;
+	}
+
+	/* Decode the specified frame into samples start to end of the interleaved buffer. */
+	private static void decodeFrame( byte[] frame, int length, short[] buffer, int start, int end, int numChannels ) throws IOException {
+		BitReader reader = new BitReader( frame, length );
+		int numSamples = end - start;
+		int[] x = BufferPool.getInts( numSamples );
+		int[] coefs = new int[ MAX_LPC_ORDER ];
+		try {
+			decodeChannels( reader, x, coefs, buffer, start, numSamples, numChannels );
+		} finally {
+			BufferPool.release( x );
+		}
+	}
+
+	private static void decodeChannels( BitReader reader, int[] x, int[] coefs, short[] buffer, int start, int numSamples, int numChannels ) throws IOException {
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			int type = reader.read( 2 );
+			int wasted = 0;
+			if( type == TYPE_CONSTANT ) {
+				int value = reader.readSigned( 16 );
+				for( int idx = 0; idx < numSamples; idx++ ) {
+					x[ idx ] = value;
+				}
+			} else {
+				wasted = reader.read( 4 );
+				int sampleBits = 16 - wasted;
+				int order = numSamples, shift = 0;
+				if( type == TYPE_FIXED ) {
+					order = reader.read( 3 );
+					if( order > MAX_FIXED_ORDER ) {
+						throw new IOException( "Invalid predictor order." );
+					}
+				} else if( type == TYPE_LPC ) {
+					order = reader.read( 5 ) + 1;
+					int precision = reader.read( 4 ) + 1;
+					shift = reader.read( 5 );
+					for( int idx = 0; idx < order; idx++ ) {
+						coefs[ idx ] = reader.readSigned( precision );
+					}
+				}
+				if( order > numSamples ) {
+					throw new IOException( "Invalid predictor order." );
+				}
+				for( int idx = 0; idx < order; idx++ ) {
+					x[ idx ] = reader.readSigned( sampleBits );
+				}
+				if( type != TYPE_VERBATIM ) {
+					readResidual( reader, x, order, numSamples );
+					if( type == TYPE_FIXED ) {
+						for( int idx = order; idx < numSamples; idx++ ) {
+							x[ idx ] += fixedPrediction( x, idx, order );
+						}
+					} else {
+						for( int idx = order; idx < numSamples; idx++ ) {
+							x[ idx ] += lpcPrediction( x, idx, coefs, order, shift );
+						}
+					}
+				}
+			}
+			for( int idx = 0, bufferIdx = start * numChannels + channel; idx < numSamples; idx++, bufferIdx += numChannels ) {
+				buffer[ bufferIdx ] = ( short ) ( x[ idx ] << wasted );
+			}
+		}
+	}
+
+	/* Read the Rice-coded residual into x from the specified order. */
+	private static void readResidual( BitReader reader, int[] x, int order, int numSamples ) throws IOException {
+		int partOrder = reader.read( 4 );
+		for( int part = 0; part < 1 << partOrder; part++ ) {
+			int k = reader.read( 5 );
+			int start = ( int ) ( ( ( long ) part * numSamples ) >> partOrder );
+			int end = ( int ) ( ( ( long ) ( part + 1 ) * numSamples ) >> partOrder );
+			for( int idx = start > order ? start : order; idx < end; idx++ ) {
+				int value = ( reader.readUnary() << k ) | reader.read( k );
+				x[ idx ] = ( value >>> 1 ) ^ -( value & 1 );
+			}
+		}
+	}
+
+	/* Bit-packer, most significant bit first. The buffer must be large enough for the output. */
+	private static class BitWriter {
+		private byte[] buf;
+		private int pos, accBits;
+		private long acc;
+
+		public BitWriter( byte[] buf, int pos ) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		/* Write the low bits of value, at most 32. */
+		public void write( int value, int bits ) {
+			acc = ( acc << bits ) | ( value & ( ( 1L << bits ) - 1 ) );
+			accBits += bits;
+			while( accBits >= 8 ) {
+				accBits -= 8;
+				buf[ pos++ ] = ( byte ) ( acc >>> accBits );
+			}
+		}
+
+		/* Write value zeros followed by a one. */
+		public void writeUnary( int value ) {
+			while( value >= 32 ) {
+				write( 0, 32 );
+				value -= 32;
+			}
+			write( 1, value + 1 );
+		}
+
+		/* Pad to a byte boundary and return the number of bytes in the buffer. */
+		public int flush() {
+			if( accBits > 0 ) {
+				write( 0, 8 - accBits );
+			}
+			return pos;
+		}
+	}
+
+	private static class BitReader {
+		private byte[] buf;
+		private int pos, end, cacheBits;
+		private long cache;
+
+		public BitReader( byte[] buf, int end ) {
+			this.buf = buf;
+			this.end = end;
+		}
+
+		public int read( int bits ) throws IOException {
+			while( cacheBits < bits ) {
+				fill();
+			}
+			cacheBits -= bits;
+			return ( int ) ( ( cache >>> cacheBits ) & ( ( 1L << bits ) - 1 ) );
+		}
+
+		public int readSigned( int bits ) throws IOException {
+			return ( read( bits ) << ( 32 - bits ) ) >> ( 32 - bits );
+		}
+
+		/* Return the number of zeros preceding the next one. */
+		public int readUnary() throws IOException {
+			int value = 0;
+			while( true ) {
+				long bits = cache & ( ( 1L << cacheBits ) - 1 );
+				if( bits != 0 ) {
+					int zeros = Long.numberOfLeadingZeros( bits ) - ( 64 - cacheBits );
+					cacheBits -= zeros + 1;
+					return value + zeros;
+				}
+				value += cacheBits;
+				cacheBits = 0;
+				fill();
+			}
+		}
+
+		private void fill() throws IOException {
+			if( pos >= end ) {
+				throw new EOFException( "Truncated frame." );
+			}
+			cache = ( cache << 8 ) | ( buf[ pos++ ] & 0xFF );
+			cacheBits += 8;
+		}
+	}
+
+	private static int blocksPerBuffer( int blockSamples ) {
+		int blocks = BufferPool.getBufferSamples() / blockSamples;
+		return blocks > 1 ? blocks : 1;
+	}
+
+	/* Return the size of the largest frame, in which every channel is verbatim. */
+	private static int maxFrameBytes( int blockSamples, int numChannels ) {
+		long bits = numChannels * ( 6 + 16L * blockSamples );
+		return ( int ) ( 4 + ( bits + 7 ) / 8 );
+	}
+
+	private static void invokeAll( List<Callable<Void>> tasks ) throws Exception {
+		if( tasks.size() == 1 ) {
+			tasks.get( 0 ).call();
+			return;
+		}
+		for( Future<Void> future : ForkJoinPool.commonPool().invokeAll( tasks ) ) {
+			try {
+				future.get();
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof Exception ) {
+					throw ( Exception ) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	private static void putInt( byte[] buf, int offset, int value ) {
+		buf[ offset ] = ( byte ) value;
+		buf[ offset + 1 ] = ( byte ) ( value >> 8 );
+		buf[ offset + 2 ] = ( byte ) ( value >> 16 );
+		buf[ offset + 3 ] = ( byte ) ( value >> 24 );
+	}
+
+	private static int getInt( byte[] buf, int offset ) {
+		return ( buf[ offset ] & 0xFF ) | ( ( buf[ offset + 1 ] & 0xFF ) << 8 )
+			| ( ( buf[ offset + 2 ] & 0xFF ) << 16 ) | ( buf[ offset + 3 ] << 24 );
+	}
+
+	private static void readFully( InputStream input, byte[] buf, int length ) throws IOException {
+		int offset = 0;
+		while( offset < length ) {
+			int count = input.read( buf, offset, length - offset );
+			if( count < 0 ) {
+				throw new EOFException( "Unexpected end of stream." );
+			}
+			offset += count;
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 2 && args.length != 3 ) {
+			System.err.println( "Lossless codec." );
+			System.err.println( "  Encode: java " + LosslessSampleData.class.getName() + " input.wav output.lsl [quantize]" );
+			System.err.println( "  Decode: java " + LosslessSampleData.class.getName() + " input.lsl output.wav" );
+			System.exit( 0 );
+		}
+		try( InputStream inputStream = new java.io.BufferedInputStream( new java.io.FileInputStream( args[ 0 ] ) ) ) {
+			try( OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 1 ] ) ) ) {
+				if( args[ 0 ].toLowerCase().endsWith( "wav" ) ) {
+					SampleData sampleData = new WavSampleData( inputStream );
+					if( args.length > 2 && "quantize".equals( args[ 2 ] ) ) {
+						sampleData = new QuantizedSampleData( sampleData );
+					}
+					encode( sampleData, outputStream );
+				} else {
+					WavSampleData.writeWav( new LosslessSampleData( inputStream ), outputStream );
+				}
+			}
+		}
+	}
+}
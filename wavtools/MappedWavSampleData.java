@@ -0,0 +1,148 @@
+
+package wavtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/* Memory-mapped WAV reader supporting random access and slicing without copying. */
+public class MappedWavSampleData implements SeekableSampleData {
+	private static final int MAX_MAP_BYTES = 1 << 30;
+
+	private MappedByteBuffer[] mappedBufs;
+	private int numChannels, sampleRate, bytesPerSample, segmentSamples;
+	private int startSample, numSamples, sampleOffset;
+
+	/* Map the data chunk of the specified WAV file. The file is closed before returning,
+	   the mapping remains valid until it is garbage-collected. */
+	public MappedWavSampleData( File file ) throws IOException {
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+			WavHeader header = new WavHeader( channel );
+			numChannels = header.getNumChannels();
+			sampleRate = header.getSampleRate();
+			bytesPerSample = header.getBytesPerFrame();
+			int width = bytesPerSample / numChannels;
+			if( header.getFormat() != WavHeader.FORMAT_PCM || header.getBitsPerSample() > 24
+				|| width * numChannels != bytesPerSample || width > 3 ) {
+				throw new IllegalArgumentException( "Unsupported sample format." );
+			}
+			long position = header.getDataOffset(), dataLength = header.getDataLength();
+			// Map the data in segments of whole frames, aligned to a multiple of 64k samples.
+			segmentSamples = ( MAX_MAP_BYTES / bytesPerSample ) & -( 1 << 16 );
+			long totalSamples = dataLength / bytesPerSample;
+			if( totalSamples > Integer.MAX_VALUE ) {
+				totalSamples = Integer.MAX_VALUE;
+			}
+			numSamples = ( int ) totalSamples;
+			mappedBufs = new MappedByteBuffer[ ( int ) ( ( totalSamples + segmentSamples - 1 ) / segmentSamples ) ];
+			for( int idx = 0; idx < mappedBufs.length; idx++ ) {
+				long offset = ( long ) idx * segmentSamples;
+				long length = totalSamples - offset;
+				if( length > segmentSamples ) {
+					length = segmentSamples;
+				}
+				mappedBufs[ idx ] = channel.map( FileChannel.MapMode.READ_ONLY, position + offset * bytesPerSample, length * bytesPerSample );
+				mappedBufs[ idx ].order( ByteOrder.LITTLE_ENDIAN );
+			}
+		}
+	}
+
+	private MappedWavSampleData( MappedWavSampleData parent, int offset, int length ) {
+		mappedBufs = parent.mappedBufs;
+		numChannels = parent.numChannels;
+		sampleRate = parent.sampleRate;
+		bytesPerSample = parent.bytesPerSample;
+		segmentSamples = parent.segmentSamples;
+		startSample = parent.startSample + offset;
+		numSamples = length;
+	}
+
+	/* Return a view of length samples starting at the specified offset, sharing the same mapping.
+	   The range is clamped to the bounds of this instance. A negative length selects the remainder. */
+	public MappedWavSampleData slice( int offset, int length ) {
+		if( offset < 0 ) {
+			offset = 0;
+		}
+		if( offset > numSamples ) {
+			offset = numSamples;
+		}
+		if( length < 0 || length > numSamples - offset ) {
+			length = numSamples - offset;
+		}
+		return new MappedWavSampleData( this, offset, length );
+	}
+
+	/* Set the position of the next sample to be read, relative to the start of this instance. */
+	public void seek( int sampleOffset ) {
+		if( sampleOffset < 0 || sampleOffset > numSamples ) {
+			throw new IllegalArgumentException( "Offset out of range: " + sampleOffset );
+		}
+		this.sampleOffset = sampleOffset;
+	}
+
+	/* Return the total number of samples in this instance. */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return numSamples - sampleOffset;
+	}
+
+	/* Convert at most count samples of audio data directly from the mapping into the specified buffer.
+	   Fewer than count samples may be returned at the boundary of a mapped segment. */
+	public int getSamples( short[] outputBuf, int offset, int count ) {
+		if( count > numSamples - sampleOffset ) {
+			count = numSamples - sampleOffset;
+		}
+		if( count <= 0 ) {
+			return 0;
+		}
+		int position = startSample + sampleOffset;
+		MappedByteBuffer inputBuf = mappedBufs[ position / segmentSamples ];
+		position = position % segmentSamples;
+		if( count > segmentSamples - position ) {
+			count = segmentSamples - position;
+		}
+		int inputIdx = position * bytesPerSample, outputIdx = offset * numChannels, outputEnd = ( offset + count ) * numChannels;
+		switch( bytesPerSample / numChannels ) {
+			case 1: // 8-bit unsigned.
+				while( outputIdx < outputEnd ) {
+					outputBuf[ outputIdx++ ] = ( short ) ( ( ( inputBuf.get( inputIdx++ ) & 0xFF ) - 128 ) << 8 );
+				}
+				break;
+			case 2: // 16-bit signed little-endian.
+				if( WavSampleData.BULK_PCM ) {
+					ShortBuffer inputShorts = inputBuf.duplicate().order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer();
+					inputShorts.position( inputIdx >> 1 );
+					inputShorts.get( outputBuf, outputIdx, outputEnd - outputIdx );
+					break;
+				}
+				while( outputIdx < outputEnd ) {
+					outputBuf[ outputIdx++ ] = inputBuf.getShort( inputIdx );
+					inputIdx += 2;
+				}
+				break;
+			case 3: // 24-bit signed little-endian.
+				while( outputIdx < outputEnd ) {
+					outputBuf[ outputIdx++ ] = inputBuf.getShort( inputIdx + 1 );
+					inputIdx += 3;
+				}
+				break;
+		}
+		sampleOffset += count;
+		return count;
+	}
+}
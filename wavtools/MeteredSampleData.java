@@ -0,0 +1,63 @@
+
+package wavtools;
+
+/*
+	Records the samples, calls and time of each call to the getSamples() method of its input,
+	in the StageMetrics of the specified name in MetricsRegistry. Metered stages of the same name
+	share their metrics. For example, the following reports the time spent in each stage:
+		SampleData source = MeteredSampleData.wrap( new WavSampleData( inputStream ), "read" );
+		SampleData dnr = MeteredSampleData.wrap( new NoiseReduction( source, 54 ), "dnr" );
+		WavSampleData.writeWav( MeteredSampleData.wrap( new QuantizedSampleData( dnr ), "quantize" ), outputStream );
+		System.out.print( MetricsRegistry.dump() );
+*/
+public class MeteredSampleData implements SampleData {
+	private SampleData input;
+	private StageMetrics metrics;
+
+	public MeteredSampleData( SampleData input, String name ) {
+		this.input = input;
+		metrics = MetricsRegistry.getMetrics( name );
+	}
+
+	/* Return a metered stage reading from the specified input, or the input itself if metering is disabled. */
+	public static SampleData wrap( SampleData input, String name ) {
+		return MetricsRegistry.isEnabled() ? new MeteredSampleData( input, name ) : input;
+	}
+
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getNumChannels() {
+		return input.getNumChannels();
+	}
+
+	public int getSampleRate() {
+		return input.getSampleRate();
+	}
+
+	public int getSamplesRemaining() {
+		return input.getSamplesRemaining();
+	}
+
+	public int getSamples( short[] buffer, int offset, int count ) throws Exception {
+		if( !MetricsRegistry.isEnabled() ) {
+			return input.getSamples( buffer, offset, count );
+		}
+		// Save the times of the enclosing call, and add the total time of this call to its nested time.
+		long[] frame = MetricsRegistry.frame();
+		long nestedNanos = frame[ 0 ], stallNanos = frame[ 1 ];
+		frame[ 0 ] = frame[ 1 ] = 0;
+		long start = System.nanoTime();
+		int length = 0;
+		try {
+			length = input.getSamples( buffer, offset, count );
+		} finally {
+			long totalNanos = System.nanoTime() - start;
+			metrics.record( length, totalNanos, totalNanos - frame[ 0 ] - frame[ 1 ], frame[ 1 ] );
+			frame[ 0 ] = nestedNanos + totalNanos;
+			frame[ 1 ] = stallNanos;
+		}
+		return length;
+	}
+}
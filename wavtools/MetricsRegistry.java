@@ -0,0 +1,134 @@
+
+package wavtools;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+	Registry of the StageMetrics recorded by MeteredSampleData, by stage name.
+	Metering is disabled by default, or enabled by the system property wavtools.metrics=true.
+	When disabled, MeteredSampleData.wrap() returns its input, and existing metered stages
+	only check the flag before calling their input.
+	Metrics may be printed with dump(), or exported as MBeans named wavtools:type=StageMetrics,name=stage.
+*/
+public final class MetricsRegistry {
+	private static volatile boolean enabled = Boolean.getBoolean( "wavtools.metrics" );
+
+	private static final Map<String, StageMetrics> METRICS = new LinkedHashMap<String, StageMetrics>();
+	private static boolean jmx;
+
+	/* The time spent in nested metered stages and stalled, for the current call on each thread. */
+	private static final ThreadLocal<long[]> FRAME = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[ 2 ];
+		}
+	};
+
+	private MetricsRegistry() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/* Enable or disable metering. Stages created while disabled are not metered. */
+	public static void setEnabled( boolean enabled ) {
+		MetricsRegistry.enabled = enabled;
+	}
+
+	/* Return the metrics for the named stage, creating them if necessary. */
+	public static StageMetrics getMetrics( String name ) {
+		synchronized( METRICS ) {
+			StageMetrics metrics = METRICS.get( name );
+			if( metrics == null ) {
+				metrics = new StageMetrics( name );
+				METRICS.put( name, metrics );
+				if( jmx ) {
+					register( metrics );
+				}
+			}
+			return metrics;
+		}
+	}
+
+	/* Return the metrics of all stages, in the order they were created. */
+	public static List<StageMetrics> getAllMetrics() {
+		synchronized( METRICS ) {
+			return new ArrayList<StageMetrics>( METRICS.values() );
+		}
+	}
+
+	/* Export the metrics of all current and future stages as MBeans of the platform MBean server. */
+	public static void enableJmx() {
+		synchronized( METRICS ) {
+			if( !jmx ) {
+				jmx = true;
+				for( StageMetrics metrics : METRICS.values() ) {
+					register( metrics );
+				}
+			}
+		}
+	}
+
+	/* Remove all metrics, and their MBeans. */
+	public static void clear() {
+		synchronized( METRICS ) {
+			if( jmx ) {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				for( StageMetrics metrics : METRICS.values() ) {
+					try {
+						server.unregisterMBean( objectName( metrics ) );
+					} catch( Exception e ) {
+						// Unregistered externally.
+					}
+				}
+			}
+			METRICS.clear();
+		}
+	}
+
+	/* Reset the counters of all stages. */
+	public static void reset() {
+		for( StageMetrics metrics : getAllMetrics() ) {
+			metrics.reset();
+		}
+	}
+
+	/* Return a table of the metrics of all stages. */
+	public static String dump() {
+		StringBuilder builder = new StringBuilder();
+		builder.append( String.format( "%-24s %12s %8s %10s %10s %10s %10s %10s%n",
+			"stage", "samples", "calls", "avg block", "self ms", "total ms", "stall ms", "Msamples/s" ) );
+		for( StageMetrics metrics : getAllMetrics() ) {
+			builder.append( metrics ).append( String.format( "%n" ) );
+		}
+		return builder.toString();
+	}
+
+	/* Return the nanoseconds spent in nested metered stages, and stalled, during the current call on this thread. */
+	static long[] frame() {
+		return FRAME.get();
+	}
+
+	/* Called by stages that wait for input from another thread, to exclude the time from the current metered stage. */
+	static void stalled( long nanos ) {
+		FRAME.get()[ 1 ] += nanos;
+	}
+
+	private static void register( StageMetrics metrics ) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean( metrics, objectName( metrics ) );
+		} catch( Exception e ) {
+			throw new IllegalStateException( "Unable to register MBean for " + metrics.getName(), e );
+		}
+	}
+
+	private static ObjectName objectName( StageMetrics metrics ) throws Exception {
+		return new ObjectName( "wavtools:type=StageMetrics,name=" + ObjectName.quote( metrics.getName() ) );
+	}
+}
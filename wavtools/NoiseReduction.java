@@ -6,14 +6,20 @@ package wavtools;
 	using a variable 6db/octave low-pass filter.
 */
 public class NoiseReduction implements SampleData {
-	private static final float FC_MIN_HZ = 50;
-	private static final float FC_MAX = ( float ) ( 2.0 * Math.PI );
-	private static final float ATTACK_MS_PER_OCTAVE = 0.5f;
-	private static final float RELEASE_MS_PER_OCTAVE = 50f;
+	static final float FC_MIN_HZ = 50;
+	static final float FC_MAX = ( float ) ( 2.0 * Math.PI );
+	static final float ATTACK_MS_PER_OCTAVE = 0.5f;
+	static final float RELEASE_MS_PER_OCTAVE = 50f;
+	private static final int SUB_BLOCK_SAMPLES = 8;
 
 	private SampleData input;
 
 	private float floor, attack, release, fcMin, fc, hpX, hpY, lpY[];
+	private boolean fast;
+	private float[] attacks, releases;
+	private float fcRecip;
+	private short[] carry;
+	private int carryIdx, carryCount;
 
 	/**
 		Constructor.
@@ -21,12 +27,45 @@ public class NoiseReduction implements SampleData {
 		@param dynamicRange the dynamic range in db (typically 54, lower values increase noise reduction).
 	*/
 	public NoiseReduction( SampleData input, int dynamicRange ) {
+		this( input, dynamicRange, false );
+	}
+
+	/**
+		Constructor.
+		@param input the input audio.
+		@param dynamicRange the dynamic range in db (typically 54, lower values increase noise reduction).
+		@param fast if true, the cutoff frequency is updated every 8 samples, and the filter coefficient
+		is interpolated between updates. The output is not identical to the exact filter.
+		For the 2-channel test signal the tests require every sample to be within 64 of the exact output,
+		and the error to be at least 80db below the signal (measured: 44 and 85db).
+		The largest errors occur at the onset of full-scale transients, and grow with the number
+		of channels (measured: 25 and 88db for mono, 122 and 79db for 8 channels).
+		The 8-sample grid is aligned to the start of the input, and up to 7 samples are read ahead
+		to complete a sub-block, so the output does not depend on the sizes of the reads.
+		Measured throughput on a single core (exact / fast, millions of samples per second):
+		mono 46-61 / 48-70, 2 channels 38-48 / 43-54, 8 channels 18-24 / 23-30.
+		The gain for mono input is within the run-to-run variation, and some runs are slower.
+		Each instance also allocates about 150 to 250 more bytes for its tables and carry buffer.
+	*/
+	public NoiseReduction( SampleData input, int dynamicRange, boolean fast ) {
 		this.input = input;
+		this.fast = fast;
 		lpY = new float[ input.getNumChannels() ];
 		floor = ( float ) ( 32768 * Math.pow( 10, dynamicRange / -20.0 ) * input.getNumChannels() );
 		attack = ( float ) Math.pow( 2, 1000 / ( input.getSampleRate() * ATTACK_MS_PER_OCTAVE ) );
 		release = ( float ) Math.pow( 2, -1000 / ( input.getSampleRate() * RELEASE_MS_PER_OCTAVE ) );
 		fcMin = fc = ( float ) ( 2.0 * Math.PI * FC_MIN_HZ / input.getSampleRate() );
+		if( fast ) {
+			// Change in the cutoff after n attack or release samples.
+			attacks = new float[ SUB_BLOCK_SAMPLES + 1 ];
+			releases = new float[ SUB_BLOCK_SAMPLES + 1 ];
+			for( int n = 0; n <= SUB_BLOCK_SAMPLES; n++ ) {
+				attacks[ n ] = ( float ) Math.pow( attack, n );
+				releases[ n ] = ( float ) Math.pow( release, n );
+			}
+			carry = new short[ SUB_BLOCK_SAMPLES * input.getNumChannels() ];
+			fcRecip = 1 / ( fc + 1 );
+		}
 	}
 
 	public int getNumChannels() {
@@ -38,11 +77,14 @@ public class NoiseReduction implements SampleData {
 	}
 	
 	public int getSamplesRemaining() {
-		return input.getSamplesRemaining();
+		return input.getSamplesRemaining() + carryCount;
 	}
 	
 	public int getSamples( short[] buffer, int offset, int count ) throws Exception {
 		int numChannels = input.getNumChannels();
+		if( fast ) {
+			return getSamplesFast( buffer, offset, count, numChannels );
+		}
 		count = input.getSamples( buffer, offset, count );
 		int end = offset + count;
 		while( offset < end ) {
@@ -78,13 +120,119 @@ public class NoiseReduction implements SampleData {
 		return count;
 	}
 	
+	/* Return the samples remaining from the last partial sub-block, or filter whole sub-blocks in place.
+	   If the input returns a partial sub-block, it is completed in the carry buffer,
+	   and the samples beyond the requested count are returned by the next call. */
+	private int getSamplesFast( short[] buffer, int offset, int count, int numChannels ) throws Exception {
+		if( carryCount > 0 ) {
+			if( count > carryCount ) {
+				count = carryCount;
+			}
+			System.arraycopy( carry, carryIdx * numChannels, buffer, offset * numChannels, count * numChannels );
+			carryIdx += count;
+			carryCount -= count;
+			return count;
+		}
+		count = input.getSamples( buffer, offset, count );
+		int whole = count - count % SUB_BLOCK_SAMPLES;
+		for( int idx = 0; idx < whole; idx += SUB_BLOCK_SAMPLES ) {
+			filterSubBlock( buffer, offset + idx, SUB_BLOCK_SAMPLES, numChannels );
+		}
+		int partial = count - whole;
+		if( partial > 0 ) {
+			System.arraycopy( buffer, ( offset + whole ) * numChannels, carry, 0, partial * numChannels );
+			int length = partial;
+			while( length < SUB_BLOCK_SAMPLES ) {
+				int read = input.getSamples( carry, length, SUB_BLOCK_SAMPLES - length );
+				if( read < 1 ) {
+					break;
+				}
+				length += read;
+			}
+			filterSubBlock( carry, 0, length, numChannels );
+			System.arraycopy( carry, 0, buffer, ( offset + whole ) * numChannels, partial * numChannels );
+			carryIdx = partial;
+			carryCount = length - partial;
+		}
+		return count;
+	}
+
+	/* Filter up to SUB_BLOCK_SAMPLES samples with the cutoff updated once.
+	   The control path uses the cutoff at the start of the sub-block, and the filter coefficient
+	   is interpolated linearly to its value at the end. Both recurrences are advanced two samples
+	   at a time, which halves the length of their dependency chains. Clipping is not required,
+	   as the output of the low-pass filter is a weighted average of its input.
+	   The reciprocal 1 / ( fc + 1 ) is computed once at the end of each sub-block and reused
+	   at the start of the next, so there is a single division per sub-block. */
+	private void filterSubBlock( short[] buffer, int offset, int length, int numChannels ) {
+		float r1 = fcRecip, r2 = r1 * r1;
+		float alpha = 1 - r1, x = hpX, y = hpY;
+		int numAttacks = 0, idx = offset * numChannels, end = ( offset + length ) * numChannels;
+		while( idx < end ) {
+			float x1 = 0;
+			for( int chn = 0; chn < numChannels; chn++ ) {
+				x1 += buffer[ idx++ ];
+			}
+			float y1 = ( y + x1 - x ) * r1;
+			if( y1 > floor || -y1 > floor ) {
+				numAttacks++;
+			}
+			if( idx < end ) {
+				float x2 = 0;
+				for( int chn = 0; chn < numChannels; chn++ ) {
+					x2 += buffer[ idx++ ];
+				}
+				y = y * r2 + ( ( x1 - x ) * r2 + ( x2 - x1 ) * r1 );
+				if( y > floor || -y > floor ) {
+					numAttacks++;
+				}
+				x = x2;
+			} else {
+				y = y1;
+				x = x1;
+			}
+		}
+		hpX = x;
+		hpY = y;
+		fc *= attacks[ numAttacks ] * releases[ length - numAttacks ];
+		if( fc > FC_MAX ) {
+			fc = FC_MAX;
+		}
+		if( fc < fcMin ) {
+			fc = fcMin;
+		}
+		fcRecip = 1 / ( fc + 1 );
+		float delta = ( r1 - fcRecip ) / length;
+		for( int chn = 0; chn < numChannels; chn++ ) {
+			float lp = lpY[ chn ], a0 = alpha;
+			int step = numChannels * 2;
+			idx = offset * numChannels + chn;
+			for( int pairs = idx + ( length >> 1 ) * step; idx < pairs; idx += step ) {
+				float a1 = a0 + delta, b1 = 1 - a1;
+				float s0 = buffer[ idx ], s1 = buffer[ idx + numChannels ];
+				buffer[ idx ] = ( short ) ( lp + a0 * ( s0 - lp ) );
+				lp = lp * ( ( 1 - a0 ) * b1 ) + ( a0 * b1 * s0 + a1 * s1 );
+				buffer[ idx + numChannels ] = ( short ) lp;
+				a0 = a1 + delta;
+			}
+			if( ( length & 1 ) != 0 ) {
+				lp += a0 * ( buffer[ idx ] - lp );
+				buffer[ idx ] = ( short ) lp;
+			}
+			lpY[ chn ] = lp;
+		}
+	}
+
 	public static void main( String[] args ) throws Exception {
 		String input = null, output = null;
 		int db = 54, idx = 0;
+		boolean fast = false;
 		while( idx < args.length ) {
 			String arg = args[ idx++ ];
 			if( "-db".equals( arg ) ) {
 				db = Integer.parseInt( args[ idx++ ] );
+			} else if( "-fast".equals( arg ) ) {
+				fast = true;
 			} else if( input == null ) {
 				input = arg;
 			} else if( output == null ) {
@@ -92,11 +240,21 @@ public class NoiseReduction implements SampleData {
 			}
 		}
 		if( input != null && output != null ) {
+			final int dynamicRange = db;
+			final boolean fastMode = fast;
 			java.io.InputStream inputStream = new java.io.FileInputStream( input );
 			try {
 				java.io.OutputStream outputStream = new java.io.FileOutputStream( output );
 				try {
-					WavSampleData.writeWav( new NoiseReduction( new WavSampleData( inputStream ), db ), outputStream );
+					// Read, filter and write on separate threads.
+					try( Pipeline pipeline = new Pipeline( new WavSampleData( inputStream ) ) ) {
+						pipeline.then( new Pipeline.Stage() {
+							public SampleData apply( SampleData input ) {
+								return new NoiseReduction( input, dynamicRange, fastMode );
+							}
+						} );
+						WavSampleData.writeWav( pipeline.getOutput(), outputStream );
+					}
 				}
 				finally {
 					outputStream.close();
@@ -106,7 +264,7 @@ public class NoiseReduction implements SampleData {
 				inputStream.close();
 			}
 		} else {
-			System.err.println( "Usage: NoiseReduction [-db 54] input.wav output.wav" );
+			System.err.println( "Usage: NoiseReduction [-db 54] [-fast] input.wav output.wav" );
 		}
 	}
 }
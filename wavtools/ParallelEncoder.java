@@ -0,0 +1,156 @@
+
+package wavtools;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+	Parallel encoder of large WAV files for the 8-bit and compressed codecs, which have little state between samples.
+	The input is mapped and divided into segments of whole buffers, which are encoded on the common thread pool
+	and written at their offsets in the output file. The output has the 4-byte header written by the main()
+	of each codec, and is identical to the output of the serial encoder reading a MappedWavSampleData
+	of the same file, provided the buffer size is a power of two of at most 64k samples ( the default ).
+	EightBitSampleData resets its dither and noise shaping at each buffer, so segments need no other state.
+	CompressedSampleData carries the decoded value of each channel from one sample to the next,
+	so each segment is preceded by WARMUP_SAMPLES samples which are encoded from a zero state and discarded.
+	The state almost always converges to that of the serial encoder within the warm-up. When all segments
+	have been encoded, the initial state of each is checked in order against the final state of the previous one,
+	and in the rare case that they differ the segment is encoded again, so the output does not depend on the segments.
+*/
+public class ParallelEncoder {
+	public static final int EIGHT_BIT = 0, COMPRESSED = 1;
+
+	private static final int HEADER_BYTES = 4;
+	private static final int WARMUP_SAMPLES = 8192;
+	private static final int MIN_SEGMENT_SAMPLES = 1 << 18;
+
+	private static class Segment {
+		private int offset, length;
+		private int[] initialState, finalState;
+	}
+
+	private ParallelEncoder() {
+	}
+
+	/* Encode the specified WAV file into the output file using the specified codec. */
+	public static void encode( File wavFile, File outputFile, int codec ) throws Exception {
+		encode( wavFile, outputFile, codec, 0, WARMUP_SAMPLES );
+	}
+
+	/* Encode using segments of at least segmentSamples samples ( rounded up to whole buffers ),
+	   or about four segments for each thread if segmentSamples is 0. Return the number of segments encoded again. */
+	static int encode( File wavFile, File outputFile, final int codec, int segmentSamples, final int warmupSamples ) throws Exception {
+		if( codec != EIGHT_BIT && codec != COMPRESSED ) {
+			throw new IllegalArgumentException( "Unsupported codec: " + codec );
+		}
+		final MappedWavSampleData input = new MappedWavSampleData( wavFile );
+		int numSamples = input.getNumSamples(), bufSamples = BufferPool.getBufferSamples();
+		if( segmentSamples < 1 ) {
+			segmentSamples = Math.max( numSamples / ( ForkJoinPool.getCommonPoolParallelism() * 4 ), MIN_SEGMENT_SAMPLES );
+		}
+		segmentSamples = ( int ) Math.min( ( ( long ) segmentSamples + bufSamples - 1 ) / bufSamples * bufSamples, Integer.MAX_VALUE / bufSamples * bufSamples );
+		try( final FileChannel output = FileChannel.open( outputFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+			int sampleRate = input.getSampleRate();
+			write( output, 0, new byte[] { ( byte ) input.getNumChannels(),
+				( byte ) ( sampleRate >> 16 ), ( byte ) ( sampleRate >> 8 ), ( byte ) sampleRate }, HEADER_BYTES );
+			List<Segment> segments = new ArrayList<Segment>();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for( long offset = 0; offset < numSamples; offset += segmentSamples ) {
+				final Segment segment = new Segment();
+				segment.offset = ( int ) offset;
+				segment.length = ( int ) Math.min( segmentSamples, numSamples - offset );
+				segments.add( segment );
+				tasks.add( new Callable<Void>() {
+					public Void call() throws Exception {
+						int warmup = codec == COMPRESSED ? Math.min( warmupSamples, segment.offset ) : 0;
+						int[] state = new int[ input.getNumChannels() ];
+						encode( input.slice( segment.offset - warmup, warmup ), codec, state, null, 0 );
+						segment.initialState = state.clone();
+						encode( input.slice( segment.offset, segment.length ), codec, state, output, segment.offset );
+						segment.finalState = state;
+						return null;
+					}
+				} );
+			}
+			invokeAll( tasks );
+			int reencoded = 0;
+			for( int idx = 1; idx < segments.size(); idx++ ) {
+				Segment segment = segments.get( idx ), previous = segments.get( idx - 1 );
+				if( !java.util.Arrays.equals( segment.initialState, previous.finalState ) ) {
+					int[] state = previous.finalState.clone();
+					encode( input.slice( segment.offset, segment.length ), codec, state, output, segment.offset );
+					segment.finalState = state;
+					reencoded++;
+				}
+			}
+			return reencoded;
+		}
+	}
+
+	/* Encode the samples of the input, with the specified initial state of each channel, which is updated.
+	   The output is written to the output file from the specified sample offset, or discarded if output is null. */
+	private static void encode( MappedWavSampleData input, int codec, int[] state, FileChannel output, int sampleOffset ) throws Exception {
+		int numChannels = input.getNumChannels(), bufSamples = BufferPool.getBufferSamples();
+		long position = HEADER_BYTES + ( long ) sampleOffset * numChannels;
+		short[] inputBuf = BufferPool.getShorts( bufSamples * numChannels );
+		byte[] outputBuf = BufferPool.getBytes( bufSamples * numChannels );
+		try {
+			while( input.getSamplesRemaining() > 0 ) {
+				int count = input.getSamples( inputBuf, 0, bufSamples );
+				for( int channel = 0; channel < numChannels; channel++ ) {
+					if( codec == EIGHT_BIT ) {
+						EightBitSampleData.encodeChannel( inputBuf, outputBuf, channel, count * numChannels + channel, numChannels );
+					} else {
+						state[ channel ] = CompressedSampleData.encodeChannel( inputBuf, outputBuf, channel, count * numChannels + channel, numChannels, state[ channel ], true );
+					}
+				}
+				if( output != null ) {
+					write( output, position, outputBuf, count * numChannels );
+				}
+				position += count * numChannels;
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( outputBuf );
+		}
+	}
+
+	private static void write( FileChannel output, long position, byte[] buffer, int length ) throws Exception {
+		ByteBuffer byteBuffer = ByteBuffer.wrap( buffer, 0, length );
+		while( byteBuffer.hasRemaining() ) {
+			position += output.write( byteBuffer, position );
+		}
+	}
+
+	private static void invokeAll( List<Callable<Void>> tasks ) throws Exception {
+		for( Future<Void> future : ForkJoinPool.commonPool().invokeAll( tasks ) ) {
+			try {
+				future.get();
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof Exception ) {
+					throw ( Exception ) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 3 || ( !"eightbit".equals( args[ 2 ] ) && !"compressed".equals( args[ 2 ] ) ) ) {
+			System.err.println( "Parallel encoder." );
+			System.err.println( "Usage: java " + ParallelEncoder.class.getName() + " input.wav output.pcm eightbit|compressed" );
+			System.err.println( "  The output is decoded by " + EightBitSampleData.class.getName() + " or " + CompressedSampleData.class.getName() + "." );
+			System.exit( 0 );
+		}
+		encode( new File( args[ 0 ] ), new File( args[ 1 ] ), "eightbit".equals( args[ 2 ] ) ? EIGHT_BIT : COMPRESSED );
+	}
+}
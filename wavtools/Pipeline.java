@@ -0,0 +1,65 @@
+
+package wavtools;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	Builds a chain of SampleData stages, each running on its own thread.
+	For example, the following reads, filters and writes concurrently:
+		Pipeline pipeline = new Pipeline( new WavSampleData( inputStream ) );
+		pipeline.then( new Pipeline.Stage() {
+			public SampleData apply( SampleData input ) {
+				return new NoiseReduction( input, 54 );
+			}
+		} );
+		WavSampleData.writeWav( pipeline.getOutput(), outputStream );
+*/
+public class Pipeline implements Closeable {
+	/* Creates a stage that reads from the specified input. */
+	public interface Stage {
+		public SampleData apply( SampleData input ) throws Exception;
+	}
+
+	private List<PipelinedSampleData> stages = new ArrayList<PipelinedSampleData>();
+	private SampleData output;
+	private int blockSamples, numBlocks;
+
+	public Pipeline( SampleData source ) {
+		this( source, PipelinedSampleData.DEFAULT_BLOCK_SAMPLES, PipelinedSampleData.DEFAULT_NUM_BLOCKS );
+	}
+
+	/* Start a pipeline reading from the specified source on its own thread,
+	   with numBlocks buffers of blockSamples samples between each stage. */
+	public Pipeline( SampleData source, int blockSamples, int numBlocks ) {
+		this.blockSamples = blockSamples;
+		this.numBlocks = numBlocks;
+		output = pipelined( source );
+	}
+
+	/* Append a stage that runs on its own thread. */
+	public Pipeline then( Stage stage ) throws Exception {
+		output = pipelined( stage.apply( output ) );
+		return this;
+	}
+
+	/* Return the output of the final stage, to be consumed on the calling thread. */
+	public SampleData getOutput() {
+		return output;
+	}
+
+	/* Stop all stages. */
+	public void close() {
+		for( PipelinedSampleData stage : stages ) {
+			stage.close();
+		}
+	}
+
+	/* Each stage is metered with the name of its class if metering is enabled. */
+	private SampleData pipelined( SampleData input ) {
+		PipelinedSampleData stage = new PipelinedSampleData( MeteredSampleData.wrap( input, input.getClass().getSimpleName() ), blockSamples, numBlocks );
+		stages.add( stage );
+		return stage;
+	}
+}
@@ -0,0 +1,141 @@
+
+package wavtools;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+
+/*
+	Runs a SampleData stage on its own thread, reading ahead of the consumer.
+	Blocks of samples are passed to the consumer through a bounded ring of
+	reusable buffers, so the input stage runs concurrently with the stages
+	that consume it, and at most numBlocks blocks are buffered at any time.
+*/
+public class PipelinedSampleData implements SampleData, Closeable {
+	public static final int DEFAULT_BLOCK_SAMPLES = 1 << 14, DEFAULT_NUM_BLOCKS = 4;
+
+	private static int threadCount;
+
+	private static class Block {
+		short[] buffer;
+		int count;
+		boolean end;
+		Throwable error;
+	}
+
+	private BlockingQueue<Block> free, full;
+	private Thread thread;
+	private Block current;
+	private int numChannels, sampleRate, samplesRemaining, blockIdx;
+
+	public PipelinedSampleData( SampleData input ) {
+		this( input, DEFAULT_BLOCK_SAMPLES, DEFAULT_NUM_BLOCKS );
+	}
+
+	/* Start reading the input on a new thread, in blocks of at most blockSamples samples. */
+	public PipelinedSampleData( final SampleData input, final int blockSamples, int numBlocks ) {
+		if( blockSamples < 1 || numBlocks < 1 ) {
+			throw new IllegalArgumentException( "Invalid block parameters." );
+		}
+		numChannels = input.getNumChannels();
+		sampleRate = input.getSampleRate();
+		samplesRemaining = input.getSamplesRemaining();
+		free = new ArrayBlockingQueue<Block>( numBlocks );
+		full = new ArrayBlockingQueue<Block>( numBlocks );
+		for( int idx = 0; idx < numBlocks; idx++ ) {
+			Block block = new Block();
+			block.buffer = new short[ blockSamples * numChannels ];
+			free.add( block );
+		}
+		thread = new Thread( new Runnable() {
+			public void run() {
+				try {
+					while( true ) {
+						Block block = free.take();
+						try {
+							block.count = input.getSamplesRemaining() > 0 ? input.getSamples( block.buffer, 0, blockSamples ) : 0;
+						} catch( Throwable e ) {
+							// Errors are also passed on, as the consumer would otherwise wait forever.
+							block.error = e;
+						}
+						block.end = block.error != null || block.count < 1;
+						full.put( block );
+						if( block.end ) {
+							return;
+						}
+					}
+				} catch( InterruptedException e ) {
+					// Closed.
+				}
+			}
+		}, "PipelinedSampleData-" + nextThreadId() );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	private static synchronized int nextThreadId() {
+		return threadCount++;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return samplesRemaining;
+	}
+
+	/* Copy at most count samples from the current block, waiting for the input thread if necessary.
+	   Reads do not cross block boundaries, so stages that analyse fixed-size chunks of their input,
+	   such as QuantizedSampleData, should use a block size that is a multiple of the chunk size. */
+	public int getSamples( short[] outputBuf, int offset, int count ) throws Exception {
+		if( count > samplesRemaining ) {
+			count = samplesRemaining;
+		}
+		if( count < 1 ) {
+			return 0;
+		}
+		if( current == null ) {
+			if( MetricsRegistry.isEnabled() ) {
+				long start = System.nanoTime();
+				current = full.take();
+				MetricsRegistry.stalled( System.nanoTime() - start );
+			} else {
+				current = full.take();
+			}
+			blockIdx = 0;
+		}
+		if( current.error instanceof Exception ) {
+			throw ( Exception ) current.error;
+		}
+		if( current.error != null ) {
+			throw new ExecutionException( current.error );
+		}
+		if( current.end ) {
+			// The input ended early.
+			samplesRemaining = 0;
+			return 0;
+		}
+		if( count > current.count - blockIdx ) {
+			count = current.count - blockIdx;
+		}
+		System.arraycopy( current.buffer, blockIdx * numChannels, outputBuf, offset * numChannels, count * numChannels );
+		blockIdx += count;
+		if( blockIdx >= current.count ) {
+			free.add( current );
+			current = null;
+		}
+		samplesRemaining -= count;
+		return count;
+	}
+
+	/* Stop the input thread. */
+	public void close() {
+		thread.interrupt();
+	}
+}
@@ -16,15 +16,25 @@ public class QuantizedSampleData implements SampleData {
 
 	private SampleData input;
 	private int precision;
-	private int[] unpredictability;
+	private boolean largeBlocks;
+	private int[] unpredictability, chunkLengths = new int[ 0 ];
 
 	/* Precision specified in bits per sample in the range 3 to 15. */
 	public QuantizedSampleData( SampleData sampleData, int precision ) {
+		this( sampleData, precision, false );
+	}
+
+	/* If largeBlocks is true, each call reads as many samples as requested from the input,
+	   rather than at most 64, and the 64-sample chunks are analysed from the block.
+	   The output is identical provided the input returns the same samples regardless of the
+	   number requested, and only returns fewer than requested at the same stream positions. */
+	public QuantizedSampleData( SampleData sampleData, int precision, boolean largeBlocks ) {
 		if( precision < 3 || precision > 15 ) {
 			throw new IllegalArgumentException( "Invalid precision parameter." );
 		}
 		input = sampleData;
 		this.precision = precision;
+		this.largeBlocks = largeBlocks;
 		unpredictability = new int[ getNumChannels() ];
 	}
 
@@ -48,50 +58,90 @@ public class QuantizedSampleData implements SampleData {
 		if( input.getSamplesRemaining() < count ) {
 			count = input.getSamplesRemaining();
 		}
-		int end = offset + count;
-		while( offset < end ) {
-			/* Quantize chunks of at most 64 samples. */
-			int samples = input.getSamples( outputBuf, offset, 64 );
-			for( int channel = 0, channels = input.getNumChannels(); channel < channels; channel++ ) {
-				/* Estimate the unpredictability of the signal. */
-				int up = 0;
-				for( int idx = offset + 1, endIdx = offset + samples; idx < endIdx; idx++ ) {
-					int da = outputBuf[ idx * channels + channel ] - outputBuf[ ( idx - 1 ) * channels + channel ];
-					if( da < 0 ) {
-						da = -da;
-					}
-					if( da > up ) {
-						up = da;
-					}
-				}
-				/* Use the minimum unpredictability of the current and previous chunk. */
-				int prev = unpredictability[ channel ];
-				unpredictability[ channel ] = up;
-				if( prev < up ) {
-					up = prev;
-				}
-				/* Determine the number of bits to discard. */
-				int bits = -precision;
-				while( up > 0 ) {
-					bits++;
-					up >>= 1;
+		/* Read chunks of at most 64 samples, recording the length of each. */
+		int numChunks = 0, length = 0;
+		if( chunkLengths.length < count / 64 + 1 ) {
+			chunkLengths = new int[ count / 64 + 1 ];
+		}
+		while( length < count ) {
+			int samples = count - length;
+			if( samples > 64 && !largeBlocks ) {
+				samples = 64;
+			}
+			samples = input.getSamples( outputBuf, offset + length, samples );
+			if( samples < 1 ) {
+				break;
+			}
+			/* Divide the samples read into chunks, ending a chunk wherever the input returned fewer samples than requested. */
+			while( samples > 0 ) {
+				if( numChunks >= chunkLengths.length ) {
+					chunkLengths = java.util.Arrays.copyOf( chunkLengths, numChunks * 2 );
 				}
-				if( bits > 0 ) {
-					/* Quantize and round. */
-					for( int idx = offset, endIdx = offset + samples; idx < endIdx; idx++ ) {
-						int amp = ( outputBuf[ idx * channels + channel ] + 32768 ) >> ( bits - 1 );
-						amp = ( amp >> 1 ) + ( amp & 1 );
-						amp = ( amp << bits ) - 32768;
-						if( amp > 32767 ) {
-							amp = 32767;
-						}
-						outputBuf[ idx * channels + channel ] = ( short ) amp;
+				int chunk = samples < 64 ? samples : 64;
+				chunkLengths[ numChunks++ ] = chunk;
+				length += chunk;
+				samples -= chunk;
+			}
+		}
+		final int chunks = numChunks;
+		int numChannels = input.getNumChannels();
+		short[][] staging = null;
+		if( ChannelExecutor.isParallel( numChannels ) ) {
+			staging = BufferPool.getShorts( numChannels, length );
+		}
+		try {
+			ChannelExecutor.processChannels( outputBuf, offset, length, numChannels, staging, new ChannelExecutor.ChannelKernel() {
+				public void process( short[] buffer, int start, int end, int stride, int channel ) {
+					for( int chunk = 0; chunk < chunks; chunk++ ) {
+						int chunkEnd = start + chunkLengths[ chunk ] * stride;
+						quantize( buffer, start, chunkEnd, stride, channel );
+						start = chunkEnd;
 					}
 				}
+			} );
+		} finally {
+			BufferPool.release( staging );
+		}
+		return length;
+	}
+
+	/* Quantize one chunk of a single channel. */
+	private void quantize( short[] buffer, int start, int end, int stride, int channel ) {
+		/* Estimate the unpredictability of the signal. */
+		int up = 0;
+		for( int idx = start + stride; idx < end; idx += stride ) {
+			int da = buffer[ idx ] - buffer[ idx - stride ];
+			if( da < 0 ) {
+				da = -da;
+			}
+			if( da > up ) {
+				up = da;
+			}
+		}
+		/* Use the minimum unpredictability of the current and previous chunk. */
+		int prev = unpredictability[ channel ];
+		unpredictability[ channel ] = up;
+		if( prev < up ) {
+			up = prev;
+		}
+		/* Determine the number of bits to discard. */
+		int bits = -precision;
+		while( up > 0 ) {
+			bits++;
+			up >>= 1;
+		}
+		if( bits > 0 ) {
+			/* Quantize and round. */
+			for( int idx = start; idx < end; idx += stride ) {
+				int amp = ( buffer[ idx ] + 32768 ) >> ( bits - 1 );
+				amp = ( amp >> 1 ) + ( amp & 1 );
+				amp = ( amp << bits ) - 32768;
+				if( amp > 32767 ) {
+					amp = 32767;
+				}
+				buffer[ idx ] = ( short ) amp;
 			}
-			offset += samples;
 		}
-		return count;
 	}
 
 	public static void main( String[] args ) throws Exception {
@@ -0,0 +1,240 @@
+
+package wavtools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+	Sample rate converter using a polyphase Kaiser-windowed sinc filter.
+	The position of each output sample is tracked exactly with an integer accumulator,
+	so there is no drift over long streams. When the ratio of the sample rates has a small
+	denominator, the coefficients are tabulated for each of the phases that occur.
+	Otherwise they are tabulated for a fixed number of phases between input samples,
+	and interpolated linearly between adjacent phases.
+	The filter is centred on each output sample, so the output is aligned with the input
+	and has ceil( inputSamples * outputRate / inputRate ) samples.
+*/
+public class ResampledSampleData implements SampleData {
+	public static final int QUALITY_LOW = 0, QUALITY_MEDIUM = 1, QUALITY_HIGH = 2;
+
+	/* Zero-crossings of the sinc function on each side, phases per input sample, Kaiser beta,
+	   and passband as a proportion of the lower Nyquist frequency, for each quality. */
+	private static final int[] ZERO_CROSSINGS = { 8, 16, 32 };
+	private static final int[] PHASES = { 128, 256, 512 };
+	private static final double[] BETA = { 5.0, 7.0, 9.0 };
+	private static final double[] PASSBAND = { 0.85, 0.91, 0.95 };
+
+	private static final int BUF_SAMPLES = 1 << 12;
+	private static final int MAX_EXACT_PHASES = 1024;
+
+	private static final Map<String, float[]> TABLES = new HashMap<String, float[]>();
+
+	private SampleData input;
+	private int numChannels, outputRate, inputStep, outputStep, numPhases, halfTaps, numTaps;
+	private float[] table, interpolated;
+	private short[] history;
+	private int historyFrames, phaseAccumulator;
+	private long historyStart, inputPosition, inputRead, outputPosition;
+
+	public ResampledSampleData( SampleData input, int outputRate ) {
+		this( input, outputRate, QUALITY_MEDIUM );
+	}
+
+	/* Resample the specified input to outputRate, with quality QUALITY_LOW, QUALITY_MEDIUM or QUALITY_HIGH. */
+	public ResampledSampleData( SampleData input, int outputRate, int quality ) {
+		if( outputRate < 1 || input.getSampleRate() < 1 ) {
+			throw new IllegalArgumentException( "Invalid sample rate." );
+		}
+		if( quality < QUALITY_LOW || quality > QUALITY_HIGH ) {
+			throw new IllegalArgumentException( "Invalid quality." );
+		}
+		this.input = input;
+		this.outputRate = outputRate;
+		numChannels = input.getNumChannels();
+		int gcd = gcd( input.getSampleRate(), outputRate );
+		inputStep = input.getSampleRate() / gcd;
+		outputStep = outputRate / gcd;
+		double cutoff = inputStep > outputStep ? ( double ) outputStep / inputStep : 1;
+		halfTaps = ( int ) Math.ceil( ZERO_CROSSINGS[ quality ] / cutoff );
+		numTaps = halfTaps * 2;
+		numPhases = outputStep <= MAX_EXACT_PHASES ? outputStep : PHASES[ quality ];
+		table = table( quality, cutoff, halfTaps, numPhases );
+		interpolated = new float[ numTaps ];
+		// The history initially contains the silence preceding the first input sample.
+		history = new short[ ( numTaps + BUF_SAMPLES ) * numChannels ];
+		historyStart = 1 - halfTaps;
+		historyFrames = halfTaps - 1;
+	}
+
+	private static int gcd( int a, int b ) {
+		while( b != 0 ) {
+			int c = a % b;
+			a = b;
+			b = c;
+		}
+		return a;
+	}
+
+	/* Return the filter table for the specified parameters, computing it if necessary.
+	   Row p contains the coefficients for a fractional position of p / numPhases,
+	   with an additional row for interpolating the final phase. */
+	private static float[] table( int quality, double cutoff, int halfTaps, int numPhases ) {
+		String key = quality + ":" + cutoff + ":" + numPhases;
+		synchronized( TABLES ) {
+			float[] table = TABLES.get( key );
+			if( table == null ) {
+				int numTaps = halfTaps * 2;
+				double fc = cutoff * PASSBAND[ quality ];
+				double i0Beta = besselI0( BETA[ quality ] );
+				table = new float[ ( numPhases + 1 ) * numTaps ];
+				double[] row = new double[ numTaps ];
+				for( int phase = 0; phase <= numPhases; phase++ ) {
+					double sum = 0;
+					for( int tap = 0; tap < numTaps; tap++ ) {
+						double x = ( double ) phase / numPhases + halfTaps - 1 - tap;
+						double w = x / halfTaps;
+						double h = 0;
+						if( w > -1 && w < 1 ) {
+							double sinc = x == 0 ? 1 : Math.sin( Math.PI * fc * x ) / ( Math.PI * fc * x );
+							h = fc * sinc * besselI0( BETA[ quality ] * Math.sqrt( 1 - w * w ) ) / i0Beta;
+						}
+						row[ tap ] = h;
+						sum += h;
+					}
+					// Normalize each phase for unity gain at DC.
+					for( int tap = 0; tap < numTaps; tap++ ) {
+						table[ phase * numTaps + tap ] = ( float ) ( row[ tap ] / sum );
+					}
+				}
+				TABLES.put( key, table );
+			}
+			return table;
+		}
+	}
+
+	/* Zeroth-order modified Bessel function of the first kind. */
+	private static double besselI0( double x ) {
+		double sum = 1, term = 1;
+		for( int k = 1; term > sum * 1e-12; k++ ) {
+			term *= ( x / ( 2 * k ) ) * ( x / ( 2 * k ) );
+			sum += term;
+		}
+		return sum;
+	}
+
+	/* Return the number of input samples that must be read beyond the position of an output sample before it can be produced. */
+	public int getLatency() {
+		return halfTaps;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return outputRate;
+	}
+
+	public int getSamplesRemaining() {
+		long inputLength = inputRead + input.getSamplesRemaining();
+		long remaining = ( inputLength * outputStep + inputStep - 1 ) / inputStep - outputPosition;
+		return ( int ) ( remaining < Integer.MAX_VALUE ? remaining : Integer.MAX_VALUE );
+	}
+
+	public int getSamples( short[] outputBuf, int offset, int count ) throws Exception {
+		if( inputStep == outputStep ) {
+			count = input.getSamples( outputBuf, offset, count );
+			outputPosition += count;
+			inputRead += count;
+			return count;
+		}
+		int remaining = getSamplesRemaining();
+		if( count > remaining ) {
+			count = remaining;
+		}
+		int outputIdx = offset * numChannels;
+		for( int sample = 0; sample < count; sample++ ) {
+			fill( inputPosition + halfTaps + 1 );
+			float[] coefs = table;
+			int coefIdx = phaseAccumulator * numTaps;
+			if( numPhases != outputStep ) {
+				// Interpolate the coefficients between the adjacent phases.
+				long phasePosition = ( long ) phaseAccumulator * numPhases;
+				int rowIdx = ( int ) ( phasePosition / outputStep ) * numTaps;
+				float frac = ( float ) ( phasePosition % outputStep ) / outputStep;
+				for( int tap = 0; tap < numTaps; tap++ ) {
+					float c0 = table[ rowIdx + tap ];
+					interpolated[ tap ] = c0 + ( table[ rowIdx + numTaps + tap ] - c0 ) * frac;
+				}
+				coefs = interpolated;
+				coefIdx = 0;
+			}
+			int historyIdx = ( int ) ( inputPosition - halfTaps + 1 - historyStart ) * numChannels;
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				float sum = 0;
+				for( int tap = coefIdx, end = coefIdx + numTaps, idx = historyIdx + channel; tap < end; tap++, idx += numChannels ) {
+					sum += history[ idx ] * coefs[ tap ];
+				}
+				int amp = Math.round( sum );
+				if( amp < -32768 ) {
+					amp = -32768;
+				}
+				if( amp > 32767 ) {
+					amp = 32767;
+				}
+				outputBuf[ outputIdx++ ] = ( short ) amp;
+			}
+			// Advance the input position by inputStep / outputStep samples.
+			phaseAccumulator += inputStep;
+			inputPosition += phaseAccumulator / outputStep;
+			phaseAccumulator = phaseAccumulator % outputStep;
+		}
+		outputPosition += count;
+		return count;
+	}
+
+	/* Ensure the history contains the input samples before the specified end position,
+	   discarding samples no longer required. Silence follows the end of the input. */
+	private void fill( long end ) throws Exception {
+		if( historyStart + historyFrames >= end ) {
+			return;
+		}
+		int discard = ( int ) ( end - numTaps - historyStart );
+		if( discard > 0 ) {
+			historyFrames -= discard;
+			System.arraycopy( history, discard * numChannels, history, 0, historyFrames * numChannels );
+			historyStart += discard;
+		}
+		int capacity = history.length / numChannels;
+		while( historyStart + historyFrames < end ) {
+			int count = 0;
+			if( input.getSamplesRemaining() > 0 ) {
+				count = input.getSamples( history, historyFrames, capacity - historyFrames );
+				inputRead += count;
+			}
+			if( count < 1 ) {
+				count = ( int ) ( end - historyStart - historyFrames );
+				java.util.Arrays.fill( history, historyFrames * numChannels, ( historyFrames + count ) * numChannels, ( short ) 0 );
+			}
+			historyFrames += count;
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 3 && args.length != 4 ) {
+			System.err.println( "Sample rate converter." );
+			System.err.println( "Usage: java " + ResampledSampleData.class.getName() + " input.wav output.wav rate [low|medium|high]" );
+			System.exit( 0 );
+		}
+		int quality = QUALITY_MEDIUM;
+		if( args.length > 3 ) {
+			quality = "low".equals( args[ 3 ] ) ? QUALITY_LOW : "high".equals( args[ 3 ] ) ? QUALITY_HIGH : QUALITY_MEDIUM;
+		}
+		try( java.io.InputStream inputStream = new java.io.FileInputStream( args[ 0 ] ) ) {
+			try( java.io.OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 1 ] ) ) ) {
+				SampleData sampleData = new WavSampleData( new java.io.BufferedInputStream( inputStream ) );
+				WavSampleData.writeWav( new ResampledSampleData( sampleData, Integer.parseInt( args[ 2 ] ), quality ), outputStream );
+			}
+		}
+	}
+}
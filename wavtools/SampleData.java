@@ -7,7 +7,8 @@ public interface SampleData {
 	public int getNumChannels();
 	/* Return the sample rate in hz. */
 	public int getSampleRate();
-	/* Return the number of samples remaining to be read. */
+	/* Return the number of samples remaining to be read.
+	   Inputs of unknown length, such as a streamed WAV file with no data length, return Integer.MAX_VALUE. */
 	public int getSamplesRemaining();
 	/* Copy at most count samples of audio data into the specified buffer.
 	   Offset and count correspond to one array index for each channel.
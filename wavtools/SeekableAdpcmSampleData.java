@@ -0,0 +1,253 @@
+
+package wavtools;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+	Seekable container for the 4-bit ADPCM format of AdpcmSampleData.
+	The file consists of a 20-byte header, the ADPCM data, and an index
+	of the predictor state of each channel at every keyframe.
+	All values are little-endian.
+		"ADPS", numChannels, sampleRate, numSamples, keyframeSamples
+		ADPCM data ( numSamples * numChannels / 2 bytes ).
+		Index ( numKeyframes * numChannels * ( pred, step ) ).
+	The ADPCM data is identical to that produced by AdpcmSampleData.encode().
+*/
+public class SeekableAdpcmSampleData implements SeekableSampleData, Closeable {
+	private static final int HEADER_BYTES = 20;
+
+	private FileChannel channel;
+	private int[] index, preds, steps;
+	private int numChannels, sampleRate, numSamples, keyframeSamples, samplePosition;
+
+	/* Encode the contents of specified SampleData to a seekable ADPCM file,
+	   storing the predictor state every keyframeSamples samples, which must be even.
+	   The length of the input must be known, as it is written to the header before the data.
+	   Inputs of unknown length, such as a streamed WAV file with no data length,
+	   report Integer.MAX_VALUE samples remaining and are rejected. */
+	public static void encode( SampleData sampleData, OutputStream outputStream, int keyframeSamples ) throws Exception {
+		if( keyframeSamples < 2 || ( keyframeSamples & 1 ) != 0 ) {
+			throw new IllegalArgumentException( "Invalid keyframe interval." );
+		}
+		if( sampleData.getSamplesRemaining() == Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Input length unknown." );
+		}
+		int numChannels = sampleData.getNumChannels();
+		int numSamples = sampleData.getSamplesRemaining() & -2;
+		int numKeyframes = ( numSamples + keyframeSamples - 1 ) / keyframeSamples;
+		if( ( long ) numKeyframes * numChannels * 8 > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Keyframe index too large." );
+		}
+		ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		header.put( ( byte ) 'A' ).put( ( byte ) 'D' ).put( ( byte ) 'P' ).put( ( byte ) 'S' );
+		header.putInt( numChannels ).putInt( sampleData.getSampleRate() ).putInt( numSamples ).putInt( keyframeSamples );
+		outputStream.write( header.array() );
+		ByteBuffer index = ByteBuffer.allocate( numKeyframes * numChannels * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] inputBuf = BufferPool.getShorts( bufSamples * numChannels );
+		byte[] outputBuf = BufferPool.getBytes( bufSamples * numChannels / 2 );
+		int[] preds = new int[ numChannels ];
+		int[] steps = new int[ numChannels ];
+		try {
+			int count = 0, remain = 0, position = 0;
+			while( position < numSamples ) {
+				System.arraycopy( inputBuf, count * numChannels, inputBuf, 0, remain * numChannels );
+				int length = numSamples - position - remain;
+				if( length > bufSamples - remain ) {
+					length = bufSamples - remain;
+				}
+				length = sampleData.getSamples( inputBuf, remain, length );
+				if( length < 1 ) {
+					throw new EOFException( "Unexpected end of input." );
+				}
+				count = remain + length;
+				remain = count & 1;
+				count = count & -2;
+				int segmentIdx = 0;
+				while( segmentIdx < count ) {
+					// Store the state at each keyframe, then encode up to the next one.
+					int keyframeOffset = ( position + segmentIdx ) % keyframeSamples;
+					if( keyframeOffset == 0 ) {
+						for( int channel = 0; channel < numChannels; channel++ ) {
+							index.putInt( preds[ channel ] ).putInt( steps[ channel ] );
+						}
+					}
+					int segmentEnd = segmentIdx + keyframeSamples - keyframeOffset;
+					if( segmentEnd > count ) {
+						segmentEnd = count;
+					}
+					for( int channel = 0; channel < numChannels; channel++ ) {
+						AdpcmSampleData.encodeChannel( inputBuf, segmentIdx * numChannels + channel,
+							segmentEnd * numChannels + channel, numChannels, preds, steps, channel );
+					}
+					segmentIdx = segmentEnd;
+				}
+				position += count;
+				int inputIdx = 0, outputIdx = 0;
+				int outputEnd = count * numChannels / 2;
+				while( outputIdx < outputEnd ) {
+					outputBuf[ outputIdx++ ] = ( byte ) ( ( inputBuf[ inputIdx ] << 4 ) | ( inputBuf[ inputIdx + 1 ] & 0xF ) );
+					inputIdx += 2;
+				}
+				outputStream.write( outputBuf, 0, outputEnd );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+			BufferPool.release( outputBuf );
+		}
+		outputStream.write( index.array() );
+	}
+
+	/* Open the specified seekable ADPCM file. The file remains open until close() is called. */
+	public SeekableAdpcmSampleData( File file ) throws IOException {
+		channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+		try {
+			ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+			readFully( channel, header, 0 );
+			if( header.getInt( 0 ) != ( 'A' | ( 'D' << 8 ) | ( 'P' << 16 ) | ( 'S' << 24 ) ) ) {
+				throw new IllegalArgumentException( "Seekable ADPCM header not found." );
+			}
+			numChannels = header.getInt( 4 );
+			sampleRate = header.getInt( 8 );
+			numSamples = header.getInt( 12 );
+			keyframeSamples = header.getInt( 16 );
+			if( numChannels < 1 || numSamples < 0 || keyframeSamples < 2 || ( keyframeSamples & 1 ) != 0 ) {
+				throw new IllegalArgumentException( "Invalid seekable ADPCM header." );
+			}
+			int numKeyframes = ( numSamples + keyframeSamples - 1 ) / keyframeSamples;
+			ByteBuffer indexBuf = ByteBuffer.allocate( numKeyframes * numChannels * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+			readFully( channel, indexBuf, HEADER_BYTES + ( long ) numSamples * numChannels / 2 );
+			index = new int[ numKeyframes * numChannels * 2 ];
+			indexBuf.flip();
+			indexBuf.asIntBuffer().get( index );
+		} catch( IOException | RuntimeException e ) {
+			channel.close();
+			throw e;
+		}
+		preds = new int[ numChannels ];
+		steps = new int[ numChannels ];
+	}
+
+	/* Set the position of the next sample to be decoded, which is rounded down to an even sample.
+	   Decoding restarts from the preceding keyframe, so at most keyframeSamples samples are decoded. */
+	public void seek( int sampleOffset ) throws IOException {
+		if( sampleOffset < 0 || sampleOffset > numSamples ) {
+			throw new IllegalArgumentException( "Offset out of range: " + sampleOffset );
+		}
+		sampleOffset = sampleOffset & -2;
+		int keyframe = sampleOffset / keyframeSamples;
+		samplePosition = keyframe * keyframeSamples;
+		if( samplePosition < numSamples ) {
+			for( int channel = 0; channel < numChannels; channel++ ) {
+				preds[ channel ] = index[ ( keyframe * numChannels + channel ) * 2 ];
+				steps[ channel ] = index[ ( keyframe * numChannels + channel ) * 2 + 1 ];
+			}
+		}
+		if( sampleOffset > samplePosition ) {
+			short[] skipBuf = BufferPool.getShorts( keyframeSamples * numChannels );
+			try {
+				while( samplePosition < sampleOffset ) {
+					getSamples( skipBuf, 0, sampleOffset - samplePosition );
+				}
+			} finally {
+				BufferPool.release( skipBuf );
+			}
+		}
+	}
+
+	/* Return the total number of samples in the file. */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return numSamples - samplePosition;
+	}
+
+	/* Decode and return count samples of audio.
+	   Fewer than count samples will be returned if count is not divisible by 2. */
+	public int getSamples( short[] outputBuf, int offset, int count ) throws IOException {
+		if( count > numSamples - samplePosition ) {
+			count = numSamples - samplePosition;
+		}
+		if( count > BufferPool.getBufferSamples() ) {
+			count = BufferPool.getBufferSamples();
+		}
+		count = count & -2;
+		int inputBytes = count * numChannels / 2;
+		byte[] inputBuf = BufferPool.getBytes( inputBytes );
+		try {
+			ByteBuffer inputBuffer = ByteBuffer.wrap( inputBuf, 0, inputBytes );
+			readFully( channel, inputBuffer, HEADER_BYTES + ( long ) samplePosition * numChannels / 2 );
+			int outputIdx = offset * numChannels;
+			int inputIdx = 0;
+			while( inputIdx < inputBytes ) {
+				int a = inputBuf[ inputIdx++ ] & 0xFF;
+				outputBuf[ outputIdx++ ] = ( short ) ( a >> 4 );
+				outputBuf[ outputIdx++ ] = ( short ) ( a & 0xF );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+		}
+		for( int channel = 0; channel < numChannels; channel++ ) {
+			AdpcmSampleData.decodeChannel( outputBuf, offset * numChannels + channel,
+				( offset + count ) * numChannels + channel, numChannels, preds, steps, channel );
+		}
+		samplePosition += count;
+		return count;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+		while( buffer.hasRemaining() ) {
+			if( channel.read( buffer, position + buffer.position() ) < 0 ) {
+				throw new EOFException( "Unexpected end of file." );
+			}
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 2 && args.length != 3 ) {
+			String clsName = SeekableAdpcmSampleData.class.getName();
+			System.err.println( "Seekable 4-bit ADPCM codec." );
+			System.err.println( "  Encode: java " + clsName + " input.wav output.adps [keyframe]" );
+			System.err.println( "  Decode: java " + clsName + " input.adps output.wav [offset]" );
+			System.exit( 0 );
+		}
+		File inputFile = new File( args[ 0 ] );
+		try( java.io.OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 1 ] ) ) ) {
+			if( inputFile.getName().toLowerCase().endsWith( "wav" ) ) {
+				// Encode.
+				int keyframeSamples = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 4096;
+				try( java.io.InputStream inputStream = new java.io.FileInputStream( inputFile ) ) {
+					encode( new WavSampleData( inputStream ), outputStream, keyframeSamples );
+				}
+			} else {
+				// Decode, starting from the specified offset.
+				try( SeekableAdpcmSampleData sampleData = new SeekableAdpcmSampleData( inputFile ) ) {
+					sampleData.seek( args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 0 );
+					WavSampleData.writeWav( sampleData, outputStream );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,11 @@
+
+package wavtools;
+
+/* A SampleData of known length that supports random access. */
+public interface SeekableSampleData extends SampleData {
+	/* Return the total number of samples. */
+	public int getNumSamples();
+	/* Set the position of the next sample to be read. Implementations may round the position down,
+	   in which case the position actually set is getNumSamples() - getSamplesRemaining(). */
+	public void seek( int sampleOffset ) throws Exception;
+}
@@ -0,0 +1,53 @@
+
+package wavtools;
+
+/* Presents FloatSampleData as 16-bit SampleData, with rounding and clipping. */
+public class ShortSampleDataAdapter implements SampleData {
+	private static final int BUF_SAMPLES = 1 << 12;
+
+	private FloatSampleData input;
+
+	public ShortSampleDataAdapter( FloatSampleData input ) {
+		this.input = input;
+	}
+
+	public int getNumChannels() {
+		return input.getNumChannels();
+	}
+
+	public int getSampleRate() {
+		return input.getSampleRate();
+	}
+
+	public int getSamplesRemaining() {
+		return input.getSamplesRemaining();
+	}
+
+	public int getSamples( short[] outputBuf, int offset, int count ) throws Exception {
+		if( count > BUF_SAMPLES ) {
+			count = BUF_SAMPLES;
+		}
+		float[] inputBuf = BufferPool.getFloats( count * input.getNumChannels() );
+		try {
+			count = input.getSamples( inputBuf, 0, count );
+			int numChannels = input.getNumChannels();
+			for( int inputIdx = 0, outputIdx = offset * numChannels, end = count * numChannels; inputIdx < end; inputIdx++ ) {
+				outputBuf[ outputIdx++ ] = toShort( inputBuf[ inputIdx ] );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+		}
+		return count;
+	}
+
+	/* Convert a sample in the range -1 to 1 to a rounded and clipped 16-bit value. */
+	public static short toShort( float sample ) {
+		int amp = Math.round( sample * 32768 );
+		if( amp < -32768 ) {
+			return -32768;
+		} else if( amp > 32767 ) {
+			return 32767;
+		}
+		return ( short ) amp;
+	}
+}
@@ -0,0 +1,90 @@
+
+package wavtools;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+	Counters for one named stage of a SampleData chain, updated by MeteredSampleData.
+	Total time is the time spent in getSamples(), including the stages it reads from.
+	Self time excludes the time spent in other metered stages called from the same thread,
+	and time stalled waiting for a PipelinedSampleData to supply input.
+	Counters may be updated by any number of threads, and read at any time.
+*/
+public class StageMetrics implements StageMetricsMBean {
+	private String name;
+	private LongAdder samples = new LongAdder(), calls = new LongAdder();
+	private LongAdder selfNanos = new LongAdder(), totalNanos = new LongAdder(), stallNanos = new LongAdder();
+
+	public StageMetrics( String name ) {
+		this.name = name;
+	}
+
+	/* Record a call to getSamples() that returned the specified number of samples. */
+	public void record( int count, long totalNanos, long selfNanos, long stallNanos ) {
+		calls.increment();
+		samples.add( count );
+		this.totalNanos.add( totalNanos );
+		this.selfNanos.add( selfNanos );
+		this.stallNanos.add( stallNanos );
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSamples() {
+		return samples.sum();
+	}
+
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	public double getAverageBlockSamples() {
+		long calls = getCalls();
+		return calls > 0 ? ( double ) getSamples() / calls : 0;
+	}
+
+	public long getSelfNanos() {
+		return selfNanos.sum();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	public long getStallNanos() {
+		return stallNanos.sum();
+	}
+
+	public double getSelfMillis() {
+		return getSelfNanos() / 1e6;
+	}
+
+	public double getTotalMillis() {
+		return getTotalNanos() / 1e6;
+	}
+
+	public double getStallMillis() {
+		return getStallNanos() / 1e6;
+	}
+
+	/* Return the throughput of this stage alone, in samples per second of self time. */
+	public double getSamplesPerSecond() {
+		long nanos = getSelfNanos();
+		return nanos > 0 ? getSamples() * 1e9 / nanos : 0;
+	}
+
+	public void reset() {
+		samples.reset();
+		calls.reset();
+		selfNanos.reset();
+		totalNanos.reset();
+		stallNanos.reset();
+	}
+
+	public String toString() {
+		return String.format( "%-24s %12d %8d %10.1f %10.3f %10.3f %10.3f %10.2f", name, getSamples(), getCalls(),
+			getAverageBlockSamples(), getSelfMillis(), getTotalMillis(), getStallMillis(), getSamplesPerSecond() / 1e6 );
+	}
+}
@@ -0,0 +1,15 @@
+
+package wavtools;
+
+/* Management interface of StageMetrics. */
+public interface StageMetricsMBean {
+	public String getName();
+	public long getSamples();
+	public long getCalls();
+	public double getAverageBlockSamples();
+	public double getSelfMillis();
+	public double getTotalMillis();
+	public double getStallMillis();
+	public double getSamplesPerSecond();
+	public void reset();
+}
@@ -3,6 +3,8 @@ package wavtools;
 
 import java.io.ByteArrayInputStream; 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 
 public class Test {
 	public static void main( String[] args ) throws Exception {
@@ -13,6 +15,34 @@ public class Test {
 		testWavSampleData( 3, 1 );
 		testWavSampleData( 3, 2 );
 		testWavSampleData( 3, 3 );
+		testMappedWavSampleData( 1000, 2 );
+		testAdpcmBlocks( 10000, 2, 1024 );
+		testSeekableAdpcm( 10000, 2, 1000 );
+		testFloatWavSampleData( 1001, 1 );
+		testFloatWavSampleData( 1001, 3 );
+		testChannelParallel( 100001, 6 );
+		testPipeline( 100001, 2 );
+		testBufferPool( 10001, 3 );
+		testWavWriter( 100001, 2 );
+		testWavHeader( 1000, 2 );
+		testResample( 44100, 48000, 2 );
+		testResample( 48000, 32000, 1 );
+		testCompressedTable( 200000 );
+		testAdpcmSearch( 20000, 2, 4096 );
+		testLossless( 100001, 2 );
+		testMetrics( 100001, 2 );
+		testQuantizedLargeBlocks( 100001, 2 );
+		testNoiseReductionFast( 100001, 2 );
+		testFloatNoiseReduction( 100001, 2 );
+		testDecodeCache( 10001, 2, false );
+		testDecodeCache( 10001, 2, true );
+		testChannelMatrix( 100001 );
+		testTimeline( 100001, 2 );
+		testAnalysis( 48000 * 10 );
+		testWaveformOverview( 1000001, 2, 256 );
+		testWaveformOverview( 600001, 1, 255 );
+		testParallelEncoder( 500001, 2 );
+		testBatchTranscoder( 10001, 2 );
 		System.out.println( "OK" );
 	}
 	
@@ -38,4 +68,1142 @@ public class Test {
 			}
 		}
 	}
+
+	public static void testMappedWavSampleData( int len, int channels ) throws Exception {
+		short[] inputSamples = new short[ len * channels ];
+		for( int idx = 0; idx < inputSamples.length; idx++ ) {
+			inputSamples[ idx ] = ( short ) ( idx * 7 );
+		}
+		File file = File.createTempFile( "test", ".wav" );
+		try {
+			try( FileOutputStream os = new FileOutputStream( file ) ) {
+				WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+			}
+			MappedWavSampleData sampleData = new MappedWavSampleData( file );
+			int offset = len / 3, length = len / 2;
+			short[] outputSamples = new ArraySampleData( sampleData.slice( offset, length ) ).getArray();
+			if( outputSamples.length != length * channels ) {
+				throw new Exception( "Output length " + outputSamples.length + " should be " + length * channels );
+			}
+			for( int idx = 0; idx < outputSamples.length; idx++ ) {
+				int in = inputSamples[ offset * channels + idx ];
+				int out = outputSamples[ idx ];
+				if( in != out ) {
+					throw new Exception( out + " should be " + in + " at index " + idx );
+				}
+			}
+			sampleData.seek( len - 1 );
+			if( sampleData.getSamplesRemaining() != 1 ) {
+				throw new Exception( "Seek failed." );
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testAdpcmBlocks( int len, int channels, int blockSamples ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os, blockSamples );
+		byte[] blockData = os.toByteArray();
+		// Each block should be identical to a separately encoded stream.
+		os = new ByteArrayOutputStream();
+		for( int offset = 0; offset < len; offset += blockSamples ) {
+			int length = len - offset < blockSamples ? len - offset : blockSamples;
+			short[] block = new short[ length * channels ];
+			System.arraycopy( inputSamples, offset * channels, block, 0, length * channels );
+			AdpcmSampleData.encode( new ArraySampleData( block, channels, 44100, length ), os );
+		}
+		byte[] serialData = os.toByteArray();
+		if( !java.util.Arrays.equals( blockData, serialData ) ) {
+			throw new Exception( "Block encoding differs from serial encoding." );
+		}
+		short[] blockSamplesOut = new ArraySampleData( new AdpcmSampleData(
+			new ByteArrayInputStream( blockData ), channels, 44100, len, blockSamples ) ).getArray();
+		for( int offset = 0; offset < len; offset += blockSamples ) {
+			int length = len - offset < blockSamples ? len - offset : blockSamples;
+			ByteArrayInputStream is = new ByteArrayInputStream( serialData, offset * channels / 2, length * channels / 2 );
+			short[] block = new ArraySampleData( new AdpcmSampleData( is, channels, 44100, length ) ).getArray();
+			for( int idx = 0; idx < block.length; idx++ ) {
+				if( block[ idx ] != blockSamplesOut[ offset * channels + idx ] ) {
+					throw new Exception( "Block decoding differs from serial decoding at index " + idx );
+				}
+			}
+		}
+		// The block size is recovered from the header.
+		for( int headerBlockSamples : new int[] { 0, blockSamples } ) {
+			os = new ByteArrayOutputStream();
+			AdpcmSampleData.writeHeader( os, channels, 44100, headerBlockSamples );
+			if( os.size() != ( headerBlockSamples > 0 ? 8 : 4 ) ) {
+				throw new Exception( "Incorrect header length." );
+			}
+			AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os, headerBlockSamples );
+			short[] expected = headerBlockSamples > 0 ? blockSamplesOut : new ArraySampleData( new AdpcmSampleData(
+				new ByteArrayInputStream( serialStream( inputSamples, channels, len ) ), channels, 44100, len ) ).getArray();
+			SampleData sampleData = AdpcmSampleData.readHeader( new ByteArrayInputStream( os.toByteArray() ), os.size() );
+			if( sampleData.getNumChannels() != channels || sampleData.getSampleRate() != 44100
+				|| !java.util.Arrays.equals( new ArraySampleData( sampleData ).getArray(), expected ) ) {
+				throw new Exception( "Header decoding differs for block size " + headerBlockSamples );
+			}
+		}
+	}
+
+	private static byte[] serialStream( short[] inputSamples, int channels, int len ) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		return os.toByteArray();
+	}
+
+	public static void testAdpcmSearch( int len, int channels, int blockSamples ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		byte[] greedy = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os, 0, 1 );
+		if( !java.util.Arrays.equals( greedy, os.toByteArray() ) ) {
+			throw new Exception( "Search width 1 differs from greedy encoder." );
+		}
+		double greedySnr = adpcmSnr( inputSamples, greedy, channels, len );
+		os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os, 0, 8 );
+		if( adpcmSnr( inputSamples, os.toByteArray(), channels, len ) < greedySnr + 1 ) {
+			throw new Exception( "Search did not improve SNR." );
+		}
+		// Searched blocks are identical to separately searched streams.
+		os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os, blockSamples, 8 );
+		byte[] blocks = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		for( int offset = 0; offset < len; offset += blockSamples ) {
+			int length = len - offset < blockSamples ? len - offset : blockSamples;
+			short[] block = new short[ length * channels ];
+			System.arraycopy( inputSamples, offset * channels, block, 0, length * channels );
+			AdpcmSampleData.encode( new ArraySampleData( block, channels, 44100, length ), os, 0, 8 );
+		}
+		if( !java.util.Arrays.equals( blocks, os.toByteArray() ) ) {
+			throw new Exception( "Searched blocks differ." );
+		}
+	}
+
+	private static double adpcmSnr( short[] inputSamples, byte[] encoded, int channels, int len ) throws Exception {
+		short[] decoded = new ArraySampleData( new AdpcmSampleData(
+			new ByteArrayInputStream( encoded ), channels, 44100, len ) ).getArray();
+		double signal = 0, noise = 0;
+		for( int idx = 0; idx < inputSamples.length; idx++ ) {
+			signal += ( double ) inputSamples[ idx ] * inputSamples[ idx ];
+			noise += ( double ) ( inputSamples[ idx ] - decoded[ idx ] ) * ( inputSamples[ idx ] - decoded[ idx ] );
+		}
+		return 10 * Math.log10( signal / noise );
+	}
+
+	public static void testLossless( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		int plainLength = testLossless( inputSamples, channels, len, LosslessSampleData.DEFAULT_BLOCK_SAMPLES, 8 );
+		short[] quantized = new ArraySampleData( new QuantizedSampleData( new ArraySampleData( inputSamples, channels, 44100, len ) ) ).getArray();
+		if( testLossless( quantized, channels, len, LosslessSampleData.DEFAULT_BLOCK_SAMPLES, 8 ) > plainLength / 2 ) {
+			throw new Exception( "Quantized signal not compressed." );
+		}
+		testLossless( inputSamples, channels, len, 1000, 0 );
+		testLossless( inputSamples, channels, 17, 16, 32 );
+		// Silence, full-scale square waves and noise, and a single sample.
+		short[] extremes = new short[ len * channels ];
+		int rand = 1;
+		for( int idx = 0; idx < extremes.length; idx++ ) {
+			rand = rand * 1103515245 + 12345;
+			int sample = idx / channels;
+			if( sample > len / 4 && sample < len / 2 ) {
+				extremes[ idx ] = ( short ) ( ( sample / ( 1 + sample % 7 ) ) % 2 == 0 ? 32767 : -32768 );
+			} else if( sample >= len / 2 ) {
+				extremes[ idx ] = ( short ) ( rand >> 16 );
+			}
+		}
+		testLossless( extremes, channels, len, 4096, 32 );
+		testLossless( extremes, channels, 1, 16, 8 );
+		// Small buffers and reads.
+		int bufferSamples = BufferPool.getBufferSamples();
+		BufferPool.setBufferSamples( 64 );
+		try {
+			testLossless( inputSamples, channels, 1000, 100, 8 );
+		} finally {
+			BufferPool.setBufferSamples( bufferSamples );
+		}
+	}
+
+	/* Encode and decode the first len samples, returning the encoded length. */
+	private static int testLossless( short[] inputSamples, int channels, int len, int blockSamples, int maxLpcOrder ) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LosslessSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os, blockSamples, maxLpcOrder );
+		LosslessSampleData sampleData = new LosslessSampleData( new ByteArrayInputStream( os.toByteArray() ) );
+		short[] outputSamples = new short[ len * channels ];
+		int offset = 0;
+		while( sampleData.getSamplesRemaining() > 0 ) {
+			offset += sampleData.getSamples( outputSamples, offset, 1 + offset % 777 );
+		}
+		for( int idx = 0; idx < outputSamples.length; idx++ ) {
+			if( outputSamples[ idx ] != inputSamples[ idx ] ) {
+				throw new Exception( "Lossless output differs at " + idx );
+			}
+		}
+		return os.size();
+	}
+
+	public static void testMetrics( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		if( MeteredSampleData.wrap( new ArraySampleData( inputSamples, channels, 44100, len ), "test" ) instanceof MeteredSampleData ) {
+			throw new Exception( "Metered while disabled." );
+		}
+		MetricsRegistry.setEnabled( true );
+		try {
+			SampleData source = MeteredSampleData.wrap( new ArraySampleData( inputSamples, channels, 44100, len ), "test-source" );
+			SampleData quantized = MeteredSampleData.wrap( new QuantizedSampleData( source ), "test-quantize" );
+			try( Pipeline pipeline = new Pipeline( quantized, 1024, 2 ) ) {
+				short[] expected = new ArraySampleData( new QuantizedSampleData( new ArraySampleData( inputSamples, channels, 44100, len ) ) ).getArray();
+				short[] output = new ArraySampleData( MeteredSampleData.wrap( pipeline.getOutput(), "test-output" ) ).getArray();
+				if( !java.util.Arrays.equals( expected, output ) ) {
+					throw new Exception( "Metered output differs." );
+				}
+			}
+			for( String name : new String[] { "test-source", "test-quantize", "test-output" } ) {
+				StageMetrics metrics = MetricsRegistry.getMetrics( name );
+				if( metrics.getSamples() != len || metrics.getCalls() < 1 || metrics.getSelfNanos() > metrics.getTotalNanos()
+					|| metrics.getSelfNanos() < 0 || metrics.getStallNanos() > metrics.getTotalNanos() ) {
+					throw new Exception( "Invalid metrics: " + metrics );
+				}
+			}
+			// Time in the source is excluded from the self time of the quantizer.
+			StageMetrics sourceMetrics = MetricsRegistry.getMetrics( "test-source" );
+			StageMetrics quantizeMetrics = MetricsRegistry.getMetrics( "test-quantize" );
+			if( quantizeMetrics.getTotalNanos() - quantizeMetrics.getSelfNanos() != sourceMetrics.getTotalNanos() ) {
+				throw new Exception( "Nested time not excluded." );
+			}
+			if( !MetricsRegistry.dump().contains( "test-quantize" ) ) {
+				throw new Exception( "Stage missing from dump." );
+			}
+			MetricsRegistry.enableJmx();
+			Object samples = java.lang.management.ManagementFactory.getPlatformMBeanServer().getAttribute(
+				new javax.management.ObjectName( "wavtools:type=StageMetrics,name=\"test-source\"" ), "Samples" );
+			if( !Long.valueOf( len ).equals( samples ) ) {
+				throw new Exception( "Invalid MBean attribute: " + samples );
+			}
+		} finally {
+			MetricsRegistry.setEnabled( false );
+			MetricsRegistry.clear();
+		}
+	}
+
+	public static void testQuantizedLargeBlocks( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		byte[] wav = os.toByteArray();
+		short[][] outputs = new short[ 2 ][];
+		for( int mode = 0; mode < 2; mode++ ) {
+			SampleData sampleData = new NoiseReduction( new WavSampleData( new ByteArrayInputStream( wav ) ), 54 );
+			sampleData = new QuantizedSampleData( new QuantizedSampleData( sampleData, 7, mode > 0 ), 5, mode > 0 );
+			outputs[ mode ] = new ArraySampleData( sampleData ).getArray();
+		}
+		if( !java.util.Arrays.equals( outputs[ 0 ], outputs[ 1 ] ) ) {
+			throw new Exception( "Large block quantizer output differs." );
+		}
+		// Chunks end where a pipelined input reaches the end of a block.
+		for( int mode = 0; mode < 2; mode++ ) {
+			try( Pipeline pipeline = new Pipeline( new ArraySampleData( inputSamples, channels, 44100, len ), 1000, 2 ) ) {
+				outputs[ mode ] = new ArraySampleData( new QuantizedSampleData( pipeline.getOutput(), 5, mode > 0 ) ).getArray();
+			}
+		}
+		if( !java.util.Arrays.equals( outputs[ 0 ], outputs[ 1 ] ) ) {
+			throw new Exception( "Large block quantizer output differs with pipelined input." );
+		}
+	}
+
+	public static void testNoiseReductionFast( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		short[] expected = new ArraySampleData( new NoiseReduction( new ArraySampleData( inputSamples, channels, 44100, len ), 54 ) ).getArray();
+		short[] outputSamples = new ArraySampleData( new NoiseReduction( new ArraySampleData( inputSamples, channels, 44100, len ), 54, true ) ).getArray();
+		// The output does not depend on the sizes of the reads.
+		java.util.Random random = new java.util.Random( 0 );
+		for( int readSamples : new int[] { 1001, 64, 7, 1, 0 } ) {
+			SampleData sampleData = new NoiseReduction( new ArraySampleData( inputSamples, channels, 44100, len ), 54, true );
+			short[] readOutput = new short[ len * channels ];
+			int offset = 0;
+			while( sampleData.getSamplesRemaining() > 0 ) {
+				int count = readSamples > 0 ? readSamples : random.nextInt( 100 ) + 1;
+				offset += sampleData.getSamples( readOutput, offset, count < len - offset ? count : len - offset );
+			}
+			if( offset != len || !java.util.Arrays.equals( readOutput, outputSamples ) ) {
+				throw new Exception( "Fast noise reduction depends on read size " + readSamples );
+			}
+		}
+		double signal = 0, noise = 0;
+		for( int idx = 0; idx < expected.length; idx++ ) {
+			int diff = outputSamples[ idx ] - expected[ idx ];
+			if( diff > 64 || diff < -64 ) {
+				throw new Exception( "Fast noise reduction differs by " + diff + " at " + idx );
+			}
+			signal += ( double ) expected[ idx ] * expected[ idx ];
+			noise += ( double ) diff * diff;
+		}
+		if( noise * 1e8 > signal ) {
+			throw new Exception( "Fast noise reduction differs by more than 80db." );
+		}
+	}
+
+	public static void testFloatNoiseReduction( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		short[] expected = new ArraySampleData( new NoiseReduction( new NoiseReduction(
+			new ArraySampleData( inputSamples, channels, 44100, len ), 54 ), 54 ) ).getArray();
+		short[] outputSamples = new ArraySampleData( new ShortSampleDataAdapter( new FloatNoiseReduction( new FloatNoiseReduction(
+			new FloatSampleDataAdapter( new ArraySampleData( inputSamples, channels, 44100, len ) ), 54 ), 54 ) ) ).getArray();
+		// The 16-bit chain truncates between stages.
+		for( int idx = 0; idx < expected.length; idx++ ) {
+			int diff = outputSamples[ idx ] - expected[ idx ];
+			if( diff > 2 || diff < -2 ) {
+				throw new Exception( "Float noise reduction differs by " + diff + " at " + idx );
+			}
+		}
+		// A signal of less than one 16-bit step passes through a floating-point chain, but not a 16-bit chain.
+		float[] quiet = new float[ len * channels ];
+		for( int idx = 0; idx < quiet.length; idx++ ) {
+			quiet[ idx ] = inputSamples[ idx ] / ( 32768f * 65536f );
+		}
+		float[] floatOutput = floatArray( new FloatNoiseReduction( new FloatNoiseReduction( floatSampleData( quiet, channels, len ), 54 ), 54 ) );
+		float[] shortOutput = floatArray( new FloatSampleDataAdapter( new NoiseReduction( new NoiseReduction(
+			new ShortSampleDataAdapter( floatSampleData( quiet, channels, len ) ), 54 ), 54 ) ) );
+		double floatPower = 0, shortPower = 0;
+		for( int idx = 0; idx < quiet.length; idx++ ) {
+			floatPower += floatOutput[ idx ] * ( double ) floatOutput[ idx ];
+			shortPower += shortOutput[ idx ] * ( double ) shortOutput[ idx ];
+		}
+		if( floatPower <= 0 || shortPower > 0 ) {
+			throw new Exception( "Floating-point chain quantized between stages." );
+		}
+	}
+
+	private static FloatSampleData floatSampleData( final float[] samples, final int channels, final int len ) {
+		return new FloatSampleData() {
+			private int position;
+			public int getNumChannels() {
+				return channels;
+			}
+			public int getSampleRate() {
+				return 44100;
+			}
+			public int getSamplesRemaining() {
+				return len - position;
+			}
+			public int getSamples( float[] buffer, int offset, int count ) {
+				if( count > len - position ) {
+					count = len - position;
+				}
+				System.arraycopy( samples, position * channels, buffer, offset * channels, count * channels );
+				position += count;
+				return count;
+			}
+		};
+	}
+
+	private static float[] floatArray( FloatSampleData sampleData ) throws Exception {
+		float[] output = new float[ sampleData.getSamplesRemaining() * sampleData.getNumChannels() ];
+		int offset = 0;
+		while( sampleData.getSamplesRemaining() > 0 ) {
+			offset += sampleData.getSamples( output, offset, 1000 );
+		}
+		return output;
+	}
+
+	public static void testDecodeCache( final int len, final int channels, boolean offHeap ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		final byte[] adpcm = os.toByteArray();
+		short[] expected = new ArraySampleData( new AdpcmSampleData( new ByteArrayInputStream( adpcm ), channels, 44100, len ) ).getArray();
+		final java.util.concurrent.atomic.AtomicInteger decodes = new java.util.concurrent.atomic.AtomicInteger();
+		final DecodeCache.Decoder decoder = new DecodeCache.Decoder() {
+			public SampleData decode() {
+				decodes.incrementAndGet();
+				return new AdpcmSampleData( new ByteArrayInputStream( adpcm ), channels, 44100, len );
+			}
+		};
+		// Room for two clips.
+		final DecodeCache cache = new DecodeCache( expected.length * 4L, offHeap );
+		String key = DecodeCache.contentKey( adpcm );
+		for( int idx = 0; idx < 3; idx++ ) {
+			if( !java.util.Arrays.equals( new ArraySampleData( cache.get( key, decoder ) ).getArray(), expected ) ) {
+				throw new Exception( "Cached clip differs." );
+			}
+		}
+		if( decodes.get() != 1 || cache.getHits() != 2 || cache.getMisses() != 1 ) {
+			throw new Exception( "Incorrect cache counters: " + cache );
+		}
+		cache.get( "b", decoder );
+		cache.get( key, decoder );
+		cache.get( "c", decoder );
+		if( !cache.contains( key ) || cache.contains( "b" ) || cache.getEvictions() != 1 || cache.getSizeBytes() != expected.length * 4L ) {
+			throw new Exception( "Incorrect eviction: " + cache );
+		}
+		// Concurrent requests for an uncached clip are decoded once.
+		decodes.set( 0 );
+		java.util.List<java.util.concurrent.Future<short[]>> futures = new java.util.ArrayList<java.util.concurrent.Future<short[]>>();
+		java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool( 4 );
+		try {
+			for( int idx = 0; idx < 8; idx++ ) {
+				futures.add( executor.submit( new java.util.concurrent.Callable<short[]>() {
+					public short[] call() throws Exception {
+						return new ArraySampleData( cache.get( "d", decoder ) ).getArray();
+					}
+				} ) );
+			}
+			for( java.util.concurrent.Future<short[]> future : futures ) {
+				if( !java.util.Arrays.equals( future.get(), expected ) ) {
+					throw new Exception( "Concurrently cached clip differs." );
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		if( decodes.get() != 1 ) {
+			throw new Exception( "Clip decoded " + decodes.get() + " times." );
+		}
+		// Failures are not cached.
+		try {
+			cache.get( "e", new DecodeCache.Decoder() {
+				public SampleData decode() throws Exception {
+					throw new java.io.IOException( "Test." );
+				}
+			} );
+			throw new Exception( "Decode failure not thrown." );
+		} catch( java.io.IOException e ) {
+		}
+		if( cache.contains( "e" ) ) {
+			throw new Exception( "Decode failure cached." );
+		}
+		// A clip invalidated or cleared while it is being decoded is not cached, and is decoded again.
+		for( final boolean clear : new boolean[] { false, true } ) {
+			final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch( 1 );
+			final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch( 1 );
+			executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+			try {
+				java.util.concurrent.Future<short[]> future = executor.submit( new java.util.concurrent.Callable<short[]>() {
+					public short[] call() throws Exception {
+						return new ArraySampleData( cache.get( "f", new DecodeCache.Decoder() {
+							public SampleData decode() throws Exception {
+								started.countDown();
+								release.await();
+								return decoder.decode();
+							}
+						} ) ).getArray();
+					}
+				} );
+				started.await();
+				if( clear ) {
+					cache.clear();
+				} else {
+					cache.invalidate( "f" );
+				}
+				release.countDown();
+				if( !java.util.Arrays.equals( future.get(), expected ) ) {
+					throw new Exception( "Invalidated clip differs." );
+				}
+			} finally {
+				executor.shutdown();
+			}
+			if( cache.contains( "f" ) ) {
+				throw new Exception( "Clip invalidated during decode was cached." );
+			}
+			decodes.set( 0 );
+			cache.get( "f", decoder );
+			if( decodes.get() != 1 || !cache.contains( "f" ) ) {
+				throw new Exception( "Invalidated clip not decoded again." );
+			}
+			cache.invalidate( "f" );
+		}
+	}
+
+	public static void testChannelMatrix( int len ) throws Exception {
+		short[] stereo = Benchmark.testSignal( len, 2 );
+		float[][][] matrices = {
+			{ { 0.5f, 0.5f } }, { { 0, 1 }, { 1, 0 } }, { { 1, 0 }, { 1, 0 }, { 0, 1 } }, { { 0.7f, 0.6f }, { -0.3f, 1.2f } }
+		};
+		for( int matrixIdx = 0; matrixIdx < matrices.length; matrixIdx++ ) {
+			float[][] matrix = matrices[ matrixIdx ];
+			// The fixed-point gains of the general matrix may round differently, but not those of the fast paths.
+			int tolerance = matrixIdx < 3 ? 0 : 1;
+			short[] expected = new short[ len * matrix.length ];
+			for( int idx = 0, outputIdx = 0; idx < len; idx++ ) {
+				for( float[] row : matrix ) {
+					int amp = Math.round( stereo[ idx * 2 ] * row[ 0 ] + stereo[ idx * 2 + 1 ] * row[ 1 ] );
+					expected[ outputIdx++ ] = ( short ) ( amp < -32768 ? -32768 : amp > 32767 ? 32767 : amp );
+				}
+			}
+			SampleData sampleData = new ChannelMatrixSampleData( new ArraySampleData( stereo, 2, 44100, len ), matrix );
+			short[] outputSamples = new ArraySampleData( sampleData ).getArray();
+			for( int idx = 0; idx < expected.length; idx++ ) {
+				if( Math.abs( outputSamples[ idx ] - expected[ idx ] ) > tolerance ) {
+					throw new Exception( "Channel matrix output differs." );
+				}
+			}
+		}
+		short[] mono = new ArraySampleData( ChannelMatrixSampleData.extract( new ArraySampleData( stereo, 2, 44100, len ), 1 ) ).getArray();
+		short[] upmixed = new ArraySampleData( ChannelMatrixSampleData.upmix( new ArraySampleData( mono, 1, 44100, len ), 2 ) ).getArray();
+		for( int idx = 0; idx < len; idx++ ) {
+			if( mono[ idx ] != stereo[ idx * 2 + 1 ] || upmixed[ idx * 2 ] != mono[ idx ] || upmixed[ idx * 2 + 1 ] != mono[ idx ] ) {
+				throw new Exception( "Channel extraction or upmix differs." );
+			}
+		}
+	}
+
+	public static void testTimeline( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		File wavFile = File.createTempFile( "test", ".wav" );
+		File adpsFile = File.createTempFile( "test", ".adps" );
+		try {
+			try( FileOutputStream fos = new FileOutputStream( wavFile ) ) {
+				WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), fos );
+			}
+			try( FileOutputStream fos = new FileOutputStream( adpsFile ) ) {
+				SeekableAdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), fos, 1000 );
+			}
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+			byte[] adpcm = os.toByteArray();
+			short[] adpcmSamples;
+			try( SeekableAdpcmSampleData sampleData = new SeekableAdpcmSampleData( adpsFile ) ) {
+				adpcmSamples = new ArraySampleData( sampleData ).getArray();
+			}
+			final int[] opened = new int[ 1 ];
+			final TimelineSampleData.Source adps = TimelineSampleData.open( adpsFile );
+			TimelineSampleData.Source counted = new TimelineSampleData.Source() {
+				public SampleData open() throws Exception {
+					opened[ 0 ]++;
+					return adps.open();
+				}
+			};
+			// Segments of ( source, offset, length ), with a null source for silence.
+			short[][] sources = { inputSamples, null, adpcmSamples, inputSamples, adpcmSamples };
+			int[] offsets = { 100, 0, 1001, 50000, 7 };
+			int[] lengths = { 1000, 37, 777, len - 50000, 3333 };
+			TimelineSampleData timeline = new TimelineSampleData( channels, 44100 );
+			timeline.append( TimelineSampleData.open( wavFile ), offsets[ 0 ], lengths[ 0 ] );
+			timeline.appendSilence( lengths[ 1 ] );
+			timeline.append( counted, offsets[ 2 ], lengths[ 2 ] );
+			timeline.append( TimelineSampleData.open( wavFile ), offsets[ 3 ], -1 );
+			// Not seekable, so skipped by reading.
+			timeline.append( new AdpcmSampleData( new ByteArrayInputStream( adpcm ), channels, 44100, len ), offsets[ 4 ], lengths[ 4 ] );
+			short[] expected = new short[ timeline.getNumSamples() * channels ];
+			for( int seg = 0, pos = 0; seg < sources.length; pos += lengths[ seg++ ] ) {
+				if( sources[ seg ] != null ) {
+					System.arraycopy( sources[ seg ], offsets[ seg ] * channels, expected, pos * channels, lengths[ seg ] * channels );
+				}
+			}
+			try {
+				if( !java.util.Arrays.equals( new ArraySampleData( timeline ).getArray(), expected ) || opened[ 0 ] != 1 ) {
+					throw new Exception( "Timeline output differs." );
+				}
+				// Seek to odd positions within the seekable segments and read in small odd lengths.
+				short[] outputBuf = new short[ 5 * channels ];
+				for( int offset : new int[] { 1037 + 99, 1, 1900, 51000, 1037 + 777 - 2 } ) {
+					timeline.seek( offset );
+					for( int idx = 0; idx < 10 && timeline.getSamplesRemaining() > 0; idx++ ) {
+						int count = timeline.getSamples( outputBuf, 0, 5 );
+						for( int sample = 0; sample < count * channels; sample++ ) {
+							if( outputBuf[ sample ] != expected[ offset * channels + sample ] ) {
+								throw new Exception( "Timeline output differs after seek to " + offset );
+							}
+						}
+						offset += count;
+					}
+				}
+			} finally {
+				timeline.close();
+			}
+		} finally {
+			wavFile.delete();
+			adpsFile.delete();
+		}
+	}
+
+	public static void testAnalysis( int len ) throws Exception {
+		// A 997hz sine at -20dBFS in both channels has a loudness of -20 LUFS.
+		// The second channel has a clipped DC offset of 10000 for the first 1000 samples.
+		short[] inputSamples = new short[ len * 2 ];
+		double amplitude = 32768 * Math.pow( 10, -20 / 20.0 );
+		for( int idx = 0; idx < len; idx++ ) {
+			short amp = ( short ) Math.round( amplitude * Math.sin( 2 * Math.PI * 997 * idx / 48000 ) );
+			inputSamples[ idx * 2 ] = amp;
+			inputSamples[ idx * 2 + 1 ] = idx < 1000 ? 32767 : amp;
+		}
+		final int blockSamples = 4801;
+		final short[] blockMin = new short[ len / blockSamples + 1 ], blockMax = new short[ blockMin.length ];
+		final int[] numBlocks = new int[ 1 ];
+		AnalysisSampleData analysis = new AnalysisSampleData( new ArraySampleData( inputSamples, 2, 48000, len ), blockSamples,
+			new AnalysisSampleData.BlockListener() {
+				public void block( long position, int length, short[] min, short[] max, float[] rms ) {
+					if( position != ( long ) numBlocks[ 0 ] * blockSamples || length != ( position + blockSamples > len ? len - position : blockSamples ) ) {
+						throw new IllegalStateException( "Incorrect block position." );
+					}
+					blockMin[ numBlocks[ 0 ] ] = min[ 0 ];
+					blockMax[ numBlocks[ 0 ]++ ] = max[ 1 ];
+				}
+			} );
+		short[] outputSamples = new short[ len * 2 ];
+		int offset = 0;
+		while( analysis.getSamplesRemaining() > 0 ) {
+			offset += analysis.getSamples( outputSamples, offset, 1000 < len - offset ? 1000 : len - offset );
+		}
+		if( !java.util.Arrays.equals( outputSamples, inputSamples ) || numBlocks[ 0 ] != blockMin.length ) {
+			throw new Exception( "Analysis output differs." );
+		}
+		for( int block = 0; block < numBlocks[ 0 ]; block++ ) {
+			int min = 0, max = -32768;
+			for( int idx = block * blockSamples; idx < len && idx < ( block + 1 ) * blockSamples; idx++ ) {
+				min = Math.min( min, inputSamples[ idx * 2 ] );
+				max = Math.max( max, inputSamples[ idx * 2 + 1 ] );
+			}
+			if( blockMin[ block ] != min || blockMax[ block ] != max ) {
+				throw new Exception( "Incorrect block summary." );
+			}
+		}
+		double loudness = analysis.getIntegratedLoudness();
+		if( Math.abs( loudness + 20 ) > 0.1 ) {
+			throw new Exception( "Incorrect loudness: " + loudness );
+		}
+		if( analysis.getPeak( 0 ) != Math.round( amplitude ) || analysis.getPeak( 1 ) != 32767 || analysis.getClipCount( 1 ) != 1000
+			|| analysis.getClipCount( 0 ) != 0 || Math.abs( analysis.getRms( 0 ) - amplitude / Math.sqrt( 2 ) ) > 1
+			|| Math.abs( analysis.getDcOffset( 0 ) ) > 1 || Math.abs( analysis.getDcOffset( 1 ) - 1000 * 32767.0 / len ) > 1 ) {
+			throw new Exception( "Incorrect levels." );
+		}
+		// A sine at a quarter of the sample rate, sampled 45 degrees from its peaks.
+		for( int idx = 0; idx < len * 2; idx++ ) {
+			inputSamples[ idx ] = ( short ) Math.round( 16384 * Math.sin( Math.PI * ( idx / 2 ) / 2 + Math.PI / 4 ) );
+		}
+		analysis = new AnalysisSampleData( new ArraySampleData( inputSamples, 2, 48000, len ) );
+		new ArraySampleData( analysis );
+		if( analysis.getPeak( 0 ) > 11586 || Math.abs( AnalysisSampleData.toDecibels( analysis.getTruePeak( 1 ) / 16384 * 32768 ) ) > 0.2 ) {
+			throw new Exception( "Incorrect true peak: " + analysis.getTruePeak( 1 ) );
+		}
+	}
+
+	public static void testWaveformOverview( int len, int channels, int baseSamples ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		File wavFile = File.createTempFile( "test", ".wav" );
+		File adpsFile = File.createTempFile( "test", ".adps" );
+		File overviewFile = File.createTempFile( "test", ".wov" );
+		try {
+			try( FileOutputStream fos = new FileOutputStream( wavFile ) ) {
+				WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), fos );
+			}
+			try( FileOutputStream fos = new FileOutputStream( adpsFile ) ) {
+				SeekableAdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), fos, 4096 );
+			}
+			// The parallel overview of a seekable source is identical to the streaming overview.
+			for( File file : new File[] { wavFile, adpsFile } ) {
+				SampleData sampleData = TimelineSampleData.open( file ).open();
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				WaveformOverview.write( new ArraySampleData( sampleData ), expected, baseSamples );
+				if( sampleData instanceof AutoCloseable ) {
+					( ( AutoCloseable ) sampleData ).close();
+				}
+				try( FileOutputStream fos = new FileOutputStream( overviewFile ) ) {
+					WaveformOverview.write( TimelineSampleData.open( file ), fos, baseSamples );
+				}
+				if( !java.util.Arrays.equals( java.nio.file.Files.readAllBytes( overviewFile.toPath() ), expected.toByteArray() ) ) {
+					throw new Exception( "Parallel waveform overview differs." );
+				}
+			}
+			try( FileOutputStream fos = new FileOutputStream( overviewFile ) ) {
+				WaveformOverview.write( TimelineSampleData.open( wavFile ), fos, baseSamples );
+			}
+			WaveformOverview overview = new WaveformOverview( overviewFile );
+			if( overview.getNumSamples() != len || overview.getNumChannels() != channels || overview.getNumEntries( overview.getNumLevels() - 1 ) != 1 ) {
+				throw new Exception( "Incorrect waveform overview header." );
+			}
+			// Pixels of whole entries at each level, and of partial entries at the finest level.
+			int channel = channels - 1;
+			for( int samplesPerPixel : new int[] { baseSamples / 3, baseSamples, baseSamples * 4, baseSamples * 64, len } ) {
+				int numPixels = 100;
+				long start = samplesPerPixel < baseSamples ? baseSamples * 7 : 0;
+				short[] min = new short[ numPixels ], max = new short[ numPixels ];
+				overview.getRange( channel, start, start + ( long ) samplesPerPixel * numPixels, min, max, numPixels );
+				for( int pixel = 0; pixel < numPixels; pixel++ ) {
+					long pixelStart = start + ( long ) pixel * samplesPerPixel, pixelEnd = pixelStart + samplesPerPixel;
+					// Pixels show whole entries.
+					pixelStart = pixelStart / baseSamples * baseSamples;
+					pixelEnd = ( pixelEnd + baseSamples - 1 ) / baseSamples * baseSamples;
+					int expectedMin = 0, expectedMax = 0;
+					if( start + ( long ) pixel * samplesPerPixel < len ) {
+						expectedMin = Short.MAX_VALUE;
+						expectedMax = Short.MIN_VALUE;
+						for( long idx = pixelStart; idx < pixelEnd && idx < len; idx++ ) {
+							expectedMin = Math.min( expectedMin, inputSamples[ ( int ) idx * channels + channel ] );
+							expectedMax = Math.max( expectedMax, inputSamples[ ( int ) idx * channels + channel ] );
+						}
+					}
+					if( min[ pixel ] != expectedMin || max[ pixel ] != expectedMax ) {
+						throw new Exception( "Waveform overview range differs at " + samplesPerPixel + " samples per pixel." );
+					}
+				}
+			}
+		} finally {
+			wavFile.delete();
+			adpsFile.delete();
+			overviewFile.delete();
+		}
+	}
+
+	public static void testParallelEncoder( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		File wavFile = File.createTempFile( "test", ".wav" );
+		File outputFile = File.createTempFile( "test", ".pcm" );
+		try {
+			try( FileOutputStream fos = new FileOutputStream( wavFile ) ) {
+				WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), fos );
+			}
+			for( int codec : new int[] { ParallelEncoder.EIGHT_BIT, ParallelEncoder.COMPRESSED } ) {
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				expected.write( new byte[] { ( byte ) channels, ( byte ) ( 44100 >> 16 ), ( byte ) ( 44100 >> 8 ), ( byte ) 44100 } );
+				if( codec == ParallelEncoder.EIGHT_BIT ) {
+					EightBitSampleData.encode( new MappedWavSampleData( wavFile ), expected );
+				} else {
+					CompressedSampleData.encode( new MappedWavSampleData( wavFile ), expected );
+				}
+				// A short warm-up, after which some segments must be encoded again.
+				for( int warmupSamples : new int[] { 8192, 4 } ) {
+					int reencoded = ParallelEncoder.encode( wavFile, outputFile, codec, 1, warmupSamples );
+					if( !java.util.Arrays.equals( java.nio.file.Files.readAllBytes( outputFile.toPath() ), expected.toByteArray() ) ) {
+						throw new Exception( "Parallel encoder output differs from serial encoder." );
+					}
+					if( codec == ParallelEncoder.COMPRESSED && warmupSamples < 16 && reencoded < 1 ) {
+						throw new Exception( "Parallel encoder state not checked." );
+					}
+				}
+			}
+		} finally {
+			wavFile.delete();
+			outputFile.delete();
+		}
+	}
+
+	public static void testBatchTranscoder( int len, int channels ) throws Exception {
+		File dir = java.nio.file.Files.createTempDirectory( "test" ).toFile();
+		try {
+			// Files of the same name in different directories.
+			File inputDir = new File( dir, "input" ), outputDir = new File( dir, "output" );
+			File[] inputFiles = { new File( inputDir, "a/take1.wav" ), new File( inputDir, "b/take1.wav" ), new File( inputDir, "take2.wav" ) };
+			short[][] inputSamples = new short[ inputFiles.length ][];
+			for( int idx = 0; idx < inputFiles.length; idx++ ) {
+				inputSamples[ idx ] = Benchmark.testSignal( len + idx, channels );
+				inputFiles[ idx ].getParentFile().mkdirs();
+				try( FileOutputStream fos = new FileOutputStream( inputFiles[ idx ] ) ) {
+					WavSampleData.writeWav( new ArraySampleData( inputSamples[ idx ], channels, 44100, len + idx ), fos );
+				}
+			}
+			BatchTranscoder transcoder = new BatchTranscoder( "lossless" );
+			java.util.List<File> inputs = new java.util.ArrayList<File>(), outputs = new java.util.ArrayList<File>();
+			transcoder.addDirectory( inputDir, outputDir, inputs, outputs );
+			transcoder.run( inputs, outputs, 2 );
+			File[] expected = { new File( outputDir, "a/take1.lsl" ), new File( outputDir, "b/take1.lsl" ), new File( outputDir, "take2.lsl" ) };
+			checkBatchOutputs( transcoder, expected, inputSamples );
+			// The manifest, with relative paths kept within the output directory.
+			File manifest = new File( dir, "manifest.txt" );
+			java.nio.file.Files.write( manifest.toPath(), java.util.Arrays.asList(
+				inputFiles[ 0 ].getPath(), inputFiles[ 1 ].getPath(), inputFiles[ 2 ].getPath() ) );
+			outputDir = new File( dir, "manifest" );
+			inputs.clear();
+			outputs.clear();
+			transcoder.addManifest( manifest, outputDir, inputs, outputs );
+			transcoder.run( inputs, outputs, 2 );
+			for( int idx = 0; idx < inputFiles.length; idx++ ) {
+				java.nio.file.Path path = inputFiles[ idx ].toPath().toAbsolutePath();
+				expected[ idx ] = new File( new File( outputDir, path.getRoot().relativize( path.getParent() ).toString() ),
+					transcoder.getOutputName( inputFiles[ idx ].getName() ) );
+			}
+			checkBatchOutputs( transcoder, expected, inputSamples );
+			// Outputs that would overwrite an input, or another output, are refused before anything is written.
+			long inputLength = inputFiles[ 0 ].length();
+			BatchTranscoder filter = new BatchTranscoder( "quantize" );
+			inputs.clear();
+			outputs.clear();
+			filter.addDirectory( inputDir, inputDir, inputs, outputs );
+			try {
+				filter.run( inputs, outputs, 2 );
+				throw new Exception( "Output overwriting input not refused." );
+			} catch( IllegalArgumentException e ) {
+			}
+			try {
+				filter.run( java.util.Arrays.asList( inputFiles[ 0 ], inputFiles[ 1 ] ), java.util.Arrays.asList( expected[ 2 ], expected[ 2 ] ), 2 );
+				throw new Exception( "Colliding outputs not refused." );
+			} catch( IllegalArgumentException e ) {
+			}
+			if( inputFiles[ 0 ].length() != inputLength ) {
+				throw new Exception( "Input file modified." );
+			}
+			// A failed job leaves no output. The ADPCM header cannot store more than 127 channels,
+			// and the header of an invalid WAV file is only read after the output is created.
+			File failDir = new File( dir, "fail" );
+			failDir.mkdirs();
+			try( FileOutputStream fos = new FileOutputStream( new File( failDir, "wide.wav" ) ) ) {
+				WavSampleData.writeWav( new ArraySampleData( new short[ 128 * 10 ], 128, 44100, 10 ), fos );
+			}
+			java.nio.file.Files.write( new File( failDir, "invalid.wav" ).toPath(), new byte[ 100 ] );
+			BatchTranscoder adpcm = new BatchTranscoder( "adpcm" );
+			inputs.clear();
+			outputs.clear();
+			adpcm.addDirectory( failDir, new File( dir, "failed" ), inputs, outputs );
+			adpcm.run( inputs, outputs, 2 );
+			if( adpcm.getNumErrors() != 2 || outputs.get( 0 ).exists() || outputs.get( 1 ).exists() ) {
+				throw new Exception( "Partial output not deleted." );
+			}
+		} finally {
+			deleteTree( dir );
+		}
+	}
+
+	private static void checkBatchOutputs( BatchTranscoder transcoder, File[] outputFiles, short[][] expected ) throws Exception {
+		if( transcoder.getNumErrors() > 0 ) {
+			throw new Exception( "Batch transcoder failed." );
+		}
+		for( int idx = 0; idx < outputFiles.length; idx++ ) {
+			short[] outputSamples;
+			try( java.io.InputStream inputStream = new java.io.FileInputStream( outputFiles[ idx ] ) ) {
+				outputSamples = new ArraySampleData( new LosslessSampleData( inputStream ) ).getArray();
+			}
+			if( !java.util.Arrays.equals( outputSamples, expected[ idx ] ) ) {
+				throw new Exception( "Batch transcoder output differs: " + outputFiles[ idx ] );
+			}
+		}
+	}
+
+	private static void deleteTree( File file ) {
+		File[] files = file.listFiles();
+		if( files != null ) {
+			for( File child : files ) {
+				deleteTree( child );
+			}
+		}
+		file.delete();
+	}
+
+	public static void testSeekableAdpcm( int len, int channels, int keyframeSamples ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		short[] expected = new ArraySampleData( new AdpcmSampleData(
+			new ByteArrayInputStream( os.toByteArray() ), channels, 44100, len ) ).getArray();
+		File file = File.createTempFile( "test", ".adps" );
+		try {
+			try( FileOutputStream fos = new FileOutputStream( file ) ) {
+				SeekableAdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), fos, keyframeSamples );
+			}
+			try( SeekableAdpcmSampleData sampleData = new SeekableAdpcmSampleData( file ) ) {
+				for( int offset : new int[] { len / 2 + 1, 0, keyframeSamples, len - 2 } ) {
+					sampleData.seek( offset );
+					offset = offset & -2;
+					short[] outputSamples = new ArraySampleData( sampleData ).getArray();
+					if( outputSamples.length != ( len - offset ) * channels ) {
+						throw new Exception( "Output length " + outputSamples.length + " should be " + ( len - offset ) * channels );
+					}
+					for( int idx = 0; idx < outputSamples.length; idx++ ) {
+						if( outputSamples[ idx ] != expected[ offset * channels + idx ] ) {
+							throw new Exception( "Seek to " + offset + " differs at index " + idx );
+						}
+					}
+				}
+			}
+			// A streamed WAV file of unknown length cannot be encoded.
+			os = new ByteArrayOutputStream();
+			WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+			byte[] wav = os.toByteArray();
+			java.nio.ByteBuffer.wrap( wav ).order( java.nio.ByteOrder.LITTLE_ENDIAN ).putInt( wav.length - len * channels * 2 - 4, -1 );
+			try {
+				SeekableAdpcmSampleData.encode( new WavSampleData( new ByteArrayInputStream( wav ) ), new ByteArrayOutputStream(), keyframeSamples );
+				throw new Exception( "Input of unknown length not rejected." );
+			} catch( IllegalArgumentException e ) {
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testFloatWavSampleData( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		inputSamples[ 0 ] = -32768;
+		inputSamples[ 1 ] = 32767;
+		for( int bits : new int[] { 16, 24, 32, -32 } ) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			FloatWavSampleData.writeWav( new FloatSampleDataAdapter( new ArraySampleData( inputSamples, channels, 44100, len ) ),
+				os, bits < 0 ? -bits : bits, bits < 0 );
+			FloatWavSampleData floatWav = new FloatWavSampleData( new ByteArrayInputStream( os.toByteArray() ) );
+			short[] outputSamples = new ArraySampleData( new ShortSampleDataAdapter( floatWav ) ).getArray();
+			if( !java.util.Arrays.equals( inputSamples, outputSamples ) ) {
+				throw new Exception( "Float WAV output differs for format " + bits );
+			}
+			if( bits == 24 ) {
+				outputSamples = new ArraySampleData( new WavSampleData( new ByteArrayInputStream( os.toByteArray() ) ) ).getArray();
+				if( !java.util.Arrays.equals( inputSamples, outputSamples ) ) {
+					throw new Exception( "24-bit WAV output differs." );
+				}
+			}
+		}
+	}
+
+	public static void testChannelParallel( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		byte[][] serial = encodeAll( inputSamples, len, channels );
+		ChannelExecutor.setParallelism( 4 );
+		try {
+			byte[][] parallel = encodeAll( inputSamples, len, channels );
+			for( int idx = 0; idx < serial.length; idx++ ) {
+				if( !java.util.Arrays.equals( serial[ idx ], parallel[ idx ] ) ) {
+					throw new Exception( "Parallel output " + idx + " differs from serial output." );
+				}
+			}
+		} finally {
+			ChannelExecutor.setParallelism( 0 );
+		}
+	}
+
+	public static void testBufferPool( int len, int channels ) throws Exception {
+		short[] buf = BufferPool.getShorts( 1000 );
+		BufferPool.release( buf );
+		if( buf.length < 1000 || BufferPool.getShorts( 1000 ) != buf ) {
+			throw new Exception( "Buffer not reused." );
+		}
+		BufferPool.release( buf );
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		byte[][] expected = encodeAll( inputSamples, len, channels );
+		int bufferSamples = BufferPool.getBufferSamples();
+		BufferPool.setBufferSamples( 1024 );
+		try {
+			byte[][] outputs = encodeAll( inputSamples, len, channels );
+			for( int idx = 0; idx < expected.length; idx++ ) {
+				// The noise-shaping state of EightBitSampleData restarts with each buffer.
+				if( idx != 1 && !java.util.Arrays.equals( expected[ idx ], outputs[ idx ] ) ) {
+					throw new Exception( "Output " + idx + " differs with small buffers." );
+				}
+			}
+		} finally {
+			BufferPool.setBufferSamples( bufferSamples );
+		}
+	}
+
+	public static void testWavWriter( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		java.io.File file = java.io.File.createTempFile( "wavwriter", ".wav" );
+		try {
+			try( WavWriter writer = new WavWriter( java.nio.channels.FileChannel.open( file.toPath(),
+					java.nio.file.StandardOpenOption.WRITE ), channels, 44100 ) ) {
+				for( int offset = 0; offset < len; offset += 777 ) {
+					writer.write( inputSamples, offset, Math.min( 777, len - offset ) );
+				}
+			}
+			try( java.io.InputStream is = new java.io.FileInputStream( file ) ) {
+				SampleData sampleData = new WavSampleData( is );
+				if( sampleData.getSamplesRemaining() != len ) {
+					throw new Exception( "Incorrect WAV length." );
+				}
+				if( !java.util.Arrays.equals( inputSamples, new ArraySampleData( sampleData ).getArray() ) ) {
+					throw new Exception( "WAV output differs." );
+				}
+			}
+		} finally {
+			file.delete();
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try( WavWriter writer = new WavWriter( os, channels, 44100 ) ) {
+			writer.write( new ArraySampleData( inputSamples, channels, 44100, len ) );
+		}
+		SampleData sampleData = new WavSampleData( new ByteArrayInputStream( os.toByteArray() ) );
+		short[] outputSamples = new short[ inputSamples.length ];
+		int offset = 0;
+		while( sampleData.getSamplesRemaining() > 0 ) {
+			offset += sampleData.getSamples( outputSamples, offset, len + 1 - offset );
+		}
+		if( offset != len || !java.util.Arrays.equals( inputSamples, outputSamples ) ) {
+			throw new Exception( "Streamed WAV output differs." );
+		}
+		// The unspecified length of a streamed file is not reported as a length.
+		byte[] streamed = os.toByteArray();
+		WavSampleData unknown = new WavSampleData( new ByteArrayInputStream( streamed ) );
+		if( unknown.getHeader().getNumSamples() != -1 || unknown.getHeader().getDataLength() != -1
+			|| unknown.getSamplesRemaining() != Integer.MAX_VALUE ) {
+			throw new Exception( "Unspecified WAV length not reported." );
+		}
+		if( !java.util.Arrays.equals( inputSamples, new ArraySampleData( unknown ).getArray() ) ) {
+			throw new Exception( "Streamed WAV input differs." );
+		}
+		// Rewriting a file of unknown length leaves the sizes unspecified.
+		os = new ByteArrayOutputStream();
+		WavSampleData.writeWav( new WavSampleData( new ByteArrayInputStream( streamed ) ), os );
+		if( !java.util.Arrays.equals( streamed, os.toByteArray() ) ) {
+			throw new Exception( "Rewritten streamed WAV differs." );
+		}
+		try {
+			LosslessSampleData.encode( new WavSampleData( new ByteArrayInputStream( streamed ) ), new ByteArrayOutputStream() );
+			throw new Exception( "Input of unknown length encoded." );
+		} catch( IllegalArgumentException e ) {
+			// Expected.
+		}
+	}
+
+	public static void testWavHeader( int len, int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		WavSampleData.writeWav( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		byte[] wav = os.toByteArray();
+		// Insert an odd-length LIST chunk before the data, and append a cue chunk.
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate( wav.length + 20 + 12 ).order( java.nio.ByteOrder.LITTLE_ENDIAN );
+		buf.put( wav, 0, 36 ).put( "LIST".getBytes( "US-ASCII" ) ).putInt( 11 ).put( new byte[ 12 ] );
+		buf.put( wav, 36, wav.length - 36 ).put( "cue ".getBytes( "US-ASCII" ) ).putInt( 4 ).putInt( 0 );
+		buf.putInt( 4, buf.capacity() - 8 );
+		final int[] reads = new int[ 1 ];
+		java.io.InputStream is = new ByteArrayInputStream( buf.array() ) {
+			public int read( byte[] b, int off, int len ) {
+				reads[ 0 ]++;
+				return super.read( b, off, len );
+			}
+		};
+		WavSampleData sampleData = new WavSampleData( is );
+		if( reads[ 0 ] != 1 || sampleData.getHeader().getChunks().size() != 3 ) {
+			throw new Exception( "Header not parsed in one read." );
+		}
+		if( !java.util.Arrays.equals( inputSamples, new ArraySampleData( sampleData ).getArray() ) ) {
+			throw new Exception( "WAV output differs." );
+		}
+		java.io.File file = java.io.File.createTempFile( "wavheader", ".wav" );
+		try {
+			java.nio.file.Files.write( file.toPath(), buf.array() );
+			try( java.nio.channels.SeekableByteChannel channel = java.nio.file.Files.newByteChannel( file.toPath() ) ) {
+				WavHeader header = new WavHeader( channel );
+				WavHeader.Chunk list = header.getChunk( "LIST" ), cue = header.getChunk( "cue " );
+				if( list == null || list.getOffset() != 44 || list.getLength() != 11 || cue == null
+					|| cue.getOffset() != buf.capacity() - 4 || header.getDataOffset() != 64 ) {
+					throw new Exception( "Incorrect chunk directory." );
+				}
+			}
+			if( !java.util.Arrays.equals( inputSamples, new ArraySampleData( new MappedWavSampleData( file ) ).getArray() ) ) {
+				throw new Exception( "Mapped WAV output differs." );
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testResample( int inputRate, int outputRate, int channels ) throws Exception {
+		int len = inputRate / 2;
+		short[] inputSamples = new short[ len * channels ];
+		for( int idx = 0; idx < inputSamples.length; idx++ ) {
+			inputSamples[ idx ] = ( short ) ( Math.sin( ( idx / channels ) * 2 * Math.PI * 1000 / inputRate ) * 16384 );
+		}
+		for( int quality = ResampledSampleData.QUALITY_LOW; quality <= ResampledSampleData.QUALITY_HIGH; quality++ ) {
+			ResampledSampleData resampled = new ResampledSampleData( new ArraySampleData( inputSamples, channels, inputRate, len ), outputRate, quality );
+			int outputLen = ( int ) ( ( ( long ) len * outputRate + inputRate - 1 ) / inputRate );
+			if( resampled.getSamplesRemaining() != outputLen || resampled.getSampleRate() != outputRate ) {
+				throw new Exception( "Incorrect resampled length." );
+			}
+			short[] outputSamples = new ArraySampleData( resampled ).getArray();
+			// Compare with the ideal output, excluding the edges.
+			double signal = 0, noise = 0;
+			for( int idx = 1000 * channels; idx < ( outputLen - 1000 ) * channels; idx++ ) {
+				double expected = Math.sin( ( idx / channels ) * 2 * Math.PI * 1000 / outputRate ) * 16384;
+				signal += expected * expected;
+				noise += ( outputSamples[ idx ] - expected ) * ( outputSamples[ idx ] - expected );
+			}
+			if( 10 * Math.log10( signal / noise ) < 60 ) {
+				throw new Exception( "Resampled SNR too low: " + 10 * Math.log10( signal / noise ) );
+			}
+			// The output must not depend on the size of each read.
+			resampled = new ResampledSampleData( new ArraySampleData( inputSamples, channels, inputRate, len ), outputRate, quality );
+			short[] chunkedSamples = new short[ outputSamples.length ];
+			int offset = 0;
+			while( resampled.getSamplesRemaining() > 0 ) {
+				offset += resampled.getSamples( chunkedSamples, offset, 1 + offset % 97 );
+			}
+			if( !java.util.Arrays.equals( outputSamples, chunkedSamples ) ) {
+				throw new Exception( "Resampled output depends on read size." );
+			}
+		}
+	}
+
+	public static void testCompressedTable( int len ) throws Exception {
+		// Full-scale square waves, steps and noise, which produce the largest differences.
+		short[] inputSamples = new short[ len ];
+		int rand = 1;
+		for( int idx = 0; idx < len; idx++ ) {
+			rand = rand * 1103515245 + 12345;
+			int period = 1 + ( idx >> 12 );
+			inputSamples[ idx ] = ( short ) ( idx < len / 2 ? ( ( idx / period ) % 2 == 0 ? 32767 : -32768 ) : rand >> 16 );
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		CompressedSampleData.encode( new ArraySampleData( inputSamples, 1, 44100, len ), expected, false );
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		CompressedSampleData.encode( new ArraySampleData( inputSamples, 1, 44100, len ), output );
+		if( !java.util.Arrays.equals( expected.toByteArray(), output.toByteArray() ) ) {
+			throw new Exception( "Table encoder output differs." );
+		}
+		// The table is only valid if cbrt() is monotonic, so that no encoder state can be missed.
+		for( int x = -( 1 << 22 ); x < ( 1 << 22 ); x += 32 ) {
+			if( CompressedSampleData.cbrt( x + 32 ) < CompressedSampleData.cbrt( x ) ) {
+				throw new Exception( "Cube root not monotonic at " + x );
+			}
+		}
+	}
+
+	private static byte[][] encodeAll( short[] inputSamples, int len, int channels ) throws Exception {
+		byte[][] outputs = new byte[ 5 ][];
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		CompressedSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		outputs[ 0 ] = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		EightBitSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		outputs[ 1 ] = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		AdpcmSampleData.encode( new ArraySampleData( inputSamples, channels, 44100, len ), os );
+		outputs[ 2 ] = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		WavSampleData.writeWav( new AdpcmSampleData( new ByteArrayInputStream( outputs[ 2 ] ), channels, 44100, len ), os );
+		outputs[ 3 ] = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		WavSampleData.writeWav( new QuantizedSampleData( new ArraySampleData( inputSamples, channels, 44100, len ) ), os );
+		outputs[ 4 ] = os.toByteArray();
+		return outputs;
+	}
+
+	public static void testPipeline( int len, final int channels ) throws Exception {
+		short[] inputSamples = Benchmark.testSignal( len, channels );
+		short[] expected = new ArraySampleData( new QuantizedSampleData( new NoiseReduction(
+			new ArraySampleData( inputSamples, channels, 44100, len ), 54 ) ) ).getArray();
+		try( Pipeline pipeline = new Pipeline( new ArraySampleData( inputSamples, channels, 44100, len ), 1024, 3 ) ) {
+			pipeline.then( new Pipeline.Stage() {
+				public SampleData apply( SampleData input ) {
+					return new NoiseReduction( input, 54 );
+				}
+			} ).then( new Pipeline.Stage() {
+				public SampleData apply( SampleData input ) {
+					return new QuantizedSampleData( input );
+				}
+			} );
+			short[] outputSamples = new ArraySampleData( pipeline.getOutput() ).getArray();
+			if( !java.util.Arrays.equals( expected, outputSamples ) ) {
+				throw new Exception( "Pipeline output differs." );
+			}
+		}
+		// An error on the input thread is thrown to the consumer.
+		SampleData failing = new ArraySampleData( inputSamples, channels, 44100, len ) {
+			public int getSamples( short[] outputBuf, int offset, int count ) {
+				if( getSamplesRemaining() < 50000 ) {
+					throw new AssertionError( "Input failed." );
+				}
+				return super.getSamples( outputBuf, offset, count );
+			}
+		};
+		try( PipelinedSampleData pipelined = new PipelinedSampleData( failing, 1024, 3 ) ) {
+			new ArraySampleData( pipelined );
+			throw new Exception( "Pipeline input error not thrown." );
+		} catch( java.util.concurrent.ExecutionException e ) {
+			if( !( e.getCause() instanceof AssertionError ) ) {
+				throw e;
+			}
+		}
+	}
 }
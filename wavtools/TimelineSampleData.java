@@ -0,0 +1,336 @@
+
+package wavtools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	Lazy timeline of cropped segments of other sources and gaps of silence, played in sequence.
+	Nothing is read until the timeline is, and only the samples within each crop are decoded.
+	A segment may be a Source, which is opened when the segment is reached and closed
+	( if it implements AutoCloseable ) when the segment ends, so that a timeline of hundreds
+	of files only has one open at a time. Sources that implement SeekableSampleData, such as
+	MappedWavSampleData and SeekableAdpcmSampleData, are positioned by seeking,
+	others by reading and discarding the samples before the crop.
+	A segment may also be an existing SampleData, which is read from its current position and
+	not closed. It can only be read once, unless it implements SeekableSampleData.
+	Segments that end before their specified length are padded with silence.
+	All segments must have the channel count and sample rate of the timeline.
+*/
+public class TimelineSampleData implements SeekableSampleData, Closeable {
+	private static final int CARRY_SAMPLES = 16;
+
+	/* Opens the SampleData of a segment when it is reached. */
+	public interface Source {
+		public SampleData open() throws Exception;
+	}
+
+	private static class Segment {
+		private Source source;
+		private SampleData sampleData;
+		private int offset, length, consumed;
+	}
+
+	private int numChannels, sampleRate, numSamples;
+	private List<Segment> segments = new ArrayList<Segment>();
+	private int segmentIdx, segmentPosition, position;
+	private SampleData current;
+	private short[] carry;
+	private int carryIdx, carryCount;
+
+	public TimelineSampleData( int numChannels, int sampleRate ) {
+		if( numChannels < 1 || sampleRate < 1 ) {
+			throw new IllegalArgumentException( "Invalid format." );
+		}
+		this.numChannels = numChannels;
+		this.sampleRate = sampleRate;
+		carry = new short[ CARRY_SAMPLES * numChannels ];
+	}
+
+	/* Return a Source for the specified file, which is mapped if it is a WAV file,
+	   or opened as a SeekableAdpcmSampleData if it is a seekable ADPCM file ( .adps ). */
+	public static Source open( final File file ) {
+		final String name = file.getName().toLowerCase();
+		if( !name.endsWith( ".wav" ) && !name.endsWith( ".adps" ) ) {
+			throw new IllegalArgumentException( "Unsupported file type: " + file.getName() );
+		}
+		return new Source() {
+			public SampleData open() throws IOException {
+				if( name.endsWith( ".wav" ) ) {
+					return new MappedWavSampleData( file );
+				}
+				return new SeekableAdpcmSampleData( file );
+			}
+		};
+	}
+
+	/* Append length samples of the specified source, starting at the specified offset.
+	   The source is opened here to determine its length if length is negative. */
+	public TimelineSampleData append( Source source, int offset, int length ) throws Exception {
+		if( length < 0 ) {
+			SampleData sampleData = source.open();
+			try {
+				length = sampleData.getSamplesRemaining() - offset;
+			} finally {
+				if( sampleData instanceof AutoCloseable ) {
+					( ( AutoCloseable ) sampleData ).close();
+				}
+			}
+		}
+		Segment segment = new Segment();
+		segment.source = source;
+		return append( segment, offset, length );
+	}
+
+	/* Append length samples of the specified SampleData, starting at the specified offset
+	   from its current position. A negative length selects the remainder. */
+	public TimelineSampleData append( SampleData sampleData, int offset, int length ) {
+		checkFormat( sampleData );
+		if( length < 0 ) {
+			length = sampleData.getSamplesRemaining() - offset;
+		}
+		Segment segment = new Segment();
+		segment.sampleData = sampleData;
+		if( sampleData instanceof SeekableSampleData ) {
+			SeekableSampleData seekable = ( SeekableSampleData ) sampleData;
+			offset += seekable.getNumSamples() - seekable.getSamplesRemaining();
+		}
+		return append( segment, offset, length );
+	}
+
+	/* Append the remainder of the specified SampleData. */
+	public TimelineSampleData append( SampleData sampleData ) {
+		return append( sampleData, 0, -1 );
+	}
+
+	/* Append length samples of silence. */
+	public TimelineSampleData appendSilence( int length ) {
+		return append( new Segment(), 0, length );
+	}
+
+	private TimelineSampleData append( Segment segment, int offset, int length ) {
+		if( offset < 0 || length < 0 ) {
+			throw new IllegalArgumentException( "Invalid range." );
+		}
+		if( ( long ) numSamples + length > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Timeline too long." );
+		}
+		segment.offset = offset;
+		segment.length = length;
+		segments.add( segment );
+		numSamples += length;
+		return this;
+	}
+
+	private void checkFormat( SampleData sampleData ) {
+		if( sampleData.getNumChannels() != numChannels || sampleData.getSampleRate() != sampleRate ) {
+			throw new IllegalArgumentException( "Segment format differs from timeline." );
+		}
+	}
+
+	/* Return the number of segments, including silence. */
+	public int getNumSegments() {
+		return segments.size();
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getSamplesRemaining() {
+		return numSamples - position;
+	}
+
+	/* Set the position of the next sample to be read. The current source is closed,
+	   and the source of the segment containing the position is opened when it is read. */
+	public void seek( int sampleOffset ) throws Exception {
+		if( sampleOffset < 0 || sampleOffset > numSamples ) {
+			throw new IllegalArgumentException( "Offset out of range: " + sampleOffset );
+		}
+		closeSegment();
+		position = sampleOffset;
+		segmentIdx = 0;
+		while( segmentIdx < segments.size() && sampleOffset >= segments.get( segmentIdx ).length ) {
+			sampleOffset -= segments.get( segmentIdx++ ).length;
+		}
+		segmentPosition = sampleOffset;
+	}
+
+	public int getSamples( short[] outputBuf, int offset, int count ) throws Exception {
+		if( count > numSamples - position ) {
+			count = numSamples - position;
+		}
+		int length = 0;
+		while( length < count ) {
+			Segment segment = segments.get( segmentIdx );
+			int samples = count - length;
+			if( samples > segment.length - segmentPosition ) {
+				samples = segment.length - segmentPosition;
+			}
+			if( samples > 0 ) {
+				if( current == null && segment.length > 0 && ( segment.source != null || segment.sampleData != null ) ) {
+					openSegment( segment );
+				}
+				int read = current != null ? read( segment, outputBuf, offset + length, samples ) : 0;
+				if( read < 1 ) {
+					// Silence, or a source that ended early.
+					java.util.Arrays.fill( outputBuf, ( offset + length ) * numChannels, ( offset + length + samples ) * numChannels, ( short ) 0 );
+					read = samples;
+				}
+				length += read;
+				segmentPosition += read;
+				position += read;
+			}
+			if( segmentPosition >= segment.length && segmentIdx < segments.size() - 1 ) {
+				closeSegment();
+				segmentIdx++;
+				segmentPosition = 0;
+			}
+		}
+		return count;
+	}
+
+	/* Open the current segment and skip to the segment position. */
+	private void openSegment( Segment segment ) throws Exception {
+		SampleData sampleData = segment.sampleData;
+		if( segment.source != null ) {
+			sampleData = segment.source.open();
+			segment.consumed = 0;
+		}
+		current = sampleData;
+		carryCount = 0;
+		try {
+			checkFormat( sampleData );
+			int target = segment.offset + segmentPosition;
+			if( sampleData instanceof SeekableSampleData ) {
+				SeekableSampleData seekable = ( SeekableSampleData ) sampleData;
+				seekable.seek( target < seekable.getNumSamples() ? target : seekable.getNumSamples() );
+				segment.consumed = seekable.getNumSamples() - seekable.getSamplesRemaining();
+			}
+			if( target < segment.consumed ) {
+				throw new IllegalStateException( "Segment " + segmentIdx + " cannot be read again." );
+			}
+			skip( segment, target - segment.consumed );
+		} catch( Exception e ) {
+			closeSegment();
+			throw e;
+		}
+	}
+
+	/* Read and discard samples from the current source. */
+	private void skip( Segment segment, int count ) throws Exception {
+		if( count <= 0 ) {
+			return;
+		}
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] skipBuf = BufferPool.getShorts( bufSamples * numChannels );
+		try {
+			while( count > 0 ) {
+				int read = read( segment, skipBuf, 0, count < bufSamples ? count : bufSamples );
+				if( read < 1 ) {
+					break;
+				}
+				count -= read;
+			}
+		} finally {
+			BufferPool.release( skipBuf );
+		}
+	}
+
+	/* Read from the current source. Some sources, such as ADPCM, only return whole pairs of samples,
+	   so if a source returns nothing, a few samples are read into the carry buffer instead. */
+	private int read( Segment segment, short[] outputBuf, int offset, int count ) throws Exception {
+		if( carryCount < 1 ) {
+			int read = current.getSamples( outputBuf, offset, count );
+			if( read > 0 || current.getSamplesRemaining() < 1 ) {
+				segment.consumed += read > 0 ? read : 0;
+				return read;
+			}
+			carryIdx = 0;
+			carryCount = current.getSamples( carry, 0, CARRY_SAMPLES );
+			if( carryCount < 1 ) {
+				carryCount = 0;
+				return 0;
+			}
+		}
+		if( count > carryCount ) {
+			count = carryCount;
+		}
+		System.arraycopy( carry, carryIdx * numChannels, outputBuf, offset * numChannels, count * numChannels );
+		carryIdx += count;
+		carryCount -= count;
+		segment.consumed += count;
+		return count;
+	}
+
+	private void closeSegment() throws Exception {
+		SampleData sampleData = current;
+		current = null;
+		carryCount = 0;
+		if( sampleData instanceof AutoCloseable && segments.get( segmentIdx ).source != null ) {
+			( ( AutoCloseable ) sampleData ).close();
+		}
+	}
+
+	/* Close the source of the current segment, if open. */
+	public void close() throws IOException {
+		try {
+			closeSegment();
+		} catch( IOException | RuntimeException e ) {
+			throw e;
+		} catch( Exception e ) {
+			throw new IOException( e );
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length < 2 ) {
+			System.err.println( "Timeline editor." );
+			System.err.println( "Usage: java " + TimelineSampleData.class.getName() + " output.wav segment..." );
+			System.err.println( "  Each segment is input.wav|input.adps[:offset[:length]] or silence:length." );
+			System.err.println( "  The format of the first input is used for the output." );
+			System.exit( 0 );
+		}
+		TimelineSampleData timeline = null;
+		List<String[]> specs = new ArrayList<String[]>();
+		for( int idx = 1; idx < args.length; idx++ ) {
+			String[] spec = args[ idx ].split( ":" );
+			specs.add( spec );
+			if( timeline == null && !"silence".equals( spec[ 0 ] ) ) {
+				SampleData first = open( new File( spec[ 0 ] ) ).open();
+				timeline = new TimelineSampleData( first.getNumChannels(), first.getSampleRate() );
+				if( first instanceof AutoCloseable ) {
+					( ( AutoCloseable ) first ).close();
+				}
+			}
+		}
+		if( timeline == null ) {
+			throw new IllegalArgumentException( "No input files." );
+		}
+		for( String[] spec : specs ) {
+			if( "silence".equals( spec[ 0 ] ) ) {
+				timeline.appendSilence( Integer.parseInt( spec[ 1 ] ) );
+			} else {
+				int offset = spec.length > 1 ? Integer.parseInt( spec[ 1 ] ) : 0;
+				int length = spec.length > 2 ? Integer.parseInt( spec[ 2 ] ) : -1;
+				timeline.append( open( new File( spec[ 0 ] ) ), offset, length );
+			}
+		}
+		try( java.io.OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 0 ] ) ) ) {
+			WavSampleData.writeWav( timeline, outputStream );
+		} finally {
+			timeline.close();
+		}
+	}
+}
@@ -0,0 +1,352 @@
+
+package wavtools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+	WAV, WAVE_FORMAT_EXTENSIBLE and RF64 header parser.
+	The chunk directory is read through a buffer, so that a typical header is parsed
+	with a single read. The offset and length of every chunk (such as LIST, cue or bext)
+	are recorded, and their contents may be read without touching the audio data.
+*/
+public class WavHeader {
+	public static final int FORMAT_PCM = 1, FORMAT_FLOAT = 3, FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/* The minimum pushback buffer size of a stream passed to WavHeader( PushbackInputStream ). */
+	public static final int PUSHBACK_BYTES = 4096;
+
+	private static final String PCM_ID = "\u0001\u0000\u0000\u0000\u0000\u0000\u0010\u0000\u0080\u0000\u0000\u00AA\u0000\u0038\u009B\u0071";
+	private static final String FLOAT_ID = "\u0003\u0000\u0000\u0000\u0000\u0000\u0010\u0000\u0080\u0000\u0000\u00AA\u0000\u0038\u009B\u0071";
+
+	/* The position and length of a chunk. */
+	public static class Chunk {
+		private String id;
+		private long offset, length;
+
+		private Chunk( String id, long offset, long length ) {
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/* Return the four-character chunk identifier. */
+		public String getId() {
+			return id;
+		}
+
+		/* Return the offset of the chunk contents from the start of the file. */
+		public long getOffset() {
+			return offset;
+		}
+
+		/* Return the length of the chunk contents, excluding any pad byte. */
+		public long getLength() {
+			return length;
+		}
+	}
+
+	private List<Chunk> chunks = new ArrayList<Chunk>();
+	private ByteBuffer buffer;
+	private long bufferOffset;
+	private InputStream inputStream;
+	private SeekableByteChannel channel;
+	private boolean rf64, extensible;
+	private int format, numChannels, sampleRate, bytesPerFrame, bitsPerSample, channelMask;
+	private long dataOffset, dataLength = -1, ds64DataLength = -1;
+
+	/* Parse the header from the specified stream, which is left positioned at the start of the audio data.
+	   Chunks following the audio data are not included in the chunk directory.
+	   The stream must have a pushback buffer of at least PUSHBACK_BYTES. */
+	public WavHeader( PushbackInputStream inputStream ) throws IOException {
+		this.inputStream = inputStream;
+		byte[] buf = BufferPool.getBytes( PUSHBACK_BYTES );
+		try {
+			buffer = ByteBuffer.wrap( buf, 0, PUSHBACK_BYTES ).slice().order( ByteOrder.LITTLE_ENDIAN );
+			buffer.limit( 0 );
+			parse( false );
+			int dataIdx = ( int ) ( dataOffset - bufferOffset );
+			inputStream.unread( buf, dataIdx, buffer.limit() - dataIdx );
+		} finally {
+			BufferPool.release( buf );
+			buffer = null;
+			this.inputStream = null;
+		}
+	}
+
+	/* Parse the header and every chunk from the specified channel.
+	   The position of the channel is unspecified afterwards. */
+	public WavHeader( SeekableByteChannel channel ) throws IOException {
+		this.channel = channel;
+		byte[] buf = BufferPool.getBytes( PUSHBACK_BYTES );
+		try {
+			buffer = ByteBuffer.wrap( buf, 0, PUSHBACK_BYTES ).slice().order( ByteOrder.LITTLE_ENDIAN );
+			buffer.limit( 0 );
+			parse( true );
+		} finally {
+			BufferPool.release( buf );
+			buffer = null;
+			this.channel = null;
+		}
+	}
+
+	private void parse( boolean allChunks ) throws IOException {
+		if( !fill( 0, 12 ) ) {
+			throw new EOFException( "Unexpected end of file." );
+		}
+		String riffId = getChars( 0 );
+		rf64 = "RF64".equals( riffId );
+		if( !rf64 && !"RIFF".equals( riffId ) ) {
+			throw new IllegalArgumentException( "Riff header not found." );
+		}
+		if( !"WAVE".equals( getChars( 8 ) ) ) {
+			throw new IllegalArgumentException( "Wave header not found." );
+		}
+		long fileLength = channel != null ? channel.size() : Long.MAX_VALUE;
+		long position = 12;
+		while( position + 8 <= fileLength && fill( position, 8 ) ) {
+			String chunkId = getChars( position );
+			long chunkLength = getInt( position + 4 ) & 0xFFFFFFFFL;
+			position += 8;
+			if( "ds64".equals( chunkId ) && rf64 && chunkLength >= 24 ) {
+				fillChunk( position, 24 );
+				ds64DataLength = getLong( position + 8 );
+			} else if( "fmt ".equals( chunkId ) ) {
+				parseFormat( position, chunkLength );
+			} else if( "data".equals( chunkId ) ) {
+				if( bytesPerFrame < 1 ) {
+					throw new IllegalArgumentException( "Format header not found." );
+				}
+				dataOffset = position;
+				dataLength = chunkLength == 0xFFFFFFFFL ? ds64DataLength : chunkLength;
+				if( channel != null && ( dataLength < 0 || dataOffset + dataLength > fileLength ) ) {
+					// Unspecified length or truncated file.
+					dataLength = fileLength - dataOffset;
+				}
+				chunkLength = dataLength;
+			}
+			chunks.add( new Chunk( chunkId, position, chunkLength ) );
+			if( "data".equals( chunkId ) && ( !allChunks || dataLength < 0 ) ) {
+				return;
+			}
+			position += chunkLength + ( chunkLength & 1 );
+		}
+		if( dataLength < 0 ) {
+			throw new IllegalArgumentException( "Data chunk not found." );
+		}
+	}
+
+	private void parseFormat( long position, long chunkLength ) throws IOException {
+		if( chunkLength < 16 ) {
+			throw new IllegalArgumentException( "Invalid format header." );
+		}
+		fillChunk( position, chunkLength < 40 ? ( int ) chunkLength : 40 );
+		format = getShort( position );
+		numChannels = getShort( position + 2 );
+		sampleRate = getInt( position + 4 );
+		bytesPerFrame = getShort( position + 12 );
+		bitsPerSample = getShort( position + 14 );
+		if( format == FORMAT_EXTENSIBLE && chunkLength >= 40 ) {
+			extensible = true;
+			channelMask = getInt( position + 20 );
+			String formatId = getChars( position + 24 ) + getChars( position + 28 ) + getChars( position + 32 ) + getChars( position + 36 );
+			format = PCM_ID.equals( formatId ) ? FORMAT_PCM : FLOAT_ID.equals( formatId ) ? FORMAT_FLOAT : 0;
+		}
+		if( numChannels < 1 || bytesPerFrame < numChannels ) {
+			throw new IllegalArgumentException( "Invalid format header." );
+		}
+	}
+
+	/* Ensure the specified range of a chunk is in the buffer. */
+	private void fillChunk( long position, int length ) throws IOException {
+		if( !fill( position, length ) ) {
+			throw new EOFException( "Unexpected end of file." );
+		}
+	}
+
+	/* Ensure the specified range of the file is in the buffer, which may only move forwards
+	   when reading from a stream. Returns false if the end of the file is reached. */
+	private boolean fill( long position, int length ) throws IOException {
+		long bufferEnd = bufferOffset + buffer.limit();
+		if( position >= bufferOffset && position + length <= bufferEnd ) {
+			return true;
+		}
+		if( channel != null ) {
+			buffer.clear();
+			bufferOffset = position;
+			channel.position( position );
+		} else {
+			if( position < bufferOffset ) {
+				throw new IllegalStateException( "Cannot seek backwards." );
+			}
+			if( position < bufferEnd ) {
+				// Keep the bytes that have already been read.
+				buffer.position( ( int ) ( position - bufferOffset ) );
+				buffer.compact();
+			} else {
+				skip( inputStream, position - bufferEnd );
+				buffer.clear();
+			}
+			bufferOffset = position;
+		}
+		while( buffer.position() < length ) {
+			int count;
+			if( channel != null ) {
+				count = channel.read( buffer );
+			} else {
+				count = inputStream.read( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+				if( count > 0 ) {
+					buffer.position( buffer.position() + count );
+				}
+			}
+			if( count < 0 ) {
+				buffer.flip();
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	/* Skip exactly count bytes of the specified stream, or throw EOFException. */
+	static void skip( InputStream input, long count ) throws IOException {
+		while( count > 0 ) {
+			long skipped = input.skip( count );
+			if( skipped < 1 ) {
+				if( input.read() < 0 ) {
+					throw new EOFException( "Unexpected end of file." );
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	private int getShort( long position ) {
+		return buffer.getShort( ( int ) ( position - bufferOffset ) ) & 0xFFFF;
+	}
+
+	private int getInt( long position ) {
+		return buffer.getInt( ( int ) ( position - bufferOffset ) );
+	}
+
+	private long getLong( long position ) {
+		return buffer.getLong( ( int ) ( position - bufferOffset ) );
+	}
+
+	private String getChars( long position ) {
+		char[] chars = new char[ 4 ];
+		for( int idx = 0; idx < 4; idx++ ) {
+			chars[ idx ] = ( char ) ( buffer.get( ( int ) ( position - bufferOffset ) + idx ) & 0xFF );
+		}
+		return new String( chars );
+	}
+
+	/* Return the sample format, FORMAT_PCM or FORMAT_FLOAT. The sub-format of extensible files is returned.
+	   Other formats are returned as-is, or as 0 for unknown extensible sub-formats. */
+	public int getFormat() {
+		return format;
+	}
+
+	/* Return true if the format chunk uses WAVE_FORMAT_EXTENSIBLE. */
+	public boolean isExtensible() {
+		return extensible;
+	}
+
+	/* Return true if the file is in the RF64 format. */
+	public boolean isRf64() {
+		return rf64;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/* Return the size in bytes of one sample of all channels. */
+	public int getBytesPerFrame() {
+		return bytesPerFrame;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	/* Return the speaker position mask of an extensible file, or 0. */
+	public int getChannelMask() {
+		return channelMask;
+	}
+
+	/* Return the offset of the audio data from the start of the file. */
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	/* Return the length of the audio data in bytes, or -1 if unspecified. */
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	/* Return the number of samples in the data chunk, limited to Integer.MAX_VALUE, or -1 if unspecified. */
+	public int getNumSamples() {
+		return dataLength < 0 ? -1 : ( int ) Math.min( dataLength / bytesPerFrame, Integer.MAX_VALUE );
+	}
+
+	/* Return the chunks in the order they appear in the file. */
+	public List<Chunk> getChunks() {
+		return Collections.unmodifiableList( chunks );
+	}
+
+	/* Return the first chunk with the specified identifier, or null. */
+	public Chunk getChunk( String id ) {
+		for( Chunk chunk : chunks ) {
+			if( chunk.getId().equals( id ) ) {
+				return chunk;
+			}
+		}
+		return null;
+	}
+
+	/* Read the contents of the specified chunk from the channel. */
+	public static ByteBuffer readChunk( SeekableByteChannel channel, Chunk chunk ) throws IOException {
+		if( chunk.getLength() > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Chunk too large." );
+		}
+		ByteBuffer contents = ByteBuffer.allocate( ( int ) chunk.getLength() ).order( ByteOrder.LITTLE_ENDIAN );
+		channel.position( chunk.getOffset() );
+		while( contents.hasRemaining() ) {
+			if( channel.read( contents ) < 0 ) {
+				throw new EOFException( "Unexpected end of file." );
+			}
+		}
+		contents.flip();
+		return contents;
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 1 ) {
+			System.err.println( "WAV chunk lister.\nUsage: java " + WavHeader.class.getName() + " input.wav" );
+			System.exit( 0 );
+		}
+		try( SeekableByteChannel channel = java.nio.file.Files.newByteChannel( new java.io.File( args[ 0 ] ).toPath() ) ) {
+			WavHeader header = new WavHeader( channel );
+			System.out.println( ( header.isRf64() ? "RF64" : "RIFF" ) + " format " + header.getFormat()
+				+ ( header.isExtensible() ? " (extensible)" : "" ) + ", " + header.getNumChannels() + " channels, "
+				+ header.getSampleRate() + "hz, " + header.getBitsPerSample() + " bits, " + ( header.getNumSamples() < 0 ? "unknown length" : header.getNumSamples() + " samples" ) );
+			for( Chunk chunk : header.getChunks() ) {
+				System.out.println( chunk.getId() + " offset " + chunk.getOffset() + " length " + chunk.getLength() );
+			}
+		}
+	}
+}
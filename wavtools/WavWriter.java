@@ -0,0 +1,221 @@
+
+package wavtools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.SeekableByteChannel;
+
+/*
+	Incremental 16-bit WAV writer for sources of unknown length.
+	When writing to a SeekableByteChannel, the header sizes are written when the writer is closed.
+	A JUNK chunk is reserved after the RIFF header, and if the file exceeds 4GB it is
+	replaced with a ds64 chunk and the file is converted to the RF64 format.
+	When writing to an OutputStream the sizes are not known, so the RIFF and data chunk
+	sizes are written as 0xFFFFFFFF, which is understood by most streaming readers.
+*/
+public class WavWriter implements Closeable {
+	private static final int HEADER_BYTES = 80, STREAM_HEADER_BYTES = 44;
+	private static final int DS64_BYTES = 28;
+
+	private SeekableByteChannel channel;
+	private OutputStream outputStream;
+	private byte[] outputBuf;
+	private ShortBuffer outputShorts;
+	private int numChannels, sampleRate, bufSamples;
+	private long startPosition, samplesWritten;
+
+	/* Write a WAV file to the specified channel, starting at its current position. */
+	public WavWriter( SeekableByteChannel channel, int numChannels, int sampleRate ) throws IOException {
+		this( numChannels, sampleRate );
+		this.channel = channel;
+		startPosition = channel.position();
+		ByteBuffer header = header( HEADER_BYTES );
+		header.flip();
+		while( header.hasRemaining() ) {
+			channel.write( header );
+		}
+	}
+
+	/* Write a WAV file with unspecified sizes to the specified stream. */
+	public WavWriter( OutputStream outputStream, int numChannels, int sampleRate ) throws IOException {
+		this( numChannels, sampleRate );
+		this.outputStream = outputStream;
+		outputStream.write( header( STREAM_HEADER_BYTES ).array() );
+	}
+
+	private WavWriter( int numChannels, int sampleRate ) {
+		if( numChannels < 1 || numChannels > 0xFFFF || sampleRate < 1 ) {
+			throw new IllegalArgumentException( "Invalid format." );
+		}
+		this.numChannels = numChannels;
+		this.sampleRate = sampleRate;
+		bufSamples = BufferPool.getBufferSamples();
+		outputBuf = BufferPool.getBytes( bufSamples * numChannels * 2 );
+		outputShorts = ByteBuffer.wrap( outputBuf ).order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer();
+	}
+
+	/* Return a header with unspecified sizes, and a JUNK chunk if there is room. */
+	private ByteBuffer header( int length ) {
+		ByteBuffer header = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+		putChars( header, "RIFF" ).putInt( -1 );
+		putChars( header, "WAVE" );
+		if( length == HEADER_BYTES ) {
+			putChars( header, "JUNK" ).putInt( DS64_BYTES );
+			header.position( header.position() + DS64_BYTES );
+		}
+		putChars( header, "fmt " ).putInt( 16 );
+		header.putShort( ( short ) 1 ); // PCM format.
+		header.putShort( ( short ) numChannels );
+		header.putInt( sampleRate );
+		header.putInt( numChannels * sampleRate * 2 ); // Bytes per sec.
+		header.putShort( ( short ) ( numChannels * 2 ) ); // Frame size.
+		header.putShort( ( short ) 16 ); // 16 bit.
+		putChars( header, "data" ).putInt( -1 );
+		return header;
+	}
+
+	private static ByteBuffer putChars( ByteBuffer buffer, String chars ) {
+		for( int idx = 0; idx < chars.length(); idx++ ) {
+			buffer.put( ( byte ) chars.charAt( idx ) );
+		}
+		return buffer;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/* Return the number of samples written so far. */
+	public long getSamplesWritten() {
+		return samplesWritten;
+	}
+
+	/* Write count samples from the specified offset of the interleaved buffer. */
+	public void write( short[] inputBuf, int offset, int count ) throws IOException {
+		if( outputBuf == null ) {
+			throw new IOException( "Writer closed." );
+		}
+		while( count > 0 ) {
+			int length = count < bufSamples ? count : bufSamples;
+			int outputLen = length * numChannels * 2;
+			if( WavSampleData.BULK_PCM ) {
+				outputShorts.clear();
+				outputShorts.put( inputBuf, offset * numChannels, length * numChannels );
+			} else {
+				for( int outputIdx = 0, inputIdx = offset * numChannels; outputIdx < outputLen; outputIdx += 2 ) {
+					int amp = inputBuf[ inputIdx++ ];
+					outputBuf[ outputIdx ] = ( byte ) amp;
+					outputBuf[ outputIdx + 1 ] = ( byte ) ( amp >> 8 );
+				}
+			}
+			if( channel != null ) {
+				ByteBuffer buffer = ByteBuffer.wrap( outputBuf, 0, outputLen );
+				while( buffer.hasRemaining() ) {
+					channel.write( buffer );
+				}
+			} else {
+				outputStream.write( outputBuf, 0, outputLen );
+			}
+			samplesWritten += length;
+			offset += length;
+			count -= length;
+		}
+	}
+
+	/* Write samples from the specified SampleData until none remain. */
+	public void write( SampleData sampleData ) throws Exception {
+		if( sampleData.getNumChannels() != numChannels ) {
+			throw new IllegalArgumentException( "Number of channels differs." );
+		}
+		short[] inputBuf = BufferPool.getShorts( bufSamples * numChannels );
+		try {
+			while( sampleData.getSamplesRemaining() > 0 ) {
+				int count = sampleData.getSamples( inputBuf, 0, bufSamples );
+				if( count < 1 ) {
+					break;
+				}
+				write( inputBuf, 0, count );
+			}
+		} finally {
+			BufferPool.release( inputBuf );
+		}
+	}
+
+	/* Write the header sizes if the output is seekable, and close the underlying channel or stream. */
+	public void close() throws IOException {
+		if( outputBuf == null ) {
+			return;
+		}
+		BufferPool.release( outputBuf );
+		outputBuf = null;
+		if( channel == null ) {
+			outputStream.close();
+			return;
+		}
+		try {
+			long dataLength = samplesWritten * numChannels * 2;
+			long riffLength = HEADER_BYTES - 8 + dataLength;
+			ByteBuffer buffer = ByteBuffer.allocate( DS64_BYTES + 8 ).order( ByteOrder.LITTLE_ENDIAN );
+			if( riffLength > 0xFFFFFFFFL ) {
+				// Convert to RF64, with the sizes in the ds64 chunk.
+				putChars( buffer, "RF64" ).putInt( -1 );
+				write( buffer, 0 );
+				putChars( buffer, "ds64" ).putInt( DS64_BYTES );
+				buffer.putLong( riffLength ).putLong( dataLength ).putLong( samplesWritten ).putInt( 0 );
+				write( buffer, 12 );
+				putChars( buffer, "data" ).putInt( -1 );
+			} else {
+				putChars( buffer, "RIFF" ).putInt( ( int ) riffLength );
+				write( buffer, 0 );
+				putChars( buffer, "data" ).putInt( ( int ) dataLength );
+			}
+			write( buffer, HEADER_BYTES - 8 );
+			channel.position( startPosition + HEADER_BYTES + dataLength );
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void write( ByteBuffer buffer, long position ) throws IOException {
+		buffer.flip();
+		channel.position( startPosition + position );
+		while( buffer.hasRemaining() ) {
+			channel.write( buffer );
+		}
+		buffer.clear();
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 2 ) {
+			System.err.println( "Streaming WAV copier.\nUsage: java " + WavWriter.class.getName() + " input.wav|- output.wav|-" );
+			System.exit( 0 );
+		}
+		java.io.InputStream inputStream = "-".equals( args[ 0 ] ) ? System.in : new java.io.FileInputStream( args[ 0 ] );
+		try {
+			SampleData sampleData = new WavSampleData( new java.io.BufferedInputStream( inputStream ) );
+			WavWriter writer;
+			if( "-".equals( args[ 1 ] ) ) {
+				writer = new WavWriter( new java.io.BufferedOutputStream( System.out ), sampleData.getNumChannels(), sampleData.getSampleRate() );
+			} else {
+				writer = new WavWriter( java.nio.channels.FileChannel.open( new java.io.File( args[ 1 ] ).toPath(),
+					java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE,
+					java.nio.file.StandardOpenOption.TRUNCATE_EXISTING ), sampleData.getNumChannels(), sampleData.getSampleRate() );
+			}
+			try {
+				writer.write( sampleData );
+			} finally {
+				writer.close();
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+
+package wavtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+	Multi-resolution min/max overview of an audio file, for drawing waveforms at any zoom
+	without decoding the audio. The overview is stored in a sidecar file of the following
+	form, with all values little-endian:
+		"WOVR", numChannels, sampleRate, numSamples, baseSamples, numLevels
+		Level 0 ( ceil( numSamples / baseSamples ) entries ).
+		Level 1 ( ceil( numSamples / ( baseSamples * 2 ) ) entries ).
+		...
+	Each entry has the 16-bit minimum and maximum of each channel over the samples it covers,
+	and each level covers twice as many samples per entry as the previous, until a single entry
+	covers the whole file. The file is about 1 / baseSamples the size of 16-bit PCM.
+	Sources that implement SeekableSampleData are divided into segments which are read in parallel.
+*/
+public class WaveformOverview {
+	private static final int HEADER_BYTES = 24;
+	private static final int MAGIC = 'W' | ( 'O' << 8 ) | ( 'V' << 16 ) | ( 'R' << 24 );
+	private static final int MIN_SEGMENT_SAMPLES = 1 << 18;
+
+	private MappedByteBuffer mappedBuf;
+	private int numChannels, sampleRate, numSamples, baseSamples, numLevels;
+	private long[] levelOffsets;
+
+	/* Map the specified overview file. The file is closed before returning,
+	   the mapping remains valid until it is garbage-collected. */
+	public WaveformOverview( File file ) throws IOException {
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+			mappedBuf = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			mappedBuf.order( ByteOrder.LITTLE_ENDIAN );
+		}
+		if( mappedBuf.capacity() < HEADER_BYTES || mappedBuf.getInt( 0 ) != MAGIC ) {
+			throw new IllegalArgumentException( "Waveform overview header not found." );
+		}
+		numChannels = mappedBuf.getInt( 4 );
+		sampleRate = mappedBuf.getInt( 8 );
+		numSamples = mappedBuf.getInt( 12 );
+		baseSamples = mappedBuf.getInt( 16 );
+		numLevels = mappedBuf.getInt( 20 );
+		if( numChannels < 1 || numSamples < 0 || baseSamples < 1 || numLevels != numLevels( numSamples, baseSamples ) ) {
+			throw new IllegalArgumentException( "Invalid waveform overview header." );
+		}
+		levelOffsets = new long[ numLevels + 1 ];
+		levelOffsets[ 0 ] = HEADER_BYTES;
+		for( int level = 0; level < numLevels; level++ ) {
+			levelOffsets[ level + 1 ] = levelOffsets[ level ] + ( long ) getNumEntries( level ) * numChannels * 4;
+		}
+		if( levelOffsets[ numLevels ] > mappedBuf.capacity() ) {
+			throw new IllegalArgumentException( "Waveform overview truncated." );
+		}
+	}
+
+	private static int numLevels( int numSamples, int baseSamples ) {
+		int numLevels = 1;
+		while( numLevels < 31 && ( ( long ) baseSamples << ( numLevels - 1 ) ) < numSamples ) {
+			numLevels++;
+		}
+		return numLevels;
+	}
+
+	private static int numEntries( int numSamples, long entrySamples ) {
+		return ( int ) ( ( numSamples + entrySamples - 1 ) / entrySamples );
+	}
+
+	/* Write an overview of the samples read from the source to the output stream,
+	   with each entry of the finest level covering baseSamples samples.
+	   If the source is a SeekableSampleData, it is opened once for each segment, which are read in parallel. */
+	public static void write( final TimelineSampleData.Source source, OutputStream outputStream, int baseSamples ) throws Exception {
+		SampleData sampleData = source.open();
+		try {
+			if( !( sampleData instanceof SeekableSampleData ) ) {
+				write( sampleData, outputStream, baseSamples );
+				return;
+			}
+			final int numChannels = sampleData.getNumChannels(), numSamples = ( ( SeekableSampleData ) sampleData ).getNumSamples();
+			short[] level = new short[ numEntries( numSamples, baseSamples ) * numChannels * 2 ];
+			// Segments of whole entries, about four for each thread.
+			int segmentEntries = numEntries( numSamples, baseSamples * ( long ) ForkJoinPool.getCommonPoolParallelism() * 4 );
+			if( segmentEntries < ( MIN_SEGMENT_SAMPLES + baseSamples - 1 ) / baseSamples ) {
+				segmentEntries = ( MIN_SEGMENT_SAMPLES + baseSamples - 1 ) / baseSamples;
+			}
+			// Segments start at even samples, as required by ADPCM.
+			segmentEntries += segmentEntries & baseSamples & 1;
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for( long start = 0; start < numSamples; start += ( long ) segmentEntries * baseSamples ) {
+				final SampleData first = sampleData;
+				final int segmentStart = ( int ) start, segmentLength = ( int ) Math.min( ( long ) segmentEntries * baseSamples, numSamples - start );
+				final short[] output = level;
+				final int entrySamples = baseSamples;
+				tasks.add( new Callable<Void>() {
+					public Void call() throws Exception {
+						SampleData segmentData = segmentStart > 0 ? source.open() : first;
+						try {
+							// The seek may be rounded down, in which case the difference is skipped.
+							SeekableSampleData seekable = ( SeekableSampleData ) segmentData;
+							seekable.seek( segmentStart );
+							int skip = segmentStart - ( seekable.getNumSamples() - seekable.getSamplesRemaining() );
+							scan( segmentData, skip, segmentLength, entrySamples, output, segmentStart / entrySamples * numChannels * 2 );
+						} finally {
+							if( segmentStart > 0 && segmentData instanceof AutoCloseable ) {
+								( ( AutoCloseable ) segmentData ).close();
+							}
+						}
+						return null;
+					}
+				} );
+			}
+			invokeAll( tasks );
+			write( level, numChannels, sampleData.getSampleRate(), numSamples, baseSamples, outputStream );
+		} finally {
+			if( sampleData instanceof AutoCloseable ) {
+				( ( AutoCloseable ) sampleData ).close();
+			}
+		}
+	}
+
+	/* Write an overview of the remaining samples of the specified SampleData in a single pass. */
+	public static void write( SampleData sampleData, OutputStream outputStream, int baseSamples ) throws Exception {
+		if( sampleData.getSamplesRemaining() == Integer.MAX_VALUE ) {
+			// The length is written to the header, and determines the size of the levels.
+			throw new IllegalArgumentException( "Input length unknown." );
+		}
+		int numChannels = sampleData.getNumChannels(), numSamples = sampleData.getSamplesRemaining();
+		short[] level = new short[ numEntries( numSamples, baseSamples ) * numChannels * 2 ];
+		scan( sampleData, 0, numSamples, baseSamples, level, 0 );
+		write( level, numChannels, sampleData.getSampleRate(), numSamples, baseSamples, outputStream );
+	}
+
+	private static void invokeAll( List<Callable<Void>> tasks ) throws Exception {
+		for( Future<Void> future : ForkJoinPool.commonPool().invokeAll( tasks ) ) {
+			try {
+				future.get();
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof Exception ) {
+					throw ( Exception ) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/* Skip samples, then read length samples and store the minimum and maximum of each channel for each
+	   baseSamples samples, starting at the specified index of the level. Missing samples are treated as silence. */
+	private static void scan( SampleData sampleData, int skip, int length, int baseSamples, short[] level, int levelIdx ) throws Exception {
+		int numChannels = sampleData.getNumChannels();
+		int bufSamples = BufferPool.getBufferSamples();
+		short[] buf = BufferPool.getShorts( bufSamples * numChannels );
+		try {
+			while( skip > 0 && sampleData.getSamplesRemaining() > 0 ) {
+				int count = sampleData.getSamples( buf, 0, skip < bufSamples ? skip : bufSamples );
+				if( count < 1 ) {
+					break;
+				}
+				skip -= count;
+			}
+			int entryPosition = 0;
+			while( length > 0 ) {
+				int count = sampleData.getSamplesRemaining() > 0 ? sampleData.getSamples( buf, 0, length < bufSamples ? length : bufSamples ) : 0;
+				if( count < 1 ) {
+					count = length < bufSamples ? length : bufSamples;
+					java.util.Arrays.fill( buf, 0, count * numChannels, ( short ) 0 );
+				}
+				int idx = 0;
+				while( idx < count ) {
+					if( entryPosition == 0 ) {
+						for( int chn = 0; chn < numChannels; chn++ ) {
+							level[ levelIdx + chn * 2 ] = Short.MAX_VALUE;
+							level[ levelIdx + chn * 2 + 1 ] = Short.MIN_VALUE;
+						}
+					}
+					int end = idx + baseSamples - entryPosition;
+					if( end > count ) {
+						end = count;
+					}
+					for( int chn = 0; chn < numChannels; chn++ ) {
+						int min = level[ levelIdx + chn * 2 ], max = level[ levelIdx + chn * 2 + 1 ];
+						for( int bufIdx = idx * numChannels + chn, bufEnd = end * numChannels; bufIdx < bufEnd; bufIdx += numChannels ) {
+							int amp = buf[ bufIdx ];
+							min = amp < min ? amp : min;
+							max = amp > max ? amp : max;
+						}
+						level[ levelIdx + chn * 2 ] = ( short ) min;
+						level[ levelIdx + chn * 2 + 1 ] = ( short ) max;
+					}
+					entryPosition += end - idx;
+					idx = end;
+					if( entryPosition >= baseSamples ) {
+						entryPosition = 0;
+						levelIdx += numChannels * 2;
+					}
+				}
+				length -= count;
+			}
+		} finally {
+			BufferPool.release( buf );
+		}
+	}
+
+	/* Write the header, the specified finest level, and each coarser level derived from the one before. */
+	private static void write( short[] level, int numChannels, int sampleRate, int numSamples, int baseSamples, OutputStream outputStream ) throws IOException {
+		int numLevels = numLevels( numSamples, baseSamples );
+		ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( numChannels ).putInt( sampleRate ).putInt( numSamples ).putInt( baseSamples ).putInt( numLevels );
+		outputStream.write( header.array() );
+		int entryShorts = numChannels * 2;
+		for( int idx = 0; idx < numLevels; idx++ ) {
+			int numEntries = numEntries( numSamples, ( long ) baseSamples << idx );
+			ByteBuffer bytes = ByteBuffer.allocate( numEntries * entryShorts * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+			bytes.asShortBuffer().put( level, 0, numEntries * entryShorts );
+			outputStream.write( bytes.array() );
+			// Combine pairs of entries, the last of an odd number is copied.
+			for( int entry = 0; entry < numEntries; entry += 2 ) {
+				int out = entry / 2 * entryShorts, in = entry * entryShorts;
+				for( int chn = 0; chn < entryShorts; chn += 2 ) {
+					short min = level[ in + chn ], max = level[ in + chn + 1 ];
+					if( entry + 1 < numEntries ) {
+						min = level[ in + entryShorts + chn ] < min ? level[ in + entryShorts + chn ] : min;
+						max = level[ in + entryShorts + chn + 1 ] > max ? level[ in + entryShorts + chn + 1 ] : max;
+					}
+					level[ out + chn ] = min;
+					level[ out + chn + 1 ] = max;
+				}
+			}
+		}
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/* Return the number of samples of the audio file. */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/* Return the number of samples covered by each entry of the finest level. */
+	public int getBaseSamples() {
+		return baseSamples;
+	}
+
+	public int getNumLevels() {
+		return numLevels;
+	}
+
+	/* Return the number of entries of the specified level. */
+	public int getNumEntries( int level ) {
+		return numEntries( numSamples, ( long ) baseSamples << level );
+	}
+
+	/* Return the minimum of the specified entry of a level. */
+	public short getMin( int level, int entry, int channel ) {
+		return mappedBuf.getShort( ( int ) ( levelOffsets[ level ] + ( ( long ) entry * numChannels + channel ) * 4 ) );
+	}
+
+	/* Return the maximum of the specified entry of a level. */
+	public short getMax( int level, int entry, int channel ) {
+		return mappedBuf.getShort( ( int ) ( levelOffsets[ level ] + ( ( long ) entry * numChannels + channel ) * 4 + 2 ) );
+	}
+
+	/* Fill min and max with numPixels values for the samples of the specified channel from start to end,
+	   using the coarsest level with at least one entry per pixel. Each pixel covers at least one entry,
+	   so when zoomed in beyond the finest level, adjacent pixels may show the same entry.
+	   Pixels beyond the end of the audio are zero. */
+	public void getRange( int channel, long start, long end, short[] min, short[] max, int numPixels ) {
+		if( channel < 0 || channel >= numChannels || end < start || numPixels < 0 ) {
+			throw new IllegalArgumentException( "Invalid range." );
+		}
+		double samplesPerPixel = numPixels > 0 ? ( double ) ( end - start ) / numPixels : 0;
+		int level = 0;
+		while( level < numLevels - 1 && ( ( long ) baseSamples << ( level + 1 ) ) <= samplesPerPixel ) {
+			level++;
+		}
+		long entrySamples = ( long ) baseSamples << level;
+		int numEntries = getNumEntries( level );
+		for( int pixel = 0; pixel < numPixels; pixel++ ) {
+			long pixelStart = start + ( long ) ( pixel * samplesPerPixel );
+			long pixelEnd = start + ( long ) ( ( pixel + 1 ) * samplesPerPixel );
+			if( pixelStart < 0 || pixelStart >= numSamples ) {
+				min[ pixel ] = max[ pixel ] = 0;
+				continue;
+			}
+			int entry = ( int ) ( pixelStart / entrySamples );
+			int entryEnd = ( int ) Math.min( ( pixelEnd + entrySamples - 1 ) / entrySamples, numEntries );
+			short pixelMin = getMin( level, entry, channel ), pixelMax = getMax( level, entry, channel );
+			while( ++entry < entryEnd ) {
+				short entryMin = getMin( level, entry, channel ), entryMax = getMax( level, entry, channel );
+				pixelMin = entryMin < pixelMin ? entryMin : pixelMin;
+				pixelMax = entryMax > pixelMax ? entryMax : pixelMax;
+			}
+			min[ pixel ] = pixelMin;
+			max[ pixel ] = pixelMax;
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length != 2 && args.length != 3 ) {
+			System.err.println( "Waveform overview generator." );
+			System.err.println( "Usage: java " + WaveformOverview.class.getName() + " input.wav|input.adps output.wov [baseSamples]" );
+			System.exit( 0 );
+		}
+		int baseSamples = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 256;
+		try( OutputStream outputStream = new java.io.BufferedOutputStream( new java.io.FileOutputStream( args[ 1 ] ) ) ) {
+			write( TimelineSampleData.open( new File( args[ 0 ] ) ), outputStream, baseSamples );
+		}
+	}
+}